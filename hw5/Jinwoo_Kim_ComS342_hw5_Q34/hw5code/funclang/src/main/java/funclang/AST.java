@@ -43,6 +43,8 @@ public interface AST {
 
 	public static class VarExp extends Exp {
 		String _name;
+		int _depth = -1; // Lexical address filled in by the Resolver,
+		int _slot = -1;  // -1 means the variable is looked up by name.
 
 		public VarExp(String name) {
 			_name = name;
@@ -52,6 +54,19 @@ public interface AST {
 			return _name;
 		}
 
+		public int depth() {
+			return _depth;
+		}
+
+		public int slot() {
+			return _slot;
+		}
+
+		public void setAddress(int depth, int slot) {
+			_depth = depth;
+			_slot = slot;
+		}
+
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -117,6 +132,7 @@ public interface AST {
 
 	public static abstract class CompoundArithExp extends Exp {
 		List<Exp> _rest;
+		Effects.Summary _effects; // Of the operands, filled in by Effects.
 
 		public CompoundArithExp() {
 			_rest = new ArrayList<Exp>();
@@ -157,6 +173,9 @@ public interface AST {
 			return _rest;
 		}
 
+		Effects.Summary effects() { return _effects; }
+		void setEffects(Effects.Summary effects) { _effects = effects; }
+
 		public void add(Exp e) {
 			_rest.add(e);
 		}
@@ -319,6 +338,10 @@ public interface AST {
 	public static class LambdaExp extends Exp {
 		List<Exp> _formals;
 		Exp _body;
+		// The variables of enclosing scopes used by the body, addressed as
+		// where the lambda is evaluated. Filled in by the Resolver.
+		private String[] _capture_names = null;
+		private volatile VarExp[] _captures = null;
 
 		public LambdaExp(List<Exp> formals, Exp body) {
 			_formals = formals;
@@ -327,6 +350,15 @@ public interface AST {
 
 		public List<Exp> formals() { return _formals; }
 		public Exp body() { return _body; }
+		public VarExp[] captures() { return _captures; }
+		public String[] captureNames() { return _capture_names; }
+		public void setCaptures(VarExp[] captures) {
+			String[] names = new String[captures.length];
+			for (int i = 0; i < names.length; i++)
+				names[i] = captures[i].name();
+			_capture_names = names;
+			_captures = captures;
+		}
 
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
@@ -342,6 +374,8 @@ public interface AST {
 	public static class CallExp extends Exp {
 		Exp _operator;
 		List<Exp> _operands;
+		CallSite _site = new CallSite(); // Inline cache used by the evaluators.
+		Effects.Summary _effects; // Of the operands, filled in by Effects.
 
 		public CallExp(Exp operator, List<Exp> operands) {
 			_operator = operator;
@@ -352,6 +386,10 @@ public interface AST {
 
 		public List<Exp> operands() { return _operands; }
 
+		CallSite site() { return _site; }
+		Effects.Summary effects() { return _effects; }
+		void setEffects(Effects.Summary effects) { _effects = effects; }
+
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -520,10 +558,13 @@ public interface AST {
 	 */
 	public static class ListExp extends Exp {
 		private List<Exp> _elems;
+		Effects.Summary _effects; // Of the elements, filled in by Effects.
 		public ListExp(List<Exp> elems){
 			_elems = elems;
 		}
 		public List<Exp> elems() { return _elems; }
+		Effects.Summary effects() { return _effects; }
+		void setEffects(Effects.Summary effects) { _effects = effects; }
 		public Object accept(Visitor visitor, Env env) {
 			return visitor.visit(this, env);
 		}
@@ -548,54 +589,6 @@ public interface AST {
 		}
 	}
 
-	/**
-	 * Eval expression: evaluate the program that is _val
-	 * @author hridesh
-	 *
-	 */
-	public static class EvalExp extends Exp {
-		private Exp _code;
-		public EvalExp(Exp code){
-			_code = code;
-		}
-		public Exp code() { return _code; }
-		public Object accept(Visitor visitor, Env env) {
-			return visitor.visit(this, env);
-		}
-	}
-
-	/**
-	 * Read expression: reads the file that is _file
-	 * @author hridesh
-	 *
-	 */
-	public static class ReadExp extends Exp {
-		private Exp _file;
-		public ReadExp(Exp file){
-			_file = file;
-		}
-		public Exp file() { return _file; }
-		public Object accept(Visitor visitor, Env env) {
-			return visitor.visit(this, env);
-		}
-	}
-
-	public static class LengthStrExp extends Exp {
-		private Exp strExpr;
-
-		public LengthStrExp(Exp strExpr) {
-			this.strExpr = strExpr;
-		}
-
-		public Exp getStrExpr() {
-			return strExpr;
-		}
-
-		public Object accept(Visitor visitor, Env env) {
-			return visitor.visit(this, env);
-		}
-	}
-
 	public static class ArgExp extends Exp {
 		private Exp _exp;
 		private String _var;
@@ -611,6 +604,41 @@ public interface AST {
 		public Object accept(Visitor visitor, Env env) { return visitor.visit(this, env); }
 	}
 
+	/**
+	 * Fused expression: a chain of calls to the list procedures of the
+	 * Library, such as (foldl f 0 (map g (filter p l))), each taking the
+	 * list the next one returns, made by the Optimizer. It is run in one
+	 * pass over the source list, without the lists in between, as long as
+	 * the operators are still the library procedures; otherwise it is the
+	 * original call.
+	 */
+	public static class FusedExp extends Exp {
+		private CallExp _original;
+		private List<CallExp> _stages; // Innermost first.
+		/** The chain of the given number of stages at the top of original. */
+		public FusedExp(CallExp original, int stages) {
+			_original = original;
+			_stages = new ArrayList<CallExp>(stages);
+			CallExp stage = original;
+			for (int i = 0; i < stages; i++) {
+				_stages.add(0, stage);
+				if (i + 1 < stages)
+					stage = (CallExp) last(stage);
+			}
+		}
+		public CallExp original() { return _original; }
+		/** The calls in the chain, the one applied first to the source first. */
+		public List<CallExp> stages() { return _stages; }
+		/** The list the innermost call is given. */
+		public Exp source() { return last(_stages.get(0)); }
+		private static Exp last(CallExp stage) {
+			return stage.operands().get(stage.operands().size() - 1);
+		}
+		public Object accept(Visitor visitor, Env env) {
+			return visitor.visit(this, env);
+		}
+	}
+
 	public interface Visitor <T> {
 		// This interface should contain a signature for each concrete AST node.
 		public T visit(AST.AddExp e, Env env);
@@ -625,8 +653,6 @@ public interface AST {
 		public T visit(AST.VarExp e, Env env);
 		public T visit(AST.LetExp e, Env env); // New for the varlang
 		public T visit(AST.DefineDecl d, Env env); // New for the definelang
-		public T visit(AST.ReadExp e, Env env); // New for the funclang
-		public T visit(AST.EvalExp e, Env env); // New for the funclang
 		public T visit(AST.LambdaExp e, Env env); // New for the funclang
 		public T visit(AST.CallExp e, Env env); // New for the funclang
 		public T visit(AST.IfExp e, Env env); // Additional expressions for convenience
@@ -638,7 +664,7 @@ public interface AST {
 		public T visit(AST.ConsExp e, Env env); // Additional expressions for convenience
 		public T visit(AST.ListExp e, Env env); // Additional expressions for convenience
 		public T visit(AST.NullExp e, Env env); // Additional expressions for convenience
-		public T visit(AST.LengthStrExp e, Env env); // Additional expressions for convenience
 		public T visit(AST.ArgExp e, Env env); //Additional expressions for hw5
+		public T visit(AST.FusedExp e, Env env); // Made by the Optimizer
 	}
 }
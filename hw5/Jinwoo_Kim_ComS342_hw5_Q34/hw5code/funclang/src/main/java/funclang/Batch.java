@@ -0,0 +1,265 @@
+package funclang;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import funclang.AST.Program;
+
+/**
+ * Runs programs, one per line, without prompting, and prints their values
+ * in the order of the input. The work is split into a pipeline:
+ *
+ *   reading  -->  parsing  -->  evaluating  -->  printing
+ *
+ * Lines are read by one thread and parsed by a pool of threads, while the
+ * calling thread evaluates the programs one at a time, in order, since a
+ * program may use the definitions of the programs before it. Values are
+ * printed by another thread through a buffered stream, flushed whenever
+ * it has caught up with the evaluation. The stages are
+ * connected by bounded queues, so a slow stage holds back the stages before
+ * it instead of letting work pile up in memory. Lines that are already
+ * buffered when they are read go through the pipeline together, up to
+ * CHUNK_SIZE at a time, so that handing work from one stage to the next
+ * costs little per program.
+ *
+ * Once all programs have run, a summary of the throughput and of the
+ * latency of each program, from reading its line to printing its value,
+ * is printed on the standard error stream, with how many calls to
+ * memoized functions found their results remembered, if there were any.
+ */
+public class Batch {
+	static final int QUEUE_CAPACITY = 16;
+	static final int CHUNK_SIZE = 64;
+
+	/**
+	 * Consecutive programs on their way through the pipeline.
+	 */
+	private static final class Job {
+		private final long[] _start; // When each line was read, in nanoseconds.
+		private final Future<Object[]> _programs; // A Program or a Throwable for each line.
+		private Object[] _results; // The Value or the Throwable to print for each line.
+		Job(long[] start, Future<Object[]> programs) {
+			_start = start;
+			_programs = programs;
+		}
+	}
+
+	private static final Job END = new Job(null, null);
+
+	private final Reader _reader;
+	private final Evaluator _eval;
+	private final Compiler _compiler;
+	private final Optimizer _optimizer;
+	private final int _parseThreads;
+
+	private final BlockingQueue<Job> _parsed = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+	private final BlockingQueue<Job> _evaluated = new ArrayBlockingQueue<Job>(QUEUE_CAPACITY);
+	private volatile IOException _inputError = null;
+
+	/**
+	 * Programs are evaluated with compiler if it is not null, and with eval
+	 * otherwise, after being rewritten by optimizer if it is not null.
+	 */
+	public Batch(Reader reader, Evaluator eval, Compiler compiler, Optimizer optimizer, int parseThreads) {
+		_reader = reader;
+		_eval = eval;
+		_compiler = compiler;
+		_optimizer = optimizer;
+		_parseThreads = parseThreads;
+	}
+
+	/**
+	 * Runs every program read from in, printing the values to out.
+	 */
+	public void run(final BufferedReader in, PrintStream out) throws InterruptedException {
+		long start = System.nanoTime();
+		final ExecutorService parsers = Executors.newFixedThreadPool(_parseThreads, daemon("parser"));
+		Thread reader = daemon("reader").newThread(new Runnable() {
+			public void run() { read(in, parsers); }
+		});
+		final PrintStream buffered = new PrintStream(new BufferedOutputStream(out, 1 << 16), false);
+		final long[][] latencies = new long[1][];
+		Thread printer = daemon("printer").newThread(new Runnable() {
+			public void run() { latencies[0] = print(buffered); }
+		});
+		reader.start();
+		printer.start();
+		try {
+			evaluate();
+		} finally {
+			parsers.shutdownNow();
+		}
+		printer.join();
+		buffered.flush();
+		summarize(latencies[0], System.nanoTime() - start);
+		if (_eval.memoHits() + _eval.memoMisses() > 0)
+			System.err.printf("Memoized calls: %d hits, %d misses%n", _eval.memoHits(), _eval.memoMisses());
+	}
+
+	private static ThreadFactory daemon(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "batch-" + name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * The reading stage: hands each chunk of lines to the parser pool, and
+	 * queues the job for evaluation in the order of the lines.
+	 */
+	private void read(BufferedReader in, ExecutorService parsers) {
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				long[] start = new long[CHUNK_SIZE];
+				final String[] lines = new String[CHUNK_SIZE];
+				int count = 0;
+				do {
+					start[count] = System.nanoTime();
+					lines[count++] = line;
+				} while (count < CHUNK_SIZE && in.ready() && (line = in.readLine()) != null);
+				final int size = count;
+				Future<Object[]> programs = parsers.submit(new Callable<Object[]>() {
+					public Object[] call() {
+						return parse(lines, size);
+					}
+				});
+				_parsed.put(new Job(Arrays.copyOf(start, size), programs));
+			}
+		} catch (IOException e) {
+			_inputError = e;
+		} catch (InterruptedException e) {
+			return;
+		}
+		try {
+			_parsed.put(END);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private Object[] parse(String[] lines, int size) {
+		Object[] programs = new Object[size];
+		for (int i = 0; i < size; i++) {
+			try {
+				programs[i] = _reader.parse(_reader.runFile(lines[i]));
+			} catch (IOException | RuntimeException | StackOverflowError e) {
+				programs[i] = e;
+			}
+		}
+		return programs;
+	}
+
+	/**
+	 * The evaluating stage, run by the calling thread.
+	 */
+	private void evaluate() throws InterruptedException {
+		while (true) {
+			Job job = _parsed.take();
+			if (job == END)
+				break;
+			Object[] programs;
+			try {
+				programs = job._programs.get();
+			} catch (ExecutionException e) {
+				programs = new Object[job._start.length];
+				Arrays.fill(programs, e.getCause());
+			}
+			job._results = new Object[programs.length];
+			for (int i = 0; i < programs.length; i++)
+				job._results[i] = evaluate(programs[i]);
+			_evaluated.put(job);
+		}
+		_evaluated.put(END);
+	}
+
+	private Object evaluate(Object program) {
+		if (!(program instanceof Program))
+			return program;
+		try {
+			Program p = (Program) program;
+			if (_optimizer != null)
+				p = _optimizer.optimize(p);
+			return _compiler != null ? _compiler.valueOf(p) : _eval.valueOf(p);
+		} catch (RuntimeException | StackOverflowError e) {
+			return e;
+		}
+	}
+
+	/**
+	 * The printing stage. Returns the latency of each program.
+	 */
+	private long[] print(PrintStream out) {
+		Printer printer = new Printer(out);
+		long[] latencies = new long[1024];
+		int count = 0;
+		try {
+			while (true) {
+				Job job = _evaluated.take();
+				if (job == END)
+					break;
+				for (int i = 0; i < job._results.length; i++) {
+					try {
+						print(printer, job._results[i]);
+					} catch (RuntimeException | StackOverflowError e) {
+						printer.println("Error:" + e);
+					}
+					if (count == latencies.length)
+						latencies = Arrays.copyOf(latencies, count * 2);
+					latencies[count++] = System.nanoTime() - job._start[i];
+				}
+				if (_evaluated.isEmpty())
+					out.flush(); // Caught up, as when input comes in slowly.
+			}
+			if (_inputError != null)
+				printer.println("Error reading input:" + _inputError.getMessage());
+		} catch (InterruptedException e) {
+		}
+		return Arrays.copyOf(latencies, count);
+	}
+
+	/**
+	 * Prints a result the way the read-eval-print loop does.
+	 */
+	static void print(Printer printer, Object result) {
+		if (result instanceof Value)
+			printer.print((Value) result);
+		else if (result instanceof Env.LookupException)
+			printer.print((Env.LookupException) result);
+		else if (result instanceof IOException)
+			printer.println("Error reading input:" + ((IOException) result).getMessage());
+		else if (result instanceof NullPointerException)
+			printer.println("Error:" + ((NullPointerException) result).getMessage());
+		else
+			printer.println("Error:" + result);
+	}
+
+	private static void summarize(long[] latencies, long elapsed) {
+		Arrays.sort(latencies);
+		double seconds = elapsed / 1e9;
+		System.err.printf("Ran %d programs in %.3f s (%.1f programs/s)%n",
+				latencies.length, seconds, latencies.length / seconds);
+		if (latencies.length > 0)
+			System.err.printf("Latency in ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f%n",
+					percentile(latencies, 50), percentile(latencies, 90),
+					percentile(latencies, 99), latencies[latencies.length - 1] / 1e6);
+	}
+
+	private static double percentile(long[] sorted, int p) {
+		int i = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(i, 0)] / 1e6;
+	}
+}
@@ -0,0 +1,431 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import funclang.AST.*;
+import funclang.Value.*;
+
+/**
+ * A compact instruction format for programs and function bodies, run by
+ * the VM, and the compiler from the AST into it.
+ *
+ * Code is an int array: each instruction is an opcode followed by its
+ * operands, which are numbers, jump targets (indexes into the array) or
+ * indexes into the constant pool of the code. The pool holds literals,
+ * names, and the AST nodes that error messages print and that the VM
+ * leaves to the Evaluator. Instructions take their operands from, and
+ * push their results onto, the operand stack of the VM; a compiled
+ * expression pushes exactly one value.
+ *
+ * Every expression in tail position ends its code with a RETURN, or with
+ * a TAILCALL, which runs the callee in place of the current function.
+ *
+ */
+final class Bytecode {
+
+	/*
+	 * Opcodes, with their operands.
+	 */
+	static final int CONST = 0;        // k: push constant k.
+	static final int UNIT = 1;         // Push a new unit value.
+	static final int LOCAL0 = 2;       // slot: push a variable of the innermost frame.
+	static final int LOCAL = 3;        // depth slot: push a variable of an outer frame.
+	static final int GLOBAL = 4;       // k: push the global variable named by constant k.
+	static final int NUM = 5;          // Check that the top of the stack is a number.
+	static final int ADD = 6;          // n: replace n numbers by their sum,
+	static final int SUB = 7;          // n: difference,
+	static final int MUL = 8;          // n: product,
+	static final int DIV = 9;          // n: or quotient.
+	static final int EQ = 10;          // Replace two values by whether =,
+	static final int LT = 11;          // <,
+	static final int GT = 12;          // or > holds for them.
+	static final int CAR = 13;
+	static final int CDR = 14;
+	static final int NULLP = 15;
+	static final int CONS = 16;
+	static final int LIST = 17;        // n: replace n values by the list of them.
+	static final int JUMP = 18;        // target
+	static final int IFFALSE = 19;     // else end k: pop a boolean, jumping to else if false;
+	                                   // push an error and jump to end if not a boolean.
+	static final int LET = 20;         // n k: pop n values into a frame, names in constant k.
+	static final int ENDLET = 21;      // Leave the frame of a let.
+	static final int CLOSURE = 22;     // n k: pop n captured values into a function
+	                                   // of lambda k, with the code in constant k + 1.
+	static final int CHECKFUN = 23;    // end k: replace a non-function by an error and jump to end.
+	static final int CALL = 24;        // n k: call a function with n arguments, at call k.
+	static final int TAILCALL = 25;    // n k: the same, in tail position.
+	static final int RETURN = 26;
+	static final int DEFINE = 27;      // k: pop a value into the global named by constant k.
+	static final int INTERP = 28;      // k: push the value the Evaluator gives expression k.
+
+	/*
+	 * Instructions that do the work of a few of the above at once. Their
+	 * a and b operands are read directly (see direct) rather than popped.
+	 */
+	static final int ADD2 = 29;        // a b
+	static final int SUB2 = 30;        // a b
+	static final int MUL2 = 31;        // a b
+	static final int DIV2 = 32;        // a b
+	static final int EQ2 = 33;         // a b
+	static final int LT2 = 34;         // a b
+	static final int GT2 = 35;         // a b
+	static final int IFEQ = 36;        // a b else: jump to else unless =,
+	static final int IFLT = 37;        // a b else: <,
+	static final int IFGT = 38;        // a b else: or > holds for a and b.
+	static final int CALLEE = 39;      // k end c: GLOBAL k, then CHECKFUN end c.
+
+	/*
+	 * Chains of list procedures fused by the Optimizer, see FusedExp.
+	 */
+	static final int STAGES = 40;      // k else: push the procedures of fused call k, or jump
+	                                   // to else if they are not the library's.
+	static final int FUSE = 41;        // k: replace them, the operands and the list by the value.
+
+	/**
+	 * Compiled code, with the constant pool it refers to and the global
+	 * environment its free variables live in.
+	 */
+	static final class Code {
+		final int[] _ops;
+		final Object[] _constants;
+		final Env _global;
+		final int _max_stack; // Values the code pushes onto the operand stack, at most.
+
+		Code(int[] ops, Object[] constants, Env global, int max_stack) {
+			_ops = ops;
+			_constants = constants;
+			_global = global;
+			_max_stack = max_stack;
+		}
+	}
+
+	private final Env _global;
+	private int[] _ops = new int[32];
+	private int _size = 0;
+	private final List<Object> _constants = new ArrayList<Object>();
+	private int _depth = 0; // Values on the operand stack at this point of the code.
+	private int _max_depth = 0;
+
+	private Bytecode(Env global) {
+		_global = global;
+	}
+
+	/**
+	 * Compiles a resolved program, whose definitions go to global.
+	 */
+	static Code program(Program p, Env global) {
+		Bytecode b = new Bytecode(global);
+		for (DefineDecl d : p.decls()) {
+			b.compile(d.value_exp(), false);
+			b.emit(DEFINE, -1, b.constant(d.name()));
+		}
+		b.compile(p.e(), true);
+		return b.code();
+	}
+
+	/**
+	 * Compiles the body of a function whose free variables live in global.
+	 */
+	static Code function(Exp body, Env global) {
+		Bytecode b = new Bytecode(global);
+		b.compile(body, true);
+		return b.code();
+	}
+
+	private Code code() {
+		return new Code(Arrays.copyOf(_ops, _size), _constants.toArray(), _global, _max_depth);
+	}
+
+	private int constant(Object c) {
+		_constants.add(c);
+		return _constants.size() - 1;
+	}
+
+	/**
+	 * Appends an instruction that changes the depth of the operand stack
+	 * by effect.
+	 */
+	private void emit(int op, int effect, int... operands) {
+		if (_size + operands.length + 1 > _ops.length)
+			_ops = Arrays.copyOf(_ops, Math.max(2 * _ops.length, _size + operands.length + 1));
+		_ops[_size++] = op;
+		for (int operand : operands)
+			_ops[_size++] = operand;
+		_depth += effect;
+		_max_depth = Math.max(_max_depth, _depth);
+	}
+
+	/**
+	 * Points the jump target operand at index to the end of the code.
+	 */
+	private void patch(int index) {
+		_ops[index] = _size;
+	}
+
+	/**
+	 * Compiles e, returning its value if it is in tail position.
+	 */
+	private void compile(Exp e, boolean tail) {
+		if (e instanceof IfExp)
+			compileIf((IfExp) e, tail);
+		else if (e instanceof LetExp)
+			compileLet((LetExp) e, tail);
+		else if (e instanceof CallExp)
+			compileCall((CallExp) e, tail);
+		else if (e instanceof FusedExp)
+			compileFused((FusedExp) e, tail);
+		else {
+			compileValue(e);
+			if (tail)
+				emit(RETURN, -1);
+		}
+	}
+
+	private void compileAll(List<Exp> exps) {
+		for (Exp exp : exps)
+			compile(exp, false);
+	}
+
+	private void compileIf(IfExp e, boolean tail) {
+		int branch = _size, else_target;
+		boolean fused = e.conditional() instanceof BinaryComparator && isDirect(e.conditional());
+		if (fused) { // A comparison, whose value is always a boolean.
+			BinaryComparator c = (BinaryComparator) e.conditional();
+			int op = c instanceof EqualExp ? IFEQ : c instanceof LessExp ? IFLT : IFGT;
+			emit(op, 0, direct(c.first_exp()), direct(c.second_exp()), 0);
+			else_target = branch + 3;
+		} else {
+			compile(e.conditional(), false);
+			branch = _size;
+			emit(IFFALSE, -1, 0, 0, constant(e));
+			else_target = branch + 1;
+		}
+		int depth = _depth;
+		compile(e.then_exp(), tail);
+		int jump = -1;
+		if (!tail) {
+			jump = _size;
+			emit(JUMP, 0, 0);
+		}
+		_depth = depth;
+		patch(else_target);
+		compile(e.else_exp(), tail);
+		if (!fused) {
+			// A condition that is not a boolean leaves an error as the value.
+			_depth = depth + 1;
+			patch(branch + 2);
+			if (tail)
+				emit(RETURN, -1);
+		}
+		if (!tail)
+			patch(jump + 1);
+	}
+
+	private void compileLet(LetExp e, boolean tail) {
+		List<Exp> value_exps = e.value_exps();
+		compileAll(value_exps);
+		emit(LET, -value_exps.size(), value_exps.size(),
+				constant(e.names().toArray(new String[value_exps.size()])));
+		compile(e.body(), tail);
+		if (!tail)
+			emit(ENDLET, 0);
+	}
+
+	private void compileCall(CallExp e, boolean tail) {
+		int k = constant(e);
+		Exp operator = e.operator();
+		int end;
+		if (operator instanceof VarExp && ((VarExp) operator).depth() < 0) {
+			end = _size + 2;
+			emit(CALLEE, 1, constant(((VarExp) operator).name()), 0, k);
+		} else {
+			compile(operator, false);
+			end = _size + 1;
+			emit(CHECKFUN, 0, 0, k);
+		}
+		int depth = _depth;
+		compileAll(e.operands());
+		int n = e.operands().size();
+		emit(tail ? TAILCALL : CALL, -n, n, k);
+		// A non-function leaves an error as the value, and so does a
+		// tail call to a memoized function, which is run as a plain call.
+		_depth = depth;
+		patch(end);
+		if (tail)
+			emit(RETURN, -1);
+	}
+
+	/**
+	 * A fused call is followed by its original, run instead if STAGES finds
+	 * that the operators are not the library procedures.
+	 */
+	private void compileFused(FusedExp e, boolean tail) {
+		int k = constant(e);
+		List<CallExp> stages = e.stages();
+		int depth = _depth;
+		int check = _size;
+		emit(STAGES, stages.size(), k, 0);
+		int values = stages.size() + 1;
+		for (int i = stages.size() - 1; i >= 0; i--) { // The outermost call's operands first.
+			List<Exp> operands = stages.get(i).operands();
+			compileAll(operands.subList(0, operands.size() - 1));
+			values += operands.size() - 1;
+		}
+		compile(e.source(), false);
+		emit(FUSE, 1 - values, k);
+		int jump = -1;
+		if (tail) {
+			emit(RETURN, -1);
+		} else {
+			jump = _size;
+			emit(JUMP, 0, 0);
+		}
+		_depth = depth;
+		patch(check + 2);
+		compile(e.original(), tail);
+		if (!tail)
+			patch(jump + 1);
+	}
+
+	/**
+	 * Compiles an expression that is not a tail position of its own.
+	 */
+	private void compileValue(Exp e) {
+		if (e instanceof NumExp) {
+			emit(CONST, 1, constant(NumVal.of(((NumExp) e).v())));
+		} else if (e instanceof StrExp) {
+			emit(CONST, 1, constant(new StringVal(((StrExp) e).v())));
+		} else if (e instanceof BoolExp) {
+			emit(CONST, 1, constant(BoolVal.of(((BoolExp) e).v())));
+		} else if (e instanceof UnitExp) {
+			emit(UNIT, 1);
+		} else if (e instanceof VarExp) {
+			compileVar((VarExp) e);
+		} else if (e instanceof CompoundArithExp) {
+			compileArith((CompoundArithExp) e);
+		} else if (e instanceof BinaryComparator && isDirect(e)) {
+			BinaryComparator c = (BinaryComparator) e;
+			emit(e instanceof EqualExp ? EQ2 : e instanceof LessExp ? LT2 : GT2, 1,
+					direct(c.first_exp()), direct(c.second_exp()));
+		} else if (e instanceof BinaryComparator) {
+			BinaryComparator c = (BinaryComparator) e;
+			compile(c.first_exp(), false);
+			compile(c.second_exp(), false);
+			emit(e instanceof EqualExp ? EQ : e instanceof LessExp ? LT : GT, -1);
+		} else if (e instanceof CarExp) {
+			compile(((CarExp) e).arg(), false);
+			emit(CAR, 0);
+		} else if (e instanceof CdrExp) {
+			compile(((CdrExp) e).arg(), false);
+			emit(CDR, 0);
+		} else if (e instanceof NullExp) {
+			compile(((NullExp) e).arg(), false);
+			emit(NULLP, 0);
+		} else if (e instanceof ConsExp) {
+			compile(((ConsExp) e).fst(), false);
+			compile(((ConsExp) e).snd(), false);
+			emit(CONS, -1);
+		} else if (e instanceof ListExp) {
+			List<Exp> elems = ((ListExp) e).elems();
+			compileAll(elems);
+			emit(LIST, 1 - elems.size(), elems.size());
+		} else if (e instanceof LambdaExp) {
+			compileLambda((LambdaExp) e);
+		} else { // Default arguments outside formals.
+			emit(INTERP, 1, constant(e));
+		}
+	}
+
+	private void compileVar(VarExp e) {
+		if (e.depth() == 0)
+			emit(LOCAL0, 1, e.slot());
+		else if (e.depth() > 0)
+			emit(LOCAL, 1, e.depth(), e.slot());
+		else
+			emit(GLOBAL, 1, constant(e.name()));
+	}
+
+	/**
+	 * Arithmetic pushes all of its operands before computing. An operand
+	 * that may not be a number is checked as soon as it is pushed if an
+	 * operand after it could fail or have effects, so that errors are the
+	 * ones of the Evaluator, which converts each operand as it goes.
+	 */
+	private void compileArith(CompoundArithExp e) {
+		List<Exp> operands = e.all();
+		int op = e instanceof AddExp ? ADD : e instanceof SubExp ? SUB : e instanceof MultExp ? MUL : DIV;
+		if (isDirect(e)) {
+			emit(op + ADD2 - ADD, 1, direct(operands.get(0)), direct(operands.get(1)));
+			return;
+		}
+		for (int i = 0; i < operands.size(); i++) {
+			Exp operand = operands.get(i);
+			compile(operand, false);
+			if (!(operand instanceof NumExp || operand instanceof CompoundArithExp) && !allSimple(operands, i + 1))
+				emit(NUM, 0);
+		}
+		emit(op, 1 - operands.size(), operands.size());
+	}
+
+	/**
+	 * Whether the operands from index on neither fail nor have effects:
+	 * literals and local variables.
+	 */
+	private static boolean allSimple(List<Exp> operands, int from) {
+		for (int i = from; i < operands.size(); i++) {
+			Exp operand = operands.get(i);
+			boolean simple = operand instanceof NumExp || operand instanceof StrExp || operand instanceof BoolExp
+					|| operand instanceof UnitExp || operand instanceof VarExp && ((VarExp) operand).depth() >= 0;
+			if (!simple)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * The operand that reads e directly: k for a literal in constant k, and
+	 * -1 - slot for a variable of the innermost frame.
+	 */
+	private int direct(Exp e) {
+		if (e instanceof NumExp)
+			return constant(NumVal.of(((NumExp) e).v()));
+		if (e instanceof StrExp)
+			return constant(new StringVal(((StrExp) e).v()));
+		if (e instanceof BoolExp)
+			return constant(BoolVal.of(((BoolExp) e).v()));
+		if (e instanceof VarExp && ((VarExp) e).depth() == 0)
+			return -1 - ((VarExp) e).slot();
+		throw new IllegalArgumentException("Not a direct operand: " + e);
+	}
+
+	private static boolean isDirectOperand(Exp e) {
+		return e instanceof NumExp || e instanceof StrExp || e instanceof BoolExp
+				|| e instanceof VarExp && ((VarExp) e).depth() == 0;
+	}
+
+	/**
+	 * Whether e is a comparison, or arithmetic on two operands, whose
+	 * operands can all be read directly.
+	 */
+	private static boolean isDirect(Exp e) {
+		if (e instanceof BinaryComparator)
+			return isDirectOperand(((BinaryComparator) e).first_exp())
+					&& isDirectOperand(((BinaryComparator) e).second_exp());
+		if (e instanceof CompoundArithExp) {
+			List<Exp> operands = ((CompoundArithExp) e).all();
+			return operands.size() == 2 && isDirectOperand(operands.get(0)) && isDirectOperand(operands.get(1));
+		}
+		return false;
+	}
+
+	private void compileLambda(LambdaExp e) {
+		VarExp[] captures = e.captures();
+		for (VarExp capture : captures)
+			compileVar(capture);
+		int k = constant(e);
+		constant(function(e.body(), _global));
+		emit(CLOSURE, 1 - captures.length, captures.length, k);
+	}
+}
@@ -0,0 +1,71 @@
+package funclang;
+
+import funclang.Value.FunVal;
+
+/**
+ * Inline cache of one call expression. It remembers the functions called
+ * from the site, keyed by their code (the formals list, shared by every
+ * closure created from the same lambda expression), together with what
+ * binding arguments to them takes: the arity, the formal names and the
+ * defaults of trailing formals, already evaluated.
+ *
+ * A site that has seen more than MAX_TARGETS different functions is
+ * megamorphic and stops caching.
+ */
+final class CallSite {
+	static final int MAX_TARGETS = 4;
+
+	/**
+	 * What a call to one function needs. Immutable, so it can be shared
+	 * between threads running the same program.
+	 */
+	static final class Target {
+		private final Object _code;
+		private final int _arity;
+		private final String[] _names;
+		private final Value[] _defaults;
+
+		Target(FunVal f) {
+			_code = f.formals();
+			_arity = f.formals().size();
+			_names = f.names();
+			_defaults = f.defaults();
+		}
+
+		int arity() { return _arity; }
+		String[] names() { return _names; }
+
+		/**
+		 * Fills in the defaults for the formals after the given actuals.
+		 * Returns false if one of them has no default.
+		 */
+		boolean fill(Value[] actuals, int given) {
+			for (int i = given; i < _arity; i++) {
+				if (_defaults[i] == null)
+					return false;
+				actuals[i] = _defaults[i];
+			}
+			return true;
+		}
+	}
+
+	private static final Target[] EMPTY = new Target[0];
+
+	private volatile Target[] _targets = EMPTY; // Replaced, never mutated.
+
+	Target lookup(FunVal f) {
+		Target[] targets = _targets;
+		Object code = f.formals();
+		for (Target target : targets)
+			if (target._code == code)
+				return target;
+		Target target = new Target(f);
+		if (targets.length < MAX_TARGETS) {
+			Target[] extended = new Target[targets.length + 1];
+			System.arraycopy(targets, 0, extended, 0, targets.length);
+			extended[targets.length] = target;
+			_targets = extended;
+		}
+		return target;
+	}
+}
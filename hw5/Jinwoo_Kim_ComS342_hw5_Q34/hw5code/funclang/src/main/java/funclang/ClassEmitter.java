@@ -0,0 +1,599 @@
+package funclang;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Array;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import funclang.AST.*;
+
+/**
+ * Compiles the body of a hot function into a JVM class of its own, for
+ * tiered execution: the class extends Compiler.Node, and the Compiler runs
+ * it as it would run the Node it compiles the body into.
+ *
+ * The execute method of the class computes arithmetic on doubles,
+ * conditionals, comparisons and the variables of frames in its own
+ * bytecode, so the JIT sees the body as one method. Every other
+ * expression, such as calls, lets and lambdas, is compiled by the Compiler
+ * into a Node that the class runs, in tail position if the expression is,
+ * so tail calls are still returned to the Compiler's run loop. Values and
+ * errors are the same as the Nodes'.
+ *
+ * Classes are defined in this package, so that they can extend Node and
+ * use the values: as hidden classes where the JVM has them (Java 15 and
+ * later), which are unloaded along with their Compiler, with
+ * Lookup.defineClass on Java 9 to 14, and with ClassLoader.defineClass on
+ * Java 8, which are not. The Compiler emits one class per lambda, however
+ * many functions it makes. If none of these is allowed, or a body does not fit in a
+ * method, emit returns null and the Compiler keeps its Nodes.
+ *
+ * Classes are version 49, which the JVM verifies without stack maps.
+ */
+final class ClassEmitter {
+	private static final String NODE = "funclang/Compiler$Node";
+	private static final String ENV = "funclang/Env";
+	private static final String VALUE = "funclang/Value";
+	private static final String NUMVAL = "funclang/Value$NumVal";
+	private static final String BOOLVAL = "funclang/Value$BoolVal";
+	private static final String ERROR = "funclang/Value$DynamicError";
+	private static final String EXECUTE = "(L" + ENV + ";)L" + VALUE + ";";
+	private static final String NODES = "[L" + NODE + ";";
+	private static final int MAX_CODE = Short.MAX_VALUE; // So that every jump offset fits.
+	private static final int MAX_LOCALS = 0xFF; // So that every local fits in a byte.
+
+	/*
+	 * Opcodes of the JVM.
+	 */
+	private static final int ICONST_0 = 0x03;
+	private static final int ICONST_1 = 0x04;
+	private static final int DCONST_0 = 0x0e;
+	private static final int DCONST_1 = 0x0f;
+	private static final int BIPUSH = 0x10;
+	private static final int SIPUSH = 0x11;
+	private static final int LDC_W = 0x13;
+	private static final int LDC2_W = 0x14;
+	private static final int ALOAD = 0x19;
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ALOAD_1 = 0x2b;
+	private static final int AALOAD = 0x32;
+	private static final int ASTORE = 0x3a;
+	private static final int DUP = 0x59;
+	private static final int DADD = 0x63;
+	private static final int DSUB = 0x67;
+	private static final int DMUL = 0x6b;
+	private static final int DDIV = 0x6f;
+	private static final int DCMPL = 0x97;
+	private static final int DCMPG = 0x98;
+	private static final int IFEQ = 0x99;
+	private static final int IFNE = 0x9a;
+	private static final int IFGE = 0x9c;
+	private static final int IFLE = 0x9e;
+	private static final int GOTO = 0xa7;
+	private static final int ARETURN = 0xb0;
+	private static final int RETURN = 0xb1;
+	private static final int GETFIELD = 0xb4;
+	private static final int PUTFIELD = 0xb5;
+	private static final int INVOKEVIRTUAL = 0xb6;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKESTATIC = 0xb8;
+	private static final int INVOKEINTERFACE = 0xb9;
+	private static final int NEW = 0xbb;
+	private static final int CHECKCAST = 0xc0;
+	private static final int INSTANCEOF = 0xc1;
+
+	/**
+	 * A way of defining classes in this package.
+	 */
+	private static abstract class Definer {
+		abstract Class<?> define(String name, byte[] bytes) throws Exception;
+	}
+
+	private static final Definer DEFINER = definer();
+	private static final AtomicInteger _count = new AtomicInteger(); // Of the classes named.
+	private static final AtomicInteger _defined = new AtomicInteger();
+
+	private static Definer definer() {
+		final MethodHandles.Lookup lookup = MethodHandles.lookup();
+		try {
+			Class<?> option = Class.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			final Object options = Array.newInstance(option, 0);
+			final Method define = MethodHandles.Lookup.class.getMethod("defineHiddenClass",
+					byte[].class, boolean.class, options.getClass());
+			return new Definer() {
+				Class<?> define(String name, byte[] bytes) throws Exception {
+					return ((MethodHandles.Lookup) define.invoke(lookup, bytes, true, options)).lookupClass();
+				}
+			};
+		} catch (ReflectiveOperationException e) {
+			// Before Java 15.
+		}
+		try {
+			final Method define = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+			return new Definer() {
+				Class<?> define(String name, byte[] bytes) throws Exception {
+					return (Class<?>) define.invoke(lookup, bytes);
+				}
+			};
+		} catch (ReflectiveOperationException e) {
+			// Java 8.
+		}
+		try {
+			final Method define = ClassLoader.class.getDeclaredMethod("defineClass",
+					String.class, byte[].class, int.class, int.class);
+			define.setAccessible(true);
+			final ClassLoader loader = ClassEmitter.class.getClassLoader();
+			return new Definer() {
+				Class<?> define(String name, byte[] bytes) throws Exception {
+					return (Class<?>) define.invoke(loader, name, bytes, 0, bytes.length);
+				}
+			};
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Whether this JVM lets classes be emitted.
+	 */
+	static boolean available() {
+		return DEFINER != null;
+	}
+
+	/**
+	 * How many classes have been defined.
+	 */
+	static int defined() {
+		return _defined.get();
+	}
+
+	/**
+	 * A Node running body, as the Compiler would compile it in tail
+	 * position, or null if it is not worth a class or cannot be given one.
+	 * The Compiler must be set up to compile the body, since the parts of
+	 * it left to Nodes are compiled with it.
+	 */
+	static Compiler.Node emit(Exp body, Compiler compiler) {
+		if (DEFINER == null)
+			return null;
+		ClassEmitter emitter = new ClassEmitter(compiler, "funclang/Hot" + _count.incrementAndGet());
+		try {
+			emitter.value(body, true);
+			emitter.op(ARETURN, -1);
+			if (!emitter._native || emitter._length > MAX_CODE || emitter._locals > MAX_LOCALS)
+				return null;
+			Class<?> c = DEFINER.define(emitter._name.replace('/', '.'), emitter.toBytes());
+			_defined.incrementAndGet();
+			return (Compiler.Node) c.getDeclaredConstructor(Compiler.Node[].class)
+					.newInstance((Object) emitter._nodes.toArray(new Compiler.Node[0]));
+		} catch (Exception | LinkageError e) {
+			return null;
+		}
+	}
+
+	private final Compiler _compiler;
+	private final String _name;
+	private final Printer.Formatter ts = new Printer.Formatter();
+	private final List<Compiler.Node> _nodes = new ArrayList<Compiler.Node>(); // Run by the class.
+	private boolean _native = false; // Is any of the body computed by the class itself?
+
+	// The constant pool.
+	private final ByteArrayOutputStream _poolBytes = new ByteArrayOutputStream();
+	private final DataOutputStream _pool = new DataOutputStream(_poolBytes);
+	private final Map<String, Integer> _constants = new HashMap<String, Integer>();
+	private int _poolSize = 1;
+
+	// The code of execute.
+	private byte[] _code = new byte[256];
+	private int _length = 0;
+	private int _stack = 0;
+	private int _maxStack = 0;
+	private int _locals = 2; // this and env.
+
+	private ClassEmitter(Compiler compiler, String name) {
+		_compiler = compiler;
+		_name = name;
+	}
+
+	/*
+	 * Compiling expressions. Each one leaves its result on the operand
+	 * stack: a Value, a double, or an int for a boolean.
+	 */
+
+	/**
+	 * Leaves the value of e.
+	 */
+	private void value(Exp e, boolean tail) throws IOException {
+		if (e instanceof NumExp) {
+			number(e);
+			op(INVOKESTATIC, -1, methodRef(NUMVAL, "of", "(D)L" + NUMVAL + ";"));
+		} else if (e instanceof CompoundArithExp) {
+			number(e);
+			op(INVOKESTATIC, -1, methodRef(NUMVAL, "of", "(D)L" + NUMVAL + ";"));
+		} else if (e instanceof BinaryComparator) {
+			compare((BinaryComparator) e);
+			op(INVOKESTATIC, 0, methodRef(BOOLVAL, "of", "(Z)L" + BOOLVAL + ";"));
+		} else if (e instanceof IfExp) {
+			conditional((IfExp) e, tail);
+		} else if (e instanceof VarExp && ((VarExp) e).depth() >= 0) {
+			op(ALOAD_1, 1);
+			constant(((VarExp) e).depth());
+			constant(((VarExp) e).slot());
+			op(INVOKEINTERFACE, -2, interfaceMethodRef(ENV, "get", "(II)L" + VALUE + ";"));
+			u1(3);
+			u1(0);
+		} else {
+			node(e, tail);
+		}
+	}
+
+	/**
+	 * Leaves the value of e, which must be a number, as a double. Like an
+	 * ArithNode, fails with a ClassCastException otherwise.
+	 */
+	private void number(Exp e) throws IOException {
+		if (e instanceof NumExp) {
+			op(LDC2_W, 2, doubleConst(((NumExp) e).v()));
+		} else if (e instanceof CompoundArithExp) {
+			_native = true;
+			int opcode = e instanceof AddExp ? DADD : e instanceof SubExp ? DSUB
+					: e instanceof MultExp ? DMUL : DDIV;
+			List<Exp> operands = ((CompoundArithExp) e).all();
+			boolean from_first = e instanceof SubExp || e instanceof DivExp;
+			if (!from_first)
+				op(e instanceof MultExp ? DCONST_1 : DCONST_0, 2);
+			for (int i = 0; i < operands.size(); i++) {
+				number(operands.get(i));
+				if (i > 0 || !from_first)
+					op(opcode, -2);
+			}
+		} else {
+			value(e, false);
+			op(CHECKCAST, 0, classRef(NUMVAL));
+			op(INVOKEVIRTUAL, 1, methodRef(NUMVAL, "v", "()D"));
+		}
+	}
+
+	/**
+	 * Leaves whether the comparison e holds, testing doubles if both
+	 * operands are numbers, and with Comparison otherwise.
+	 */
+	private void compare(BinaryComparator e) throws IOException {
+		_native = true;
+		String test = e instanceof LessExp ? "less" : e instanceof GreaterExp ? "greater" : "equal";
+		int first = local(), second = local();
+		value(e.first_exp(), false);
+		op(ASTORE, -1, first);
+		value(e.second_exp(), false);
+		op(ASTORE, -1, second);
+		int base = _stack;
+		int[] generic = new int[2];
+		for (int i = 0; i < 2; i++) {
+			op(ALOAD, 1, i == 0 ? first : second);
+			op(INSTANCEOF, 0, classRef(NUMVAL));
+			generic[i] = jump(IFEQ, -1);
+		}
+		for (int i = 0; i < 2; i++) {
+			op(ALOAD, 1, i == 0 ? first : second);
+			op(CHECKCAST, 0, classRef(NUMVAL));
+			op(INVOKEVIRTUAL, 1, methodRef(NUMVAL, "v", "()D"));
+		}
+		// As javac compiles <, > and ==, so that comparisons with NaN fail.
+		op(e instanceof LessExp ? DCMPG : DCMPL, -3);
+		int fails = jump(e instanceof LessExp ? IFGE : e instanceof GreaterExp ? IFLE : IFNE, -1);
+		op(ICONST_1, 1);
+		int end = jump(GOTO, 0);
+		land(fails);
+		_stack = base;
+		op(ICONST_0, 1);
+		int end2 = jump(GOTO, 0);
+		land(generic[0]);
+		land(generic[1]);
+		_stack = base;
+		op(ALOAD, 1, first);
+		op(ALOAD, 1, second);
+		op(INVOKESTATIC, -1, methodRef("funclang/Comparison", test, "(L" + VALUE + ";L" + VALUE + ";)Z"));
+		land(end);
+		land(end2);
+	}
+
+	/**
+	 * Leaves the value of the branch of e that its condition selects, or an
+	 * error if the condition is not a boolean.
+	 */
+	private void conditional(IfExp e, boolean tail) throws IOException {
+		_native = true;
+		int base = _stack;
+		Exp condition = e.conditional();
+		int otherwise;
+		int error = -1;
+		if (condition instanceof BinaryComparator) {
+			compare((BinaryComparator) condition);
+			otherwise = jump(IFEQ, -1);
+		} else {
+			int result = local();
+			value(condition, false);
+			op(ASTORE, -1, result);
+			op(ALOAD, 1, result);
+			op(INSTANCEOF, 0, classRef(BOOLVAL));
+			int ok = jump(IFNE, -1);
+			op(NEW, 1, classRef(ERROR));
+			op(DUP, 1);
+			op(LDC_W, 1, string("Condition not a boolean in expression " + ts.visit(e, null)));
+			op(INVOKESPECIAL, -2, methodRef(ERROR, "<init>", "(Ljava/lang/String;)V"));
+			error = jump(GOTO, 0);
+			land(ok);
+			_stack = base;
+			op(ALOAD, 1, result);
+			op(CHECKCAST, 0, classRef(BOOLVAL));
+			op(INVOKEVIRTUAL, 0, methodRef(BOOLVAL, "v", "()Z"));
+			otherwise = jump(IFEQ, -1);
+		}
+		value(e.then_exp(), tail);
+		int end = jump(GOTO, 0);
+		land(otherwise);
+		_stack = base;
+		value(e.else_exp(), tail);
+		land(end);
+		if (error >= 0)
+			land(error);
+	}
+
+	/**
+	 * Leaves the value of e as computed by the Node the Compiler compiles
+	 * it into.
+	 */
+	private void node(Exp e, boolean tail) throws IOException {
+		_nodes.add(_compiler.compile(e, tail));
+		op(ALOAD_0, 1);
+		op(GETFIELD, 0, fieldRef(_name, "_nodes", NODES));
+		constant(_nodes.size() - 1);
+		op(AALOAD, -1);
+		op(ALOAD_1, 1);
+		op(INVOKEVIRTUAL, -1, methodRef(NODE, "execute", EXECUTE));
+	}
+
+	private int local() {
+		return _locals++;
+	}
+
+	/*
+	 * Writing code.
+	 */
+
+	private void u1(int b) {
+		if (_length == _code.length)
+			_code = Arrays.copyOf(_code, 2 * _length);
+		_code[_length++] = (byte) b;
+	}
+
+	private void u2(int s) {
+		u1(s >> 8);
+		u1(s);
+	}
+
+	/**
+	 * Writes an instruction that changes the height of the stack by delta.
+	 */
+	private void op(int opcode, int delta) {
+		u1(opcode);
+		_stack += delta;
+		_maxStack = Math.max(_maxStack, _stack);
+	}
+
+	/**
+	 * Writes an instruction with an operand: a local variable for loads and
+	 * stores, and an index into the constant pool otherwise.
+	 */
+	private void op(int opcode, int delta, int operand) {
+		op(opcode, delta);
+		if (opcode == ALOAD || opcode == ASTORE)
+			u1(operand);
+		else
+			u2(operand);
+	}
+
+	private void constant(int n) throws IOException {
+		if (n >= -1 && n <= 5) {
+			op(ICONST_0 + n, 1);
+		} else if (n >= Byte.MIN_VALUE && n <= Byte.MAX_VALUE) {
+			op(BIPUSH, 1);
+			u1(n);
+		} else if (n >= Short.MIN_VALUE && n <= Short.MAX_VALUE) {
+			op(SIPUSH, 1, n);
+		} else {
+			op(LDC_W, 1, intConst(n));
+		}
+	}
+
+	/**
+	 * Writes a jump whose target is set by land, returning where it is.
+	 */
+	private int jump(int opcode, int delta) {
+		int at = _length;
+		op(opcode, delta, 0);
+		return at;
+	}
+
+	/**
+	 * Makes the jump at at land here.
+	 */
+	private void land(int at) {
+		int offset = _length - at;
+		_code[at + 1] = (byte) (offset >> 8);
+		_code[at + 2] = (byte) offset;
+	}
+
+	/*
+	 * The constant pool. Each entry is written once, after the ones it
+	 * refers to, and found again by a key naming its tag and contents.
+	 */
+
+	private Integer find(String key) {
+		return _constants.get(key);
+	}
+
+	private int add(String key, int slots) {
+		int index = _poolSize;
+		_poolSize += slots;
+		_constants.put(key, index);
+		return index;
+	}
+
+	private int utf8(String s) throws IOException {
+		Integer index = find("U" + s);
+		if (index != null)
+			return index;
+		_pool.writeByte(1);
+		_pool.writeUTF(s); // Fails if s is too long.
+		return add("U" + s, 1);
+	}
+
+	private int intConst(int n) throws IOException {
+		Integer index = find("I" + n);
+		if (index != null)
+			return index;
+		_pool.writeByte(3);
+		_pool.writeInt(n);
+		return add("I" + n, 1);
+	}
+
+	private int doubleConst(double d) throws IOException {
+		long bits = Double.doubleToRawLongBits(d);
+		Integer index = find("D" + bits);
+		if (index != null)
+			return index;
+		_pool.writeByte(6);
+		_pool.writeLong(bits);
+		return add("D" + bits, 2);
+	}
+
+	private int classRef(String name) throws IOException {
+		Integer index = find("C" + name);
+		if (index != null)
+			return index;
+		int utf8 = utf8(name);
+		_pool.writeByte(7);
+		_pool.writeShort(utf8);
+		return add("C" + name, 1);
+	}
+
+	private int string(String s) throws IOException {
+		Integer index = find("S" + s);
+		if (index != null)
+			return index;
+		int utf8 = utf8(s);
+		_pool.writeByte(8);
+		_pool.writeShort(utf8);
+		return add("S" + s, 1);
+	}
+
+	private int nameAndType(String name, String type) throws IOException {
+		String key = "N" + name + " " + type;
+		Integer index = find(key);
+		if (index != null)
+			return index;
+		int n = utf8(name), t = utf8(type);
+		_pool.writeByte(12);
+		_pool.writeShort(n);
+		_pool.writeShort(t);
+		return add(key, 1);
+	}
+
+	private int member(int tag, String owner, String name, String type) throws IOException {
+		String key = tag + owner + "." + name + " " + type;
+		Integer index = find(key);
+		if (index != null)
+			return index;
+		int c = classRef(owner), nt = nameAndType(name, type);
+		_pool.writeByte(tag);
+		_pool.writeShort(c);
+		_pool.writeShort(nt);
+		return add(key, 1);
+	}
+
+	private int fieldRef(String owner, String name, String type) throws IOException {
+		return member(9, owner, name, type);
+	}
+
+	private int methodRef(String owner, String name, String type) throws IOException {
+		return member(10, owner, name, type);
+	}
+
+	private int interfaceMethodRef(String owner, String name, String type) throws IOException {
+		return member(11, owner, name, type);
+	}
+
+	/**
+	 * The class file: a final class with the Nodes in a field, set by its
+	 * constructor, and execute.
+	 */
+	private byte[] toBytes() throws IOException {
+		int thisClass = classRef(_name), superClass = classRef(NODE);
+		int nodes = utf8("_nodes"), nodesType = utf8(NODES);
+		int init = utf8("<init>"), initType = utf8("(" + NODES + ")V");
+		int superInit = methodRef(NODE, "<init>", "()V");
+		int nodesField = fieldRef(_name, "_nodes", NODES);
+		int execute = utf8("execute"), executeType = utf8(EXECUTE);
+		int code = utf8("Code");
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(0xCAFEBABE);
+		out.writeShort(0);
+		out.writeShort(49);
+		out.writeShort(_poolSize);
+		_pool.flush();
+		_poolBytes.writeTo(out);
+		out.writeShort(0x0030); // ACC_FINAL | ACC_SUPER
+		out.writeShort(thisClass);
+		out.writeShort(superClass);
+		out.writeShort(0); // Interfaces.
+		out.writeShort(1); // Fields.
+		out.writeShort(0x0012); // ACC_PRIVATE | ACC_FINAL
+		out.writeShort(nodes);
+		out.writeShort(nodesType);
+		out.writeShort(0);
+		out.writeShort(2); // Methods.
+
+		byte[] constructor = {
+			(byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (superInit >> 8), (byte) superInit,
+			(byte) ALOAD_0, (byte) ALOAD_1, (byte) PUTFIELD, (byte) (nodesField >> 8), (byte) nodesField,
+			(byte) RETURN,
+		};
+		out.writeShort(0x0001); // ACC_PUBLIC
+		out.writeShort(init);
+		out.writeShort(initType);
+		out.writeShort(1);
+		writeCode(out, code, 2, 2, constructor, constructor.length);
+
+		out.writeShort(0); // Package-private, as Node.execute.
+		out.writeShort(execute);
+		out.writeShort(executeType);
+		out.writeShort(1);
+		writeCode(out, code, _maxStack, _locals, _code, _length);
+
+		out.writeShort(0); // Attributes.
+		return bytes.toByteArray();
+	}
+
+	private static void writeCode(DataOutputStream out, int name, int maxStack, int maxLocals,
+			byte[] code, int length) throws IOException {
+		out.writeShort(name);
+		out.writeInt(12 + length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(length);
+		out.write(code, 0, length);
+		out.writeShort(0); // Exception handlers.
+		out.writeShort(0); // Attributes.
+	}
+}
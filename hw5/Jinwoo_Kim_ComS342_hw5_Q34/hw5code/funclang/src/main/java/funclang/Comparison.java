@@ -0,0 +1,232 @@
+package funclang;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import funclang.Value.*;
+
+/**
+ * Comparisons of values: the ones done by =, < and >, and the equality of
+ * arguments that Memo uses for its keys.
+ *
+ * = compares numbers by value, strings and booleans by content, and lists
+ * and pairs by structure, element by element. < and > compare numbers by
+ * value, and strings and lists by length. Values of different kinds are
+ * never equal nor ordered.
+ *
+ * Lists are compared without recursion, so long and deeply nested lists
+ * are compared alike, and without allocating anything unless pairs are
+ * nested in pairs. Two pairs whose structural hashes are both known and
+ * differ are known to differ without looking at them, and the same value
+ * is equal to itself without being looked at.
+ */
+final class Comparison {
+
+	/**
+	 * Whether = holds for a and b.
+	 */
+	static boolean equal(Value a, Value b) {
+		return equal(a, b, false);
+	}
+
+	/**
+	 * Whether a and b are the same arguments for Memo: equal, except that
+	 * numbers are compared as Double.equals does, so that 0 and -0, which
+	 * = takes to be equal, are not, since results may tell them apart.
+	 */
+	static boolean same(Value a, Value b) {
+		return equal(a, b, true);
+	}
+
+	/**
+	 * Whether < holds for a and b.
+	 */
+	static boolean less(Value a, Value b) {
+		if (a instanceof NumVal && b instanceof NumVal)
+			return ((NumVal) a).v() < ((NumVal) b).v();
+		if (a instanceof StringVal && b instanceof StringVal)
+			return ((StringVal) a).v().length() < ((StringVal) b).v().length();
+		return shorter(a, b);
+	}
+
+	/**
+	 * Whether a and b are both lists and a is the shorter one.
+	 */
+	static boolean shorter(Value a, Value b) {
+		int first = lengthOf(a), second = lengthOf(b);
+		return first >= 0 && second >= 0 && first < second;
+	}
+
+	/**
+	 * Whether > holds for a and b.
+	 */
+	static boolean greater(Value a, Value b) {
+		return less(b, a);
+	}
+
+	private static int lengthOf(Value v) {
+		return v instanceof PairVal || v instanceof Null ? ListVal.length(v) : -1;
+	}
+
+	/**
+	 * Structural equality, walking along the rest of lists in a loop, and
+	 * keeping pairs nested in elements on a stack only created for them.
+	 */
+	private static boolean equal(Value a, Value b, boolean exact) {
+		Deque<Value> stack = null;
+		while (true) {
+			if (a != b) {
+				if (!(a instanceof PairVal && b instanceof PairVal)) {
+					if (!equalAtoms(a, b, exact))
+						return false;
+				} else {
+					PairVal p = (PairVal) a, q = (PairVal) b;
+					if (p.hash() != 0 && q.hash() != 0 && p.hash() != q.hash())
+						return false;
+					if (p instanceof ListVal && q instanceof ListVal) {
+						ListVal l = (ListVal) p, m = (ListVal) q;
+						if (l.length() != m.length())
+							return false;
+						for (int i = 0; i < l.length(); i++) {
+							Value x = l.get(i), y = m.get(i);
+							if (x == y)
+								continue;
+							if (x instanceof PairVal && y instanceof PairVal)
+								stack = push(stack, x, y);
+							else if (!equalAtoms(x, y, exact))
+								return false;
+						}
+					} else {
+						Value x = p.fst(), y = q.fst();
+						if (x instanceof PairVal && y instanceof PairVal) {
+							if (x != y)
+								stack = push(stack, x, y);
+						} else if (x != y && !equalAtoms(x, y, exact)) {
+							return false;
+						}
+						a = p.snd();
+						b = q.snd();
+						continue;
+					}
+				}
+			}
+			if (stack == null || stack.isEmpty())
+				return true;
+			b = stack.pop();
+			a = stack.pop();
+		}
+	}
+
+	private static Deque<Value> push(Deque<Value> stack, Value a, Value b) {
+		if (stack == null)
+			stack = new ArrayDeque<Value>();
+		stack.push(a);
+		stack.push(b);
+		return stack;
+	}
+
+	/**
+	 * Equality of values that are not both pairs. Functions and errors are
+	 * only equal to themselves.
+	 */
+	private static boolean equalAtoms(Value a, Value b, boolean exact) {
+		if (a instanceof NumVal && b instanceof NumVal) {
+			double x = ((NumVal) a).v(), y = ((NumVal) b).v();
+			return exact ? Double.compare(x, y) == 0 : x == y;
+		}
+		if (a instanceof BoolVal && b instanceof BoolVal)
+			return ((BoolVal) a).v() == ((BoolVal) b).v();
+		if (a instanceof StringVal && b instanceof StringVal)
+			return ((StringVal) a).v().equals(((StringVal) b).v());
+		if (a instanceof Null && b instanceof Null)
+			return true;
+		if (a instanceof UnitVal && b instanceof UnitVal)
+			return true;
+		return a == b;
+	}
+
+	/**
+	 * Hash of a value, structural for pairs, whose hashes hashPairs must
+	 * have computed. Values that = takes to be equal have equal hashes.
+	 */
+	static int hash(Value v) {
+		if (v instanceof PairVal)
+			return ((PairVal) v).hash();
+		if (v instanceof NumVal)
+			return ((NumVal) v).v() == 0 ? 0 : Double.hashCode(((NumVal) v).v());
+		if (v instanceof BoolVal)
+			return ((BoolVal) v).v() ? 1231 : 1237;
+		if (v instanceof StringVal)
+			return ((StringVal) v).v().hashCode();
+		if (v instanceof Null)
+			return 1;
+		if (v instanceof UnitVal)
+			return 2;
+		return System.identityHashCode(v);
+	}
+
+	/**
+	 * Computes the hash of pair, and of the pairs in it, without recursion.
+	 * Each pair keeps its hash, so a list is only hashed once, however many
+	 * times it is used. Returns false if the pair holds the lines of a file,
+	 * which are not read for this.
+	 */
+	static boolean hashPairs(PairVal pair) {
+		Deque<PairVal> stack = new ArrayDeque<PairVal>();
+		stack.push(pair);
+		while (!stack.isEmpty()) {
+			PairVal p = stack.peek();
+			if (p.hash() != 0) {
+				stack.pop();
+				continue;
+			}
+			if (p instanceof LazyPairVal)
+				return false;
+			if (p instanceof ListVal) {
+				hashElems((ListVal) p, stack);
+				continue;
+			}
+			boolean ready = true;
+			if (p.snd() instanceof PairVal && ((PairVal) p.snd()).hash() == 0) {
+				stack.push((PairVal) p.snd());
+				ready = false;
+			}
+			if (p.fst() instanceof PairVal && ((PairVal) p.fst()).hash() == 0) {
+				stack.push((PairVal) p.fst());
+				ready = false;
+			}
+			if (ready) {
+				stack.pop();
+				int hash = 31 * hash(p.fst()) + hash(p.snd());
+				p.setHash(hash != 0 ? hash : 1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hashes list as the chain of pairs holding the same elements would be
+	 * hashed, once the pairs among its elements have been: until then,
+	 * pushes them on stack.
+	 */
+	private static void hashElems(ListVal list, Deque<PairVal> stack) {
+		boolean ready = true;
+		for (int i = list.length() - 1; i >= 0; i--) {
+			Value elem = list.get(i);
+			if (elem instanceof PairVal && ((PairVal) elem).hash() == 0) {
+				stack.push((PairVal) elem);
+				ready = false;
+			}
+		}
+		if (!ready)
+			return;
+		stack.pop();
+		int hash = 1; // Of the empty list.
+		for (int i = list.length() - 1; i >= 0; i--) {
+			hash = 31 * hash(list.get(i)) + hash;
+			if (hash == 0)
+				hash = 1;
+		}
+		list.setHash(hash);
+	}
+}
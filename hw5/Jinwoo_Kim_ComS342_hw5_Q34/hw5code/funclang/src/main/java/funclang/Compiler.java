@@ -0,0 +1,718 @@
+package funclang;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.AST.*;
+import funclang.Env.*;
+import funclang.Value.*;
+
+/**
+ * An alternative execution engine: instead of walking the AST with the
+ * Evaluator on every run, a program is compiled once into a tree of Nodes
+ * whose execute methods already know which operation to perform, which
+ * children to run and where each variable lives.
+ *
+ * The compiled tree produces the same values as the Evaluator, with which
+ * it shares the global environment. Default arguments outside formals,
+ * the one expression that is not compiled, are executed by the Evaluator
+ * itself.
+ * A compiler is tied to its Evaluator, so it is used by one thread at a
+ * time; the sessions of a FuncLangEngine each have their own.
+ *
+ * For tiered execution, the bodies of functions the Evaluator found hot
+ * can instead be compiled into JVM classes by the ClassEmitter.
+ *
+ */
+public class Compiler implements AST.Visitor<Compiler.Node>, NativeFunVal.Caller {
+
+	/**
+	 * A compiled expression.
+	 */
+	static abstract class Node {
+		abstract Value execute(Env env);
+
+		/**
+		 * Executes a node whose value is expected to be a number. Numeric
+		 * nodes override this to compute the result without boxing it.
+		 */
+		double executeDouble(Env env) {
+			return ((NumVal) execute(env)).v();
+		}
+	}
+
+	/**
+	 * A number literal.
+	 */
+	private static final class NumConst extends Node {
+		private final double _v;
+		private final NumVal _val;
+		NumConst(double v) {
+			_v = v;
+			_val = new NumVal(v);
+		}
+		Value execute(Env env) { return _val; }
+		double executeDouble(Env env) { return _v; }
+	}
+
+	/**
+	 * A call to be performed: the frame of the callee, together with the
+	 * callee. Returned by a call in tail position instead of performing it,
+	 * so that the enclosing run loop can run it without growing the Java
+	 * stack.
+	 */
+	private static final class TailCall extends FrameEnv implements Value {
+		private final FunVal _operator;
+		TailCall(FunVal operator, Value[] actuals) {
+			super(operator.env(), operator.names(), actuals);
+			_operator = operator;
+		}
+		public String tostring() { return ""; }
+	}
+
+	private final Evaluator _evaluator;
+	private final Printer.Formatter ts = new Printer.Formatter();
+	private boolean _tail = false; // Is the expression being compiled in tail position?
+	private Env _global; // Where the free variables of the code being compiled live.
+	private boolean _memoize = false;
+	private boolean _emit = false; // Are function bodies compiled by the ClassEmitter?
+	// Bodies of functions from another global environment (a shared prelude),
+	// keyed by their formals. They are compiled by this compiler for itself
+	// rather than in the function value, which other compilers also run.
+	private final Map<List<Exp>, Node> _foreign = new IdentityHashMap<List<Exp>, Node>();
+	// Bodies of functions from this global environment that were not created
+	// by compiled code, keyed by their formals, so that the functions made by
+	// one lambda share one body, and one class if it is emitted.
+	private final Map<List<Exp>, Node> _bodies = new IdentityHashMap<List<Exp>, Node>();
+
+	public Compiler(Evaluator evaluator) {
+		_evaluator = evaluator;
+	}
+
+	Value valueOf(Program p) {
+		return compile(p).execute(_evaluator.globalEnv());
+	}
+
+	/**
+	 * Enables memoizing the functions that Memo finds worth it, besides
+	 * those memoized by the program.
+	 */
+	public void setMemoize(boolean memoize) {
+		_memoize = memoize;
+	}
+
+	/**
+	 * Enables compiling the bodies of functions into JVM classes, where the
+	 * ClassEmitter can, rather than into Nodes. Programs are still compiled
+	 * into Nodes.
+	 */
+	void setEmitClasses(boolean emit) {
+		_emit = emit;
+	}
+
+	/**
+	 * Compiles a program. The result can be executed any number of times
+	 * against the global environment.
+	 */
+	public Node compile(Program p) {
+		Resolver.resolve(p);
+		_global = _evaluator.globalEnv();
+		return (Node) p.accept(this, null);
+	}
+
+	Node compile(Exp e, boolean tail) {
+		boolean saved = _tail;
+		_tail = tail;
+		try {
+			return (Node) e.accept(this, null);
+		} finally {
+			_tail = saved;
+		}
+	}
+
+	private Node[] compileAll(List<? extends Exp> exps) {
+		Node[] nodes = new Node[exps.size()];
+		for (int i = 0; i < nodes.length; i++)
+			nodes[i] = compile(exps.get(i), false);
+		return nodes;
+	}
+
+	/**
+	 * Body of a function value, compiled on its first call if the function
+	 * was not created by compiled code.
+	 */
+	private Node code(FunVal operator) {
+		Node code = operator.code(this);
+		if (code == null) {
+			Env saved = _global;
+			_global = Env.root(operator.env());
+			try {
+				if (_global == _evaluator.globalEnv()) {
+					code = _bodies.get(operator.formals());
+					if (code == null) {
+						code = compileBody(operator.body());
+						_bodies.put(operator.formals(), code);
+					}
+					operator.setCode(this, code);
+				} else {
+					code = _foreign.get(operator.formals());
+					if (code == null) {
+						code = compileBody(operator.body());
+						_foreign.put(operator.formals(), code);
+					}
+				}
+			} finally {
+				_global = saved;
+			}
+		}
+		return code;
+	}
+
+	private Node compileBody(Exp body) {
+		Node code = _emit ? ClassEmitter.emit(body, this) : null;
+		return code != null ? code : compile(body, true);
+	}
+
+	/**
+	 * Calls operator, continuing with any tail call its body returns. The
+	 * caller hands actuals over: it is cleared, so that a caller's frame
+	 * does not keep the arguments (say, the head of a long list) alive for
+	 * as long as the call runs.
+	 */
+	Value invoke(FunVal operator, Value[] actuals) {
+		return run(new TailCall(operator, take(actuals)));
+	}
+
+	@Override
+	public Value call(FunVal operator, Value[] actuals) {
+		return invoke(operator, actuals);
+	}
+
+	@Override
+	public Evaluator evaluator() {
+		return _evaluator;
+	}
+
+	private static Value[] take(Value[] actuals) {
+		Value[] own = actuals.clone();
+		Arrays.fill(actuals, null);
+		return own;
+	}
+
+	/**
+	 * Performs call, and any tail call it returns, until a value is
+	 * returned. Only the call being run is referenced from this frame.
+	 * Not private, since a synthetic accessor's frame would also hold call.
+	 */
+	Value run(Value call) {
+		while (call instanceof TailCall) {
+			TailCall fun_env = (TailCall) call;
+			call = null;
+			Memo memo = Memo.of(fun_env._operator, _memoize);
+			call = memo != null ? memoized(memo, fun_env) : code(fun_env._operator).execute(fun_env);
+		}
+		return call;
+	}
+
+	/**
+	 * Performs a call to a memoized function, unless memo has its result.
+	 */
+	private Value memoized(Memo memo, TailCall fun_env) {
+		Memo.Key key = Memo.key(fun_env.vals());
+		Value result = key != null ? memo.get(key, _evaluator._memoStats) : null;
+		if (result == null) {
+			result = run(code(fun_env._operator).execute(fun_env));
+			if (key != null)
+				memo.put(key, result);
+		}
+		return result;
+	}
+
+	public Node visit(Program p, Env env) {
+		final Node[] decls = compileAll(p.decls());
+		final Node body = compile(p.e(), false);
+		return new Node() {
+			Value execute(Env env) {
+				try {
+					for (Node decl : decls)
+						decl.execute(env);
+					return body.execute(env);
+				} catch (ClassCastException e) {
+					return new DynamicError(e.getMessage());
+				}
+			}
+		};
+	}
+
+	public Node visit(DefineDecl d, Env env) {
+		final String name = d.name();
+		final Node value = compile(d.value_exp(), false);
+		final GlobalEnv global = _evaluator.globalEnv();
+		return new Node() {
+			Value execute(Env env) {
+				global.extend(name, value.execute(global));
+				return new UnitVal();
+			}
+		};
+	}
+
+	public Node visit(NumExp e, Env env) {
+		return new NumConst(e.v());
+	}
+
+	public Node visit(StrExp e, Env env) {
+		final StringVal val = new StringVal(e.v());
+		return new Node() {
+			Value execute(Env env) { return val; }
+		};
+	}
+
+	public Node visit(BoolExp e, Env env) {
+		final BoolVal val = new BoolVal(e.v());
+		return new Node() {
+			Value execute(Env env) { return val; }
+		};
+	}
+
+	public Node visit(UnitExp e, Env env) {
+		return new Node() {
+			Value execute(Env env) { return new UnitVal(); }
+		};
+	}
+
+	public Node visit(VarExp e, Env env) {
+		final int depth = e.depth();
+		final int slot = e.slot();
+		if (depth == 0) {
+			return new Node() {
+				Value execute(Env env) {
+					if (env instanceof FrameEnv)
+						return ((FrameEnv) env).vals()[slot];
+					return env.get(0, slot);
+				}
+			};
+		}
+		if (depth > 0) {
+			return new Node() {
+				Value execute(Env env) { return env.get(depth, slot); }
+			};
+		}
+		final String name = e.name();
+		final Env global = _global;
+		return new Node() {
+			Value execute(Env env) { return global.get(name); }
+		};
+	}
+
+	/*
+	 * States of a self-specializing node. A node starts uninitialized, moves
+	 * to the state matching the operand values it sees on its first run, and
+	 * goes back to the generic state for good once an operand of another
+	 * type shows up. Arithmetic only specializes for numbers.
+	 */
+	private static final int UNINITIALIZED = 0;
+	private static final int NUMBERS = 1;
+	private static final int STRINGS = 2;
+	private static final int LISTS = 3;
+	private static final int GENERIC = 4;
+
+	/**
+	 * Arithmetic over two or more operands, computed on doubles: operands
+	 * that are themselves arithmetic or number literals are run with
+	 * executeDouble, so nested arithmetic only boxes its final result.
+	 *
+	 * While specialized for numbers the node tests the other operands with
+	 * instanceof. The generic version casts them, so a non-number fails with
+	 * the same ClassCastException as in the Evaluator.
+	 */
+	private static abstract class ArithNode extends Node {
+		private final Node[] _operands;
+		private final boolean[] _unboxed;
+		private final boolean _from_first; // Sub and Div start from their first operand,
+		private final double _unit;        // Add and Mult from their unit.
+		private int _state = UNINITIALIZED;
+
+		ArithNode(Node[] operands, boolean from_first, double unit) {
+			_operands = operands;
+			_unboxed = new boolean[operands.length];
+			for (int i = 0; i < operands.length; i++)
+				_unboxed[i] = operands[i] instanceof ArithNode || operands[i] instanceof NumConst;
+			_from_first = from_first;
+			_unit = unit;
+		}
+
+		abstract double apply(double left, double right);
+
+		Value execute(Env env) {
+			return NumVal.of(executeDouble(env));
+		}
+
+		double executeDouble(Env env) {
+			switch (_state) {
+			case NUMBERS:
+				return executeNumbers(env);
+			case GENERIC:
+				return executeGeneric(env);
+			default:
+				_state = GENERIC;
+				double result = executeGeneric(env);
+				_state = NUMBERS; // Every operand was a number.
+				return result;
+			}
+		}
+
+		private double executeNumbers(Env env) {
+			if (_operands.length == 2)
+				return step(1, step(0, _unit, number(0, env)), number(1, env));
+			double result = _unit;
+			for (int i = 0; i < _operands.length; i++)
+				result = step(i, result, number(i, env));
+			return result;
+		}
+
+		private double number(int i, Env env) {
+			if (_unboxed[i])
+				return _operands[i].executeDouble(env);
+			Value operand = _operands[i].execute(env);
+			if (operand instanceof NumVal)
+				return ((NumVal) operand).v();
+			_state = GENERIC; // Deoptimize, then fail like the generic version.
+			return ((NumVal) operand).v();
+		}
+
+		private double executeGeneric(Env env) {
+			double result = _unit;
+			for (int i = 0; i < _operands.length; i++)
+				result = step(i, result, ((NumVal) _operands[i].execute(env)).v());
+			return result;
+		}
+
+		private double step(int i, double result, double operand) {
+			if (i == 0 && _from_first)
+				return operand;
+			return apply(result, operand);
+		}
+	}
+
+	public Node visit(AddExp e, Env env) {
+		return new ArithNode(compileAll(e.all()), false, 0) {
+			double apply(double left, double right) { return left + right; }
+		};
+	}
+
+	public Node visit(SubExp e, Env env) {
+		return new ArithNode(compileAll(e.all()), true, 0) {
+			double apply(double left, double right) { return left - right; }
+		};
+	}
+
+	public Node visit(MultExp e, Env env) {
+		return new ArithNode(compileAll(e.all()), false, 1) {
+			double apply(double left, double right) { return left * right; }
+		};
+	}
+
+	public Node visit(DivExp e, Env env) {
+		return new ArithNode(compileAll(e.all()), true, 0) {
+			double apply(double left, double right) { return left / right; }
+		};
+	}
+
+	public Node visit(LetExp e, Env env) {
+		final String[] names = e.names().toArray(new String[0]);
+		final Node[] values = compileAll(e.value_exps());
+		final Node body = compile(e.body(), _tail);
+		return new Node() {
+			Value execute(Env env) {
+				Value[] vals = new Value[values.length];
+				for (int i = 0; i < vals.length; i++)
+					vals[i] = values[i].execute(env);
+				return body.execute(new FrameEnv(env, names, vals));
+			}
+		};
+	}
+
+	public Node visit(LambdaExp e, Env env) {
+		final LambdaExp lambda = e;
+		final Node body = compile(e.body(), true);
+		final String[] names = e.captureNames();
+		final Node[] captures = compileAll(Arrays.asList(e.captures()));
+		return new Node() {
+			Value execute(Env env) {
+				Value[] vals = new Value[captures.length];
+				for (int i = 0; i < vals.length; i++)
+					vals[i] = captures[i].execute(env);
+				FunVal fun = new FunVal(Env.closure(env, names, vals), lambda.formals(), lambda.body());
+				fun.setCode(Compiler.this, body);
+				return fun;
+			}
+		};
+	}
+
+	public Node visit(CallExp e, Env env) {
+		final CallExp call = e;
+		final boolean tail = _tail;
+		final Node operator = compile(e.operator(), false);
+		final Node[] operands = compileAll(e.operands());
+		return new Node() {
+			Value execute(Env env) {
+				Value result = operator.execute(env);
+				if (result instanceof NativeFunVal)
+					return apply((NativeFunVal) result, env);
+				if (!(result instanceof FunVal))
+					return new DynamicError("Operator not a function in call " + ts.visit(call, env));
+				if (tail)
+					return bind((FunVal) result, env);
+				// The arguments are not kept in a local, see run.
+				return run(bind((FunVal) result, env));
+			}
+
+			/**
+			 * Calls a native function with the values of the operands.
+			 */
+			private Value apply(NativeFunVal fun, Env env) {
+				Value[] args = new Value[operands.length];
+				for (int i = 0; i < operands.length; i++)
+					args[i] = operands[i].execute(env);
+				if (args.length != fun.arity())
+					return new DynamicError("Argument mismatch in call " + ts.visit(call, env));
+				return fun.apply(args, Compiler.this);
+			}
+
+			/**
+			 * Evaluates the operands into a TailCall to fun, or returns a
+			 * DynamicError if their number does not fit.
+			 */
+			private Value bind(FunVal fun, Env env) {
+				CallSite.Target target = call.site().lookup(fun);
+				if (operands.length > target.arity()) {
+					for (Node operand : operands)
+						operand.execute(env);
+					return new DynamicError("Argument mismatch in call " + ts.visit(call, env));
+				}
+				Value[] actuals = new Value[target.arity()];
+				for (int i = 0; i < operands.length; i++)
+					actuals[i] = operands[i].execute(env);
+				if (!target.fill(actuals, operands.length))
+					return new DynamicError("Argument mismatch in call " + ts.visit(call, env));
+				return new TailCall(fun, actuals);
+			}
+		};
+	}
+
+	public Node visit(IfExp e, Env env) {
+		final IfExp exp = e;
+		final Node conditional = compile(e.conditional(), false);
+		final Node then_exp = compile(e.then_exp(), _tail);
+		final Node else_exp = compile(e.else_exp(), _tail);
+		return new Node() {
+			Value execute(Env env) {
+				Value result = conditional.execute(env);
+				if (!(result instanceof BoolVal))
+					return new DynamicError("Condition not a boolean in expression " + ts.visit(exp, env));
+				if (((BoolVal) result).v())
+					return then_exp.execute(env);
+				return else_exp.execute(env);
+			}
+		};
+	}
+
+	public Node visit(CarExp e, Env env) {
+		final Node arg = compile(e.arg(), false);
+		return new Node() {
+			Value execute(Env env) { return ((PairVal) arg.execute(env)).fst(); }
+		};
+	}
+
+	public Node visit(CdrExp e, Env env) {
+		final Node arg = compile(e.arg(), false);
+		return new Node() {
+			Value execute(Env env) { return ((PairVal) arg.execute(env)).snd(); }
+		};
+	}
+
+	public Node visit(ConsExp e, Env env) {
+		final Node fst = compile(e.fst(), false);
+		final Node snd = compile(e.snd(), false);
+		return new Node() {
+			Value execute(Env env) {
+				Value first = fst.execute(env);
+				Value second = snd.execute(env);
+				return new PairVal(first, second);
+			}
+		};
+	}
+
+	public Node visit(ListExp e, Env env) {
+		final Node[] elems = compileAll(e.elems());
+		return new Node() {
+			Value execute(Env env) {
+				if (elems.length == 0)
+					return new Null();
+				Value[] vals = new Value[elems.length];
+				for (int i = 0; i < vals.length; i++)
+					vals[i] = elems[i].execute(env);
+				return new ListVal(vals);
+			}
+		};
+	}
+
+	public Node visit(FusedExp e, Env env) {
+		final FusedExp exp = e;
+		final Node original = compile(e.original(), _tail);
+		List<CallExp> stages = e.stages();
+		final Node[][] args = new Node[stages.size()][];
+		for (int i = 0; i < args.length; i++) {
+			List<Exp> operands = stages.get(i).operands();
+			args[i] = compileAll(operands.subList(0, operands.size() - 1));
+		}
+		final Node source = compile(e.source(), false);
+		return new Node() {
+			Value execute(Env env) {
+				NativeFunVal[] stages = Library.stages(exp, env);
+				if (stages == null)
+					return original.execute(env);
+				Value[][] vals = new Value[stages.length][];
+				for (int i = stages.length - 1; i >= 0; i--) { // The outermost call's operands first.
+					vals[i] = new Value[args[i].length];
+					for (int j = 0; j < vals[i].length; j++)
+						vals[i][j] = args[i][j].execute(env);
+				}
+				return Library.fuse(stages, vals, source.execute(env), Compiler.this);
+			}
+		};
+	}
+
+	public Node visit(NullExp e, Env env) {
+		final Node arg = compile(e.arg(), false);
+		return new Node() {
+			Value execute(Env env) { return BoolVal.of(arg.execute(env) instanceof Null); }
+		};
+	}
+
+	/**
+	 * Expressions that are left to the Evaluator.
+	 */
+	private Node interpreted(final Exp e) {
+		return new Node() {
+			Value execute(Env env) { return (Value) e.accept(_evaluator, env); }
+		};
+	}
+
+	/**
+	 * Comparison of the values of two operands, specialized for the kind of
+	 * values it sees on its first run: numbers, tested on doubles, strings
+	 * or lists. While specialized it only checks that both operands are of
+	 * that kind, and deoptimizes to the generic version, testing them as the
+	 * Evaluator does, the first time they are not. Operands of different
+	 * kinds go straight to the generic version.
+	 */
+	private static abstract class CompareNode extends Node {
+		private final Node _first;
+		private final Node _second;
+		private int _state = UNINITIALIZED;
+
+		CompareNode(Node first, Node second) {
+			_first = first;
+			_second = second;
+		}
+
+		abstract boolean test(double first, double second);
+		abstract boolean test(String first, String second);
+		/** Both first and second are pairs or empty lists. */
+		abstract boolean testLists(Value first, Value second);
+		abstract boolean test(Value first, Value second);
+
+		Value execute(Env env) {
+			Value first = _first.execute(env);
+			Value second = _second.execute(env);
+			if (_state == UNINITIALIZED)
+				_state = kind(first) == kind(second) ? kind(first) : GENERIC;
+			switch (_state) {
+			case NUMBERS:
+				if (first instanceof NumVal && second instanceof NumVal)
+					return BoolVal.of(test(((NumVal) first).v(), ((NumVal) second).v()));
+				break;
+			case STRINGS:
+				if (first instanceof StringVal && second instanceof StringVal)
+					return BoolVal.of(test(((StringVal) first).v(), ((StringVal) second).v()));
+				break;
+			case LISTS:
+				if (kind(first) == LISTS && kind(second) == LISTS)
+					return BoolVal.of(testLists(first, second));
+				break;
+			default:
+				return BoolVal.of(test(first, second));
+			}
+			_state = GENERIC; // Deoptimize.
+			return BoolVal.of(test(first, second));
+		}
+
+		private static int kind(Value v) {
+			if (v instanceof NumVal)
+				return NUMBERS;
+			if (v instanceof StringVal)
+				return STRINGS;
+			if (v instanceof PairVal || v instanceof Null)
+				return LISTS;
+			return GENERIC;
+		}
+	}
+
+	private Node constant(final Value val) {
+		return new Node() {
+			Value execute(Env env) { return val; }
+		};
+	}
+
+	/*
+	 * Comparisons of two literals become constants.
+	 */
+
+	public Node visit(LessExp e, Env env) {
+		Exp first = e.first_exp(), second = e.second_exp();
+		if (first instanceof NumExp && second instanceof NumExp)
+			return constant(new BoolVal(((NumExp) first).v() < ((NumExp) second).v()));
+		if (first instanceof StrExp && second instanceof StrExp)
+			return constant(new BoolVal(((StrExp) first).v().length() < ((StrExp) second).v().length()));
+		return new CompareNode(compile(first, false), compile(second, false)) {
+			boolean test(double first, double second) { return first < second; }
+			boolean test(String first, String second) { return first.length() < second.length(); }
+			boolean testLists(Value first, Value second) { return Comparison.shorter(first, second); }
+			boolean test(Value first, Value second) { return Comparison.less(first, second); }
+		};
+	}
+
+	public Node visit(GreaterExp e, Env env) {
+		Exp first = e.first_exp(), second = e.second_exp();
+		if (first instanceof NumExp && second instanceof NumExp)
+			return constant(new BoolVal(((NumExp) first).v() > ((NumExp) second).v()));
+		if (first instanceof StrExp && second instanceof StrExp)
+			return constant(new BoolVal(((StrExp) first).v().length() > ((StrExp) second).v().length()));
+		return new CompareNode(compile(first, false), compile(second, false)) {
+			boolean test(double first, double second) { return first > second; }
+			boolean test(String first, String second) { return first.length() > second.length(); }
+			boolean testLists(Value first, Value second) { return Comparison.shorter(second, first); }
+			boolean test(Value first, Value second) { return Comparison.greater(first, second); }
+		};
+	}
+
+	public Node visit(EqualExp e, Env env) {
+		Exp first = e.first_exp(), second = e.second_exp();
+		if (first instanceof NumExp && second instanceof NumExp)
+			return constant(new BoolVal(((NumExp) first).v() == ((NumExp) second).v()));
+		if (first instanceof StrExp && second instanceof StrExp)
+			return constant(new BoolVal(((StrExp) first).v().equals(((StrExp) second).v())));
+		if (first instanceof BoolExp && second instanceof BoolExp)
+			return constant(new BoolVal(((BoolExp) first).v() == ((BoolExp) second).v()));
+		return new CompareNode(compile(first, false), compile(second, false)) {
+			boolean test(double first, double second) { return first == second; }
+			boolean test(String first, String second) { return first.equals(second); }
+			boolean testLists(Value first, Value second) { return Comparison.equal(first, second); }
+			boolean test(Value first, Value second) { return Comparison.equal(first, second); }
+		};
+	}
+	public Node visit(ArgExp e, Env env) { return interpreted(e); }
+}
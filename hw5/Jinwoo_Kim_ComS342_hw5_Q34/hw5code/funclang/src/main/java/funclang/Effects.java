@@ -0,0 +1,254 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.AST.*;
+import funclang.Env.GlobalEnv;
+import funclang.Value.FunVal;
+import funclang.Value.NativeFunVal;
+
+/**
+ * Decides which operand lists the Evaluator may evaluate in parallel.
+ *
+ * The only effects in FuncLang are reading files and evaluating program
+ * text, which may define variables; everything else computes a value from
+ * values. Both are done by native functions, and natives say whether they
+ * are pure: those calling functions they are given, such as map, are
+ * taken not to be. So operands can run in any order, and at the same
+ * time, if nothing they can call reads or evaluates anything: their
+ * values, and the first error in operand order, are then the same as when
+ * they are evaluated one after another.
+ *
+ * What an operand list calls is only partly known before it runs. The
+ * analysis of the expressions, done once per list, finds the variables
+ * naming the functions it calls. Those are looked up each time the list is
+ * about to run, and the functions they name are analyzed the same way,
+ * following the calls in their bodies. Whether a function is free of
+ * effects is cached until the next definition. A call to anything but a
+ * variable bound outside the list, such as the result of another call,
+ * makes the list run sequentially.
+ *
+ * The cost of an expression is estimated from its size, with every call
+ * counting as CALL_COST. A list is worth running in parallel when its
+ * operands, except for the most costly one, together cost at least
+ * THRESHOLD, i.e. when there is enough work to do besides the longest task.
+ */
+final class Effects {
+	static final int CALL_COST = 100;
+	static final int THRESHOLD = 100;
+
+	// What is cached in a FunVal about calls to it.
+	private static final int PURE = 1; // They can have no effect.
+	private static final int SEVERAL_CALLS = 2; // The body makes more than one call.
+
+	/**
+	 * What is known about an expression, or a list of them, before it runs.
+	 * Immutable, so it can be shared between threads running the same
+	 * program.
+	 */
+	static final class Summary {
+		private final boolean _sequential; // Has effects, unknown calls or too little work.
+		private final VarExp[] _callees; // Variables naming the functions called,
+		private final int[] _frames;     // and the frames entered before each.
+
+		private Summary(boolean sequential, List<VarExp> callees, List<Integer> frames) {
+			_sequential = sequential;
+			_callees = callees.toArray(new VarExp[callees.size()]);
+			_frames = new int[frames.size()];
+			for (int i = 0; i < _frames.length; i++)
+				_frames[i] = frames.get(i);
+		}
+	}
+
+	/**
+	 * Whether the Evaluator may evaluate operands, the operands of e, in
+	 * parallel in env.
+	 */
+	static boolean parallel(Exp e, List<Exp> operands, Env env) {
+		Summary summary = summary(e);
+		if (summary == null) {
+			summary = operands(operands);
+			setSummary(e, summary);
+		}
+		return !summary._sequential && callsArePure(summary, env, null);
+	}
+
+	private static Summary summary(Exp e) {
+		if (e instanceof CompoundArithExp)
+			return ((CompoundArithExp) e).effects();
+		if (e instanceof ListExp)
+			return ((ListExp) e).effects();
+		return ((CallExp) e).effects();
+	}
+
+	private static void setSummary(Exp e, Summary summary) {
+		if (e instanceof CompoundArithExp)
+			((CompoundArithExp) e).setEffects(summary);
+		else if (e instanceof ListExp)
+			((ListExp) e).setEffects(summary);
+		else
+			((CallExp) e).setEffects(summary);
+	}
+
+	private static Summary operands(List<Exp> operands) {
+		Walk walk = new Walk();
+		int total = 0, max = 0;
+		for (Exp operand : operands) {
+			int before = walk._cost;
+			walk.walk(operand, 0);
+			int cost = walk._cost - before;
+			total += cost;
+			max = Math.max(max, cost);
+		}
+		return new Summary(walk._opaque || total - max < THRESHOLD, walk._callees, walk._frames);
+	}
+
+	/**
+	 * A lambda expression being walked, and the number of frames entered
+	 * where it is evaluated.
+	 */
+	private static final class Lambda {
+		private final LambdaExp _exp;
+		private final int _frames;
+		private final Lambda _outer;
+		Lambda(LambdaExp exp, int frames, Lambda outer) {
+			_exp = exp;
+			_frames = frames;
+			_outer = outer;
+		}
+	}
+
+	/**
+	 * Collects what a Summary holds by walking expressions, counting the
+	 * frames entered on the way, as the Resolver does.
+	 */
+	private static final class Walk {
+		private boolean _opaque = false; // Has effects or calls that are not known in advance.
+		private final List<VarExp> _callees = new ArrayList<VarExp>();
+		private final List<Integer> _frames = new ArrayList<Integer>();
+		private int _cost = 0;
+		private int _calls = 0;
+
+		void walk(Exp e, int frames) {
+			walk(e, frames, null);
+		}
+
+		private void walk(Exp e, int frames, Lambda lambda) {
+			_cost++;
+			if (e instanceof LetExp) {
+				LetExp let = (LetExp) e;
+				for (Exp value_exp : let.value_exps())
+					walk(value_exp, frames, lambda);
+				walk(let.body(), frames + 1, lambda);
+				return;
+			}
+			if (e instanceof LambdaExp) {
+				// The body's frames are its formals and then its captures.
+				walk(((LambdaExp) e).body(), 1, new Lambda((LambdaExp) e, frames, lambda));
+				return;
+			}
+			if (e instanceof CallExp) {
+				_cost += CALL_COST;
+				_calls++;
+				Exp operator = ((CallExp) e).operator();
+				if (operator instanceof VarExp)
+					callee((VarExp) operator, frames, lambda);
+				else if (!(operator instanceof LambdaExp))
+					_opaque = true; // Computed.
+			}
+			for (Exp child : Optimizer.children(e))
+				walk(child, frames, lambda);
+		}
+
+		/**
+		 * Records a call to var. A variable captured by a lambda being
+		 * walked is followed to where the lambda captures it from.
+		 */
+		private void callee(VarExp var, int frames, Lambda lambda) {
+			while (lambda != null && var.depth() >= frames) {
+				VarExp[] captures = lambda._exp.captures();
+				if (captures == null) {
+					_opaque = true; // Not resolved.
+					return;
+				}
+				var = captures[var.slot()];
+				frames = lambda._frames;
+				lambda = lambda._outer;
+			}
+			if (var.depth() >= frames || var.depth() < 0) {
+				_callees.add(var); // Bound outside what is walked, or global.
+				_frames.add(frames);
+			} else {
+				_opaque = true; // Bound inside.
+			}
+		}
+	}
+
+	/**
+	 * Whether the functions called by what summary describes have no
+	 * effects, when the variables naming them are looked up in env.
+	 * Functions whose analysis is under way are taken to have none, which
+	 * holds unless something else they call has effects.
+	 */
+	private static boolean callsArePure(Summary summary, Env env, Map<FunVal, Boolean> visiting) {
+		for (int i = 0; i < summary._callees.length; i++) {
+			Value callee;
+			try {
+				callee = lookup(summary._callees[i], summary._frames[i], env);
+			} catch (Env.LookupException e) {
+				continue; // Calling it is an error, not an effect.
+			}
+			if (callee instanceof FunVal && !pure((FunVal) callee, visiting))
+				return false;
+			if (callee instanceof NativeFunVal && !((NativeFunVal) callee).pure())
+				return false;
+		}
+		return true;
+	}
+
+	private static Value lookup(VarExp var, int frames, Env env) {
+		if (var.depth() < 0)
+			return env.get(var.name());
+		return env.get(var.depth() - frames, var.slot());
+	}
+
+	/**
+	 * Whether calling f can have no effect. Only results found while no
+	 * other function was under analysis, or showing an effect, are cached:
+	 * others rest on assumptions about the functions under analysis.
+	 */
+	static boolean pure(FunVal f, Map<FunVal, Boolean> visiting) {
+		long version = GlobalEnv.version(f.env());
+		int cached = f.effects(version);
+		if (cached >= 0)
+			return (cached & PURE) != 0;
+		if (visiting != null && visiting.containsKey(f))
+			return true;
+		boolean top = visiting == null;
+		if (top)
+			visiting = new IdentityHashMap<FunVal, Boolean>();
+		visiting.put(f, Boolean.TRUE);
+		Walk walk = new Walk();
+		walk.walk(f.body(), 1);
+		boolean pure = !walk._opaque
+				&& callsArePure(new Summary(false, walk._callees, walk._frames), f.env(), visiting);
+		visiting.remove(f);
+		if (top || !pure)
+			f.setEffects(version, (pure ? PURE : 0) | (walk._calls > 1 ? SEVERAL_CALLS : 0));
+		return pure;
+	}
+
+	/**
+	 * Whether f is worth memoizing: calls to it can have no effect, and its
+	 * body makes more than one call, so that calls may repeat.
+	 */
+	static boolean memoizable(FunVal f) {
+		if (!pure(f, null))
+			return false;
+		int cached = f.effects(GlobalEnv.version(f.env()));
+		return cached >= 0 && (cached & SEVERAL_CALLS) != 0;
+	}
+}
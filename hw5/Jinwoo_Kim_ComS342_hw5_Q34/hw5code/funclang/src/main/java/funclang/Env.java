@@ -8,8 +8,38 @@ package funclang;
  */
 public interface Env {
 	Value get (String search_var);
+	/**
+	 * Looks up a variable by its lexical address, as computed by the
+	 * {@link Resolver}: depth counts frames outward from this one, slot is
+	 * the position of the variable within that frame.
+	 */
+	Value get (int depth, int slot);
 	boolean isEmpty();
 
+	/**
+	 * The global environment at the end of env's chain of frames.
+	 */
+	static Env root(Env env) {
+		while (true) {
+			if (env instanceof FrameEnv)
+				env = ((FrameEnv) env).saved_env();
+			else
+				return env;
+		}
+	}
+
+	/**
+	 * The environment of a function value created in env by a lambda
+	 * expression with the given captures: a frame holding their values,
+	 * over the global environment, or the global environment itself if
+	 * there are none.
+	 */
+	static Env closure(Env env, String[] names, Value[] vals) {
+		if (vals.length == 0)
+			return root(env);
+		return new FrameEnv(root(env), names, vals);
+	}
+
 	@SuppressWarnings("serial")
 	static public class LookupException extends RuntimeException {
 		LookupException(String message){
@@ -21,43 +51,102 @@ public interface Env {
 		public Value get (String search_var) {
 			throw new LookupException("No binding found for name: " + search_var);
 		}
+		public Value get (int depth, int slot) {
+			throw new LookupException("No frame found at depth: " + depth);
+		}
 		public boolean isEmpty() { return true; }
 	}
 
-	static public class ExtendEnv implements Env {
-		private Env _saved_env;
-		private String _var;
-		private Value _val;
-		public ExtendEnv(Env saved_env, String var, Value val){
+	/**
+	 * A frame of variables bound together by one let expression or one call,
+	 * stored in a fixed-size array and addressed by slot.
+	 */
+	static public class FrameEnv implements Env {
+		private final Env _saved_env;
+		private final String[] _vars;
+		private final Value[] _vals;
+		public FrameEnv(Env saved_env, String[] vars, Value[] vals){
 			_saved_env = saved_env;
-			_var = var;
-			_val = val;
+			_vars = vars;
+			_vals = vals;
 		}
-		public synchronized Value get (String search_var) {
-			if (search_var.equals(_var))
-				return _val;
+		public Value get (String search_var) {
+			for (int slot = _vars.length - 1; slot >= 0; slot--)
+				if (search_var.equals(_vars[slot]))
+					return _vals[slot];
 			return _saved_env.get(search_var);
 		}
+		public Value get (int depth, int slot) {
+			Env env = this;
+			while (depth > 0 && env instanceof FrameEnv) {
+				env = ((FrameEnv) env)._saved_env;
+				depth--;
+			}
+			if (env instanceof FrameEnv)
+				return ((FrameEnv) env)._vals[slot];
+			return env.get(depth, slot);
+		}
 		public boolean isEmpty() { return false; }
 		public Env saved_env() { return _saved_env; }
-		public String var() { return _var; }
-		public Value val() { return _val; }
+		public String[] vars() { return _vars; }
+		public Value[] vals() { return _vals; }
 	}
 
+	/**
+	 * The global environment is the only mutable one: define adds to it.
+	 * It is backed by a concurrent map so that lookups never take a lock.
+	 *
+	 * A global environment may be layered over a parent, such as the prelude
+	 * shared by the sessions of a {@link FuncLangEngine}. Lookups fall back to
+	 * the parent, while define only ever adds to this layer, so a definition
+	 * shadows the parent's binding without changing what others see.
+	 */
 	static public class GlobalEnv implements Env {
-		private java.util.Hashtable<String, Value> map;
+		// Counts the definitions made in this layer.
+		private final java.util.concurrent.atomic.AtomicLong _version = new java.util.concurrent.atomic.AtomicLong();
+		private final java.util.concurrent.ConcurrentHashMap<String, Value> map;
+		private final GlobalEnv _parent;
 		public GlobalEnv(){
-			map = new java.util.Hashtable<String, Value>();
+			this(null);
+		}
+		public GlobalEnv(GlobalEnv parent){
+			map = new java.util.concurrent.ConcurrentHashMap<String, Value>();
+			_parent = parent;
 		}
-		public synchronized Value get (String search_var) {
-			if(map.containsKey(search_var))
-				return map.get(search_var);
+		public Value get (String search_var) {
+			Value val = map.get(search_var);
+			if(val != null)
+				return val;
+			if(_parent != null)
+				return _parent.get(search_var);
 			throw new LookupException("No binding found for name: " + search_var);
 		}
-		public synchronized void extend (String var, Value val) {
+		public Value get (int depth, int slot) {
+			throw new LookupException("No frame found at depth: " + depth);
+		}
+		public void extend (String var, Value val) {
 			map.put(var, val);
+			_version.incrementAndGet();
+		}
+		/**
+		 * Changes whenever a variable is defined in this environment or one
+		 * it is layered over, so that what was found from their contents
+		 * can be cached. Definitions in other environments, such as those of
+		 * other sessions, leave it unchanged.
+		 */
+		public long version() {
+			long version = _version.get();
+			return _parent != null ? version + _parent.version() : version;
+		}
+		/**
+		 * The version of the global environment env is nested in, or 0 if
+		 * there is none.
+		 */
+		static long version(Env env) {
+			Env root = Env.root(env);
+			return root instanceof GlobalEnv ? ((GlobalEnv) root).version() : 0;
 		}
-		public boolean isEmpty() { return map.isEmpty(); }
+		public boolean isEmpty() { return map.isEmpty() && (_parent == null || _parent.isEmpty()); }
 	}
 
 }
@@ -1,20 +1,23 @@
 package funclang;
 import static funclang.AST.*;
 import static funclang.Value.*;
+import funclang.Value.NativeFunVal;
 
 import java.util.List;
-import java.util.ArrayList;
 import java.io.File;
 import java.io.IOException;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import funclang.Env.*;
 
-public class Evaluator implements Visitor<Value> {
+public class Evaluator implements Visitor<Value>, NativeFunVal.Caller {
 
 	private Printer.Formatter ts = new Printer.Formatter();
 
-	private Env initEnv = initialEnv(); //New for definelang
+	private final GlobalEnv initEnv; //New for definelang
 
 	Value valueOf(Program p) {
 		return (Value) p.accept(this, initEnv);
@@ -22,13 +25,47 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(AddExp e, Env env) {
+		return NumVal.of(add(e, env));
+	}
+
+	private double add(AddExp e, Env env) {
 		List<Exp> operands = e.all();
+		Object[] forked = forked(e, operands, env);
 		double result = 0;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result += intermediate.v(); //Semantics of AddExp in terms of the target language.
+		for(int i=0; i<operands.size(); i++) {
+			result += numberOf(forked, operands, i, env); //Semantics of AddExp in terms of the target language.
 		}
-		return new NumVal(result);
+		return result;
+	}
+
+	/**
+	 * Value of an arithmetic operand as a double. Nested arithmetic and
+	 * number literals are computed directly on doubles, so only the result
+	 * of the outermost arithmetic expression is boxed into a NumVal.
+	 */
+	private double numberOf(Exp exp, Env env) {
+		if (exp instanceof NumExp)
+			return ((NumExp) exp).v();
+		if (exp instanceof AddExp)
+			return add((AddExp) exp, env);
+		if (exp instanceof SubExp)
+			return sub((SubExp) exp, env);
+		if (exp instanceof MultExp)
+			return mult((MultExp) exp, env);
+		if (exp instanceof DivExp)
+			return div((DivExp) exp, env);
+		NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
+		return intermediate.v();
+	}
+
+	/**
+	 * Value of operand i as a double, taken from forked if the operands were
+	 * evaluated in parallel.
+	 */
+	private double numberOf(Object[] forked, List<Exp> operands, int i, Env env) {
+		if (forked == null)
+			return numberOf(operands.get(i), env);
+		return ((NumVal) valueOf(forked[i])).v();
 	}
 
 	@Override
@@ -38,7 +75,7 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(NumExp e, Env env) {
-		return new NumVal(e.v());
+		return NumVal.of(e.v());
 	}
 
 	@Override
@@ -48,34 +85,44 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(BoolExp e, Env env) {
-		return new BoolVal(e.v());
+		return BoolVal.of(e.v());
 	}
 
 	@Override
 	public Value visit(DivExp e, Env env) {
+		return NumVal.of(div(e, env));
+	}
+
+	private double div(DivExp e, Env env) {
 		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v();
+		Object[] forked = forked(e, operands, env);
+		double result = numberOf(forked, operands, 0, env);
 		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result / rVal.v();
+			result = result / numberOf(forked, operands, i, env);
 		}
-		return new NumVal(result);
+		return result;
 	}
 
 	@Override
 	public Value visit(MultExp e, Env env) {
+		return NumVal.of(mult(e, env));
+	}
+
+	private double mult(MultExp e, Env env) {
 		List<Exp> operands = e.all();
+		Object[] forked = forked(e, operands, env);
 		double result = 1;
-		for(Exp exp: operands) {
-			NumVal intermediate = (NumVal) exp.accept(this, env); // Dynamic type-checking
-			result *= intermediate.v(); //Semantics of MultExp.
+		for(int i=0; i<operands.size(); i++) {
+			result *= numberOf(forked, operands, i, env); //Semantics of MultExp.
 		}
-		return new NumVal(result);
+		return result;
 	}
 
 	@Override
 	public Value visit(Program p, Env env) {
+		if (_vm != null)
+			return _vm.valueOf(p);
+		Resolver.resolve(p);
 		try {
 			for(DefineDecl d: p.decls())
 				d.accept(this, initEnv);
@@ -87,36 +134,41 @@ public class Evaluator implements Visitor<Value> {
 
 	@Override
 	public Value visit(SubExp e, Env env) {
+		return NumVal.of(sub(e, env));
+	}
+
+	private double sub(SubExp e, Env env) {
 		List<Exp> operands = e.all();
-		NumVal lVal = (NumVal) operands.get(0).accept(this, env);
-		double result = lVal.v();
+		Object[] forked = forked(e, operands, env);
+		double result = numberOf(forked, operands, 0, env);
 		for(int i=1; i<operands.size(); i++) {
-			NumVal rVal = (NumVal) operands.get(i).accept(this, env);
-			result = result - rVal.v();
+			result = result - numberOf(forked, operands, i, env);
 		}
-		return new NumVal(result);
+		return result;
 	}
 
 	@Override
 	public Value visit(VarExp e, Env env) {
 		// Previously, all variables had value 42. New semantics.
+		if (e.depth() >= 0)
+			return env.get(e.depth(), e.slot());
 		return env.get(e.name());
 	}
 
 	@Override
 	public Value visit(LetExp e, Env env) { // New for varlang.
+		return evalTail(e, env);
+	}
+
+	private Env letEnv(LetExp e, Env env) {
 		List<String> names = e.names();
 		List<Exp> value_exps = e.value_exps();
-		List<Value> values = new ArrayList<>(value_exps.size());
-
-		for(Exp exp : value_exps)
-			values.add((Value)exp.accept(this, env));
+		Value[] values = new Value[value_exps.size()];
 
-		Env new_env = env;
-		for (int index = 0; index < names.size(); index++)
-			new_env = new ExtendEnv(new_env, names.get(index), values.get(index));
+		for (int index = 0; index < values.length; index++)
+			values[index] = (Value) value_exps.get(index).accept(this, env);
 
-		return (Value) e.body().accept(this, new_env);
+		return new FrameEnv(env, names.toArray(new String[values.length]), values);
 	}
 
 	@Override
@@ -124,7 +176,7 @@ public class Evaluator implements Visitor<Value> {
 		String name = e.name();
 		Exp value_exp = e.value_exp();
 		Value value = (Value) value_exp.accept(this, env);
-		((GlobalEnv) initEnv).extend(name, value);
+		initEnv.extend(name, value);
 		return new Value.UnitVal();
 	}
 
@@ -141,328 +193,167 @@ public class Evaluator implements Visitor<Value> {
 	 */
 	@Override
 	public Value visit(LambdaExp e, Env env) {
-		GlobalEnv genv = (GlobalEnv) env;
-		for (Exp exp : e.formals()) {
-			ArgExp agexp = (ArgExp) exp;
-			if (agexp.getExp() != null) {
-				genv.extend(agexp.getVar(), new NumVal(((NumExp) agexp.getExp())._val));
-			} else {
-				genv.extend(agexp.getVar(), new UnitVal());
-			}
-		}
-		return new Value.FunVal(genv, e.formals(), e.body());
+		VarExp[] captures = e.captures();
+		if (captures == null) // Not resolved.
+			return new Value.FunVal(env, e.formals(), e.body());
+		Value[] vals = new Value[captures.length];
+		for (int i = 0; i < vals.length; i++)
+			vals[i] = visit(captures[i], env);
+		return new Value.FunVal(Env.closure(env, e.captureNames(), vals), e.formals(), e.body());
 	}
 
 	@Override
 	public Value visit(CallExp e, Env env) {
-		Object result = e.operator().accept(this, env);
-		if(!(result instanceof Value.FunVal))
-		{
-			return new Value.DynamicError("Operator not a function in call " +  ts.visit(e, env));
-		}
-		Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
-		List<Exp> operands = e.operands();
-
-		List<Value> actuals = new ArrayList<>(operands.size());
-		for(Exp exp : operands)
-		{
-			actuals.add((Value) exp.accept(this, env));
-		}
+		return evalTail(e, env);
+	}
 
-		List<Exp> formals = operator.formals();
-		if (formals.size()!=actuals.size()) {
-			for (int a = actuals.size(); a < formals.size(); a++){
-				if (!(env.get(((ArgExp) formals.get(a)).getVar()) instanceof UnitVal))
-				{
-					actuals.add(env.get(((ArgExp) formals.get(a)).getVar()));
-				}
-			}
-			if (formals.size() != actuals.size())
-			{
-				return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
-			}
-		}
-		Env fun_env = operator.env();
-		for (int index = 0; index < formals.size(); index++)
-		{
-			fun_env = new ExtendEnv(fun_env, ((ArgExp) formals.get(index)).getVar(), actuals.get(index));
+	/**
+	 * Evaluates the actual parameters of a call straight into the array
+	 * that becomes the callee's frame, filling in defaults for missing
+	 * trailing arguments. Returns null on an argument count mismatch.
+	 */
+	private Value[] actuals(CallSite.Target target, CallExp e, Env env) {
+		List<Exp> operands = e.operands();
+		int given = operands.size();
+		if (given > target.arity()) {
+			for(Exp exp : operands)
+				exp.accept(this, env);
+			return null;
 		}
-		return (Value) operator.body().accept(this, fun_env);
+		Value[] actuals = new Value[target.arity()];
+		Object[] forked = forked(e, operands, env);
+		for (int i = 0; i < given; i++)
+			actuals[i] = forked != null ? valueOf(forked[i]) : (Value) operands.get(i).accept(this, env);
+		if (!target.fill(actuals, given))
+			return null;
+		return actuals;
 	}
 
 	@Override
 	public Value visit(IfExp e, Env env) {
-		Object result = e.conditional().accept(this, env);
-		if(!(result instanceof Value.BoolVal))
-		{
-			return new Value.DynamicError("Condition not a boolean in expression " +  ts.visit(e, env));
-		}
-		Value.BoolVal condition =  (Value.BoolVal) result; //Dynamic checking
-		if(condition.v())
-		{
-			return (Value) e.then_exp().accept(this, env);
-		} else {
-			return (Value) e.else_exp().accept(this, env);
-		}
+		return evalTail(e, env);
 	}
 
-	@SuppressWarnings("unchecked")
-	private List toLst(Exp exp, Env env) {
-		List lst = new ArrayList();
-		PairVal temp;
-		if (exp instanceof CdrExp) {
-			temp = (PairVal) exp.accept(this, env);
-			lst.add(new NumExp(((NumVal) temp._fst).v()));
-			while (!(temp._snd instanceof Value.Null)) {
-				temp = (PairVal) temp._snd;
-				lst.add(new NumExp(((NumVal) temp._fst).v()));
-			}
-		} else if (exp instanceof ConsExp) {
-			temp = (PairVal) exp.accept(this, env);
-			lst.add(new NumExp(((NumVal) temp._fst).v()));
-			while (!(temp._snd instanceof Value.Null)) {
-				temp = (PairVal) temp._snd;
-				lst.add(new NumExp(((NumVal) temp._fst).v()));
-			}
-		}
-		return lst;
-	}
-
-	private BoolVal lstCmp(List lst1, List lst2) {
-		BoolVal t = new BoolVal(true);
-		BoolVal f = new BoolVal(false);
-		double num1, num2;
-		if (lst1.size() != lst2.size()) {
-			return f;
-		}
-		for (int a = 0; a < lst1.size(); a++) {
-			if (lst1.get(a) instanceof NumExp && lst2.get(a) instanceof NumExp) {
-				num1 = ((NumExp) lst1.get(a))._val;
-				num2 = ((NumExp) lst2.get(a))._val;
-				if (num1 != num2){
-					return f;
+	/**
+	 * Evaluates exp, continuing in this loop (instead of through a nested
+	 * accept) with whichever expression is in tail position: the body of a
+	 * let, the chosen branch of an if, or the body of a called function.
+	 * Tail calls therefore run in constant Java stack space.
+	 */
+	private Value evalTail(Exp exp, Env env) {
+		while (true) {
+			if (exp instanceof IfExp) {
+				IfExp e = (IfExp) exp;
+				Object result = e.conditional().accept(this, env);
+				if(!(result instanceof Value.BoolVal))
+				{
+					return new Value.DynamicError("Condition not a boolean in expression " +  ts.visit(e, env));
+				}
+				Value.BoolVal condition =  (Value.BoolVal) result; //Dynamic checking
+				exp = condition.v() ? e.then_exp() : e.else_exp();
+			} else if (exp instanceof LetExp) {
+				LetExp e = (LetExp) exp;
+				env = letEnv(e, env);
+				exp = e.body();
+			} else if (exp instanceof FusedExp) {
+				Value result = fused((FusedExp) exp, env);
+				if (result != null)
+					return result;
+				exp = ((FusedExp) exp).original();
+			} else if (exp instanceof CallExp) {
+				CallExp e = (CallExp) exp;
+				Object result = e.operator().accept(this, env);
+				if (result instanceof NativeFunVal)
+					return callNative((NativeFunVal) result, e, env);
+				if(!(result instanceof Value.FunVal))
+				{
+					return new Value.DynamicError("Operator not a function in call " +  ts.visit(e, env));
 				}
-			} else if (lst1.get(a) instanceof ListExp && lst2.get(a) instanceof ListExp) {
-				if (lstCmp(((ListExp) lst1.get(a)).elems(), ((ListExp) lst2.get(a)).elems()) == f) {
-					return f;
+				Value.FunVal operator =  (Value.FunVal) result; //Dynamic checking
+				CallSite.Target target = e.site().lookup(operator);
+				Value[] actuals = actuals(target, e, env);
+				if (actuals == null)
+				{
+					return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
 				}
+				if (_compiler != null && operator.countCall() > _compileThreshold)
+					return _compiler.invoke(operator, actuals);
+				Memo memo = Memo.of(operator, _memoize);
+				if (memo != null)
+					return memoized(memo, operator, target.names(), actuals);
+				env = new FrameEnv(operator.env(), target.names(), actuals);
+				exp = operator.body();
+			} else {
+				return (Value) exp.accept(this, env);
 			}
 		}
+	}
 
-		return t;
+	/**
+	 * Calls a native function with the values of the operands of e.
+	 */
+	private Value callNative(NativeFunVal operator, CallExp e, Env env) {
+		List<Exp> operands = e.operands();
+		Value[] args = new Value[operands.size()];
+		Object[] forked = forked(e, operands, env);
+		for (int i = 0; i < args.length; i++)
+			args[i] = forked != null ? valueOf(forked[i]) : (Value) operands.get(i).accept(this, env);
+		if (args.length != operator.arity())
+			return new Value.DynamicError("Argument mismatch in call " + ts.visit(e, env));
+		return operator.apply(args, this);
 	}
 
+	/**
+	 * Calls operator for a native function, as a call expression would.
+	 */
 	@Override
-	@SuppressWarnings("unchecked")
-	public Value visit(EqualExp e, Env env) {
-		Object obj1, obj2;
-		BoolVal t, f;
-		List lst1, lst2;
-		double num1, num2;
-
-		t = new BoolVal(true);
-		f = new BoolVal(false);
-		obj1 = e.first_exp();
-		obj2 = e.second_exp();
-		lst2 = new ArrayList();
-
-		if (obj1 instanceof NumExp) {
-			num1 = ((NumVal) ((NumExp) obj1).accept(this, env)).v();
-			if (obj2 instanceof NumExp) {
-				num2 = ((NumVal) ((NumExp) obj2).accept(this, env)).v();
-			} else {
-				num2 = ((NumVal) ((CarExp) obj2).accept(this, env)).v();
-			} if (num1 == num2) {
-				return t;
-			}
-			return f;
-		}
-
-		else if (obj1 instanceof StrExp && obj2 instanceof StrExp) {
-			String str1, str2;
-			str1 = ((StrExp) obj1)._val;
-			str2 = ((StrExp) obj2)._val;
-			if (str1.length() != str2.length()) {
-				return f;
-			}
-			for (int a = 0; a < str1.length(); a++) {
-				if (str1.charAt(a) != str2.charAt(a)) {
-					return f;
-				}
-			}
-			return t;
-		}
+	public Value call(Value.FunVal operator, Value[] actuals) {
+		if (_compiler != null && operator.countCall() > _compileThreshold)
+			return _compiler.invoke(operator, actuals);
+		Memo memo = Memo.of(operator, _memoize);
+		if (memo != null)
+			return memoized(memo, operator, operator.names(), actuals);
+		return evalTail(operator.body(), new FrameEnv(operator.env(), operator.names(), actuals));
+	}
 
-		else if (obj1 instanceof BoolExp && obj2 instanceof BoolExp) {
-			boolean bool_1, bool_2;
-			bool_1 = ((BoolExp) obj1)._val;
-			bool_2 = ((BoolExp) e.second_exp())._val;
-			if ((bool_1 && bool_2) || (!bool_1 && !bool_2)) {
-				return t;
-			}
-			return f;
-		}
+	@Override
+	public Evaluator evaluator() {
+		return this;
+	}
 
-		else if (obj1 instanceof CarExp) {
-			num1 = ((NumVal) ((CarExp) obj1).accept(this, env)).v();
-			if (obj2 instanceof CarExp)
-			{
-				num2 = ((NumVal) ((CarExp) obj2).accept(this, env)).v();
-			}
-			else if (obj2 instanceof NumExp)
-			{
-				num2 = ((NumVal) ((NumExp) obj2).accept(this, env)).v();
-			} else {
-				return f;
-			}
-			if (num1 != num2) {
-				return f;
-			}
-			return t;
+	/**
+	 * Calls a memoized function, unless memo has the result.
+	 */
+	private Value memoized(Memo memo, Value.FunVal operator, String[] names, Value[] actuals) {
+		Memo.Key key = Memo.key(actuals);
+		Value result = key != null ? memo.get(key, _memoStats) : null;
+		if (result == null) {
+			result = evalTail(operator.body(), new FrameEnv(operator.env(), names, actuals));
+			if (key != null)
+				memo.put(key, result);
 		}
+		return result;
+	}
 
-		else {
-			if (obj1 instanceof ListExp) {
-				lst1 = ((ListExp) obj1).elems();
-			}
-			else if (obj1 instanceof CdrExp) {
-				lst1 = toLst((CdrExp) obj1, env);
-			}
-			else if (obj1 instanceof ConsExp) {
-				lst1 = toLst((ConsExp) obj1, env);
-			}
-			else {
-				return f;
-			}
-
-			if (obj2 instanceof CdrExp) {
-				lst2 = toLst((CdrExp) obj2, env);
-			}
-			else if (obj2 instanceof ConsExp) {
-				lst2 = toLst((ConsExp) obj2, env);
-			}
-			else if (obj2 instanceof ListExp) {
-				lst2 = ((ListExp) obj2).elems();
-			}
-			else if (obj2 instanceof NumExp) {
-				lst2.add(((NumExp) obj2).accept(this, env));
-			}
-			else if (obj2 instanceof CarExp) {
-				lst2.add(new NumExp(((NumVal) ((CarExp) obj2).accept(this, env)).v()));
-			}
-			else {
-				return f;
-			}
-			return lstCmp(lst1, lst2);
-		}
+	@Override
+	public Value visit(EqualExp e, Env env) {
+		Value first = (Value) e.first_exp().accept(this, env);
+		Value second = (Value) e.second_exp().accept(this, env);
+		return BoolVal.of(Comparison.equal(first, second));
 	}
 
 	@Override
 	public Value visit(LessExp e, Env env) { // New for funclang.
-		Object obj1, obj2;
-		BoolVal t, f;
-		List lst1, lst2;
-
-		obj1 = e.first_exp();
-		obj2 = e.second_exp();
-		t = new BoolVal(true);
-		f = new BoolVal(false);
-
-		if (obj1 instanceof NumExp && obj2 instanceof NumExp) {
-			if (((NumVal) ((NumExp) obj1).accept(this, env)).v() < ((NumVal) ((NumExp) obj2).accept(this, env)).v())
-				return t;
-			return f;
-		}
-		else if (obj1 instanceof StrExp && obj2 instanceof StrExp) {
-			String str_1 = ((StrExp) obj1)._val;
-			String str_2 = ((StrExp) obj2)._val;
-			if (str_1.length() < str_2.length()) return t;
-			return f;
-		}
-		else {
-			if (obj1 instanceof ListExp) {
-				lst1 = ((ListExp) obj1).elems();
-			}
-			else if (obj1 instanceof CdrExp) {
-				lst1 = toLst((CdrExp) obj1, env);
-			}
-			else if (obj1 instanceof ConsExp) {
-				lst1 = toLst((ConsExp) obj1, env);
-			}
-			else return f;
-			if (obj2 instanceof ListExp) {
-				lst2 = ((ListExp) e.second_exp()).elems();
-			}
-			else if (obj2 instanceof CdrExp) {
-				lst2 = toLst((CdrExp) obj2, env);
-			}
-			else if (obj2 instanceof ConsExp) {
-				lst2 = toLst((ConsExp) obj2, env);
-			}
-			else return f;
-
-			if (lst1.size() < lst2.size()) {
-				return t;
-			}
-			return f;
-		}
+		Value first = (Value) e.first_exp().accept(this, env);
+		Value second = (Value) e.second_exp().accept(this, env);
+		return BoolVal.of(Comparison.less(first, second));
 	}
 
 	@Override
 	public Value visit(GreaterExp e, Env env) { // New for funclang.
-		Object obj1, obj2;
-		BoolVal t, f;
-		List lst1, lst2;
-
-		obj1 = e.first_exp();
-		obj2 = e.second_exp();
-		t = new BoolVal(true);
-		f = new BoolVal(false);
-
-		if (obj1 instanceof NumExp && obj2 instanceof NumExp) {
-			if (((NumVal) ((NumExp) obj1).accept(this, env)).v() > ((NumVal) ((NumExp) obj2).accept(this, env)).v())
-				return t;
-			return f;
-		}
-		else if (obj1 instanceof StrExp && obj2 instanceof StrExp) {
-			String str_1 = ((StrExp) obj1)._val;
-			String str_2 = ((StrExp) obj2)._val;
-			if (str_1.length() > str_2.length()) {
-				return t;
-			}
-			return f;
-		}
-		else {
-			if (obj1 instanceof ListExp){
-				lst1 = ((ListExp) obj1).elems();
-			}
-			else if (obj1 instanceof CdrExp) {
-				lst1 = toLst((CdrExp) obj1, env);
-			}
-			else if (obj1 instanceof ConsExp) {
-				lst1 = toLst((ConsExp) obj1, env);
-			}
-			else {
-				return f;
-			}
-			if (obj2 instanceof ListExp){
-				lst2 = ((ListExp) e.second_exp()).elems();
-			}
-			else if (obj2 instanceof CdrExp) {
-				lst2 = toLst((CdrExp) obj2, env);
-			}
-			else if (obj2 instanceof ConsExp) {
-				lst2 = toLst((ConsExp) obj2, env);
-			}
-			else {
-				return f;
-			}
-
-			if (lst1.size() > lst2.size()) {
-				return t;
-			}
-			return f;
-		}
+		Value first = (Value) e.first_exp().accept(this, env);
+		Value second = (Value) e.second_exp().accept(this, env);
+		return BoolVal.of(Comparison.greater(first, second));
 	}
 	
 	@Override
@@ -493,80 +384,289 @@ public class Evaluator implements Visitor<Value> {
 
 		//Order of evaluation: left to right e.g. (list (+ 3 4) (+ 5 4))
 		Value[] elems = new Value[length];
+		Object[] forked = forked(e, elemExps, env);
 		for(int i=0; i<length; i++)
-			elems[i] = (Value) elemExps.get(i).accept(this, env);
-
-		Value result = new Value.Null();
-		for(int i=length-1; i>=0; i--)
-			result = new PairVal(elems[i], result);
-		return result;
+			elems[i] = forked != null ? valueOf(forked[i]) : (Value) elemExps.get(i).accept(this, env);
+		return new ListVal(elems);
 	}
 
 	@Override
 	public Value visit(NullExp e, Env env) {
 		Value val = (Value) e.arg().accept(this, env);
-		return new BoolVal(val instanceof Value.Null);
+		return BoolVal.of(val instanceof Value.Null);
 	}
 
-	@Override
-	public Value visit(LengthStrExp e, Env env) {
-		Value val = (Value) e.getStrExpr().accept(this, env);
+	/**
+	 * The length of a string or a list.
+	 */
+	static Value length(Value val) {
 		if (val instanceof StringVal) {
 			String string = ((StringVal) val).v();
 			return new NumVal(string.length() - 2); // - 2 to remove double quotes
 		}
+		int length = ListVal.length(val);
+		if (length >= 0)
+			return NumVal.of(length);
+
+		return new DynamicError("Parameter for length was not a string or a list.");
+	}
+
+	/**
+	 * The element of list at index, counting from 0, in constant time for
+	 * lists made by list.
+	 */
+	static Value listRef(Value list, Value index) {
+		if (!(index instanceof NumVal) || ((NumVal) index).v() != (int) ((NumVal) index).v())
+			return new DynamicError("Index for listref was not an integer.");
+		Value elem = ListVal.ref(list, (int) ((NumVal) index).v());
+		if (elem == null)
+			return new DynamicError("Index " + index.tostring() + " out of range for listref.");
+		return elem;
+	}
+
+	@Override
+	public Value visit(FusedExp e, Env env) {
+		return evalTail(e, env);
+	}
+
+	/**
+	 * The value of e in one pass, or null if its operators are not the
+	 * library procedures, in which case nothing has been evaluated.
+	 */
+	private Value fused(FusedExp e, Env env) {
+		NativeFunVal[] stages = Library.stages(e, env);
+		if (stages == null)
+			return null;
+		Value[][] args = new Value[stages.length][];
+		for (int i = stages.length - 1; i >= 0; i--) { // The outermost call's operands first.
+			List<Exp> operands = e.stages().get(i).operands();
+			args[i] = new Value[operands.size() - 1];
+			for (int j = 0; j < args[i].length; j++)
+				args[i][j] = (Value) operands.get(j).accept(this, env);
+		}
+		return Library.fuse(stages, args, (Value) e.source().accept(this, env), this);
+	}
 
-		return new DynamicError("Parameter for length was not a string.");
+	/**
+	 * Runs the program in a file, parsing it through the cache.
+	 */
+	Value require(Value file) {
+		StringVal fileName = (StringVal) file;
+		try {
+			Program p = _reader.parseFile(path(fileName));
+			return (Value) p.accept(this, initEnv);
+		} catch (IOException ex) {
+			return new DynamicError(ex.getMessage());
+		}
+	}
 
+	/**
+	 * The text of a file.
+	 */
+	static Value read(Value file) {
+		StringVal fileName = (StringVal) file;
+		try {
+			String text = Reader.readFile(path(fileName));
+			return StringVal.of(text);
+		} catch (IOException ex) {
+			return new DynamicError(ex.getMessage());
+		}
 	}
 
-	public Value visit(EvalExp e, Env env) {
-		StringVal programText = (StringVal) e.code().accept(this, env);
-		Program p = _reader.parse(programText.v());
-		return (Value) p.accept(this, env);
+	/**
+	 * A function computing what f does, remembering its results.
+	 */
+	static Value memo(Value f) {
+		if (!(f instanceof Value.FunVal))
+			return new DynamicError("Argument to memo is not a function");
+		Value.FunVal fun = (Value.FunVal) f;
+		Value.FunVal memoized = new Value.FunVal(fun.env(), fun.formals(), fun.body());
+		memoized.setMemo(new Memo(true, fun.env()));
+		return memoized;
 	}
 
-	public Value visit(ReadExp e, Env env) {
-		StringVal fileName = (StringVal) e.file().accept(this, env);
+	/**
+	 * The lines of a file, as a list read as it is walked.
+	 */
+	static Value readLines(Value file) {
+		StringVal fileName = (StringVal) file;
 		try {
-			String text = Reader.readFile("" + System.getProperty("user.dir") + File.separator + fileName.v());
-			return new StringVal(text);
+			return LazyPairVal.lines(new LineReader(path(fileName)));
 		} catch (IOException ex) {
 			return new DynamicError(ex.getMessage());
 		}
 	}
 
-	private Env initialEnv() {
-		GlobalEnv initEnv = new GlobalEnv();
+	private static String path(StringVal fileName) {
+		return "" + System.getProperty("user.dir") + File.separator + fileName.text();
+	}
 
-		List<String> definedformals = new ArrayList<>();
-		/* Procedure: (read <filename>). Following is same as (define read (lambda (file) (read file))) */
-		List<Exp> formals = new ArrayList<>();
-		List<Exp> values = new ArrayList<Exp>();
-		formals.add(new StrExp("file"));
-		Exp body = new AST.ReadExp(new VarExp("file"));
-		Value.FunVal readFun = new Value.FunVal(initEnv, formals, body);
-		initEnv.extend("read", readFun);
-
-		/* Procedure: (require <filename>). Following is same as (define require (lambda (file) (eval (read file)))) */
-		formals = new ArrayList<>();
-		formals.add(new StrExp("file"));
-		body = new EvalExp(new AST.ReadExp(new VarExp("file")));
-		Value.FunVal requireFun = new Value.FunVal(initEnv, formals, body);
-		initEnv.extend("require", requireFun);
-
-		/* Add new built-in procedures here */
-		formals = new ArrayList<>();
-		formals.add(new StrExp("file"));
-		body = new AST.LengthStrExp(new VarExp("str"));
-		Value.FunVal lengthFun = new Value.FunVal(initEnv, formals, body);
-		initEnv.extend("length", lengthFun);
+	private static GlobalEnv initialEnv() {
+		GlobalEnv initEnv = new GlobalEnv();
+		Library.install(initEnv);
+		return initEnv;
+	}
 
+	GlobalEnv globalEnv() {
 		return initEnv;
 	}
 
+	private Compiler _compiler = null;
+	private int _compileThreshold;
+
+	/**
+	 * Enables tiered execution: once a function has been called more than
+	 * threshold times by this Evaluator, its body is compiled with the
+	 * Compiler into a JVM class, see ClassEmitter, and later calls run the
+	 * compiled code.
+	 */
+	public void setCompileThreshold(int threshold) {
+		_compiler = new Compiler(this);
+		_compiler.setMemoize(_memoize);
+		_compiler.setEmitClasses(true);
+		_compileThreshold = threshold;
+	}
+
+	private VM _vm = null;
+
+	/**
+	 * Runs programs, including those run by require, on a VM instead of
+	 * walking them.
+	 */
+	public void setVM() {
+		_vm = new VM(this);
+		_vm.setMemoize(_memoize);
+	}
+
+	/**
+	 * Limits how deeply the calls of programs run on the VM may nest, see
+	 * VM.setMaxDepth.
+	 */
+	public void setMaxDepth(int frames) {
+		if (_vm != null)
+			_vm.setMaxDepth(frames);
+	}
+
+	private boolean _memoize = false;
+	final Memo.Stats _memoStats = new Memo.Stats(); // Of the calls run by this Evaluator and its engines.
+
+	/**
+	 * Enables memoizing the functions that Memo finds worth it, besides
+	 * those memoized by the program.
+	 */
+	public void setMemoize(boolean memoize) {
+		_memoize = memoize;
+		if (_compiler != null)
+			_compiler.setMemoize(memoize);
+		if (_vm != null)
+			_vm.setMemoize(memoize);
+	}
+	/**
+	 * How many calls to memoized functions found their results remembered.
+	 */
+	public long memoHits() {
+		return _memoStats.hits();
+	}
+
+	/**
+	 * How many calls to memoized functions had to be run.
+	 */
+	public long memoMisses() {
+		return _memoStats.misses();
+	}
+
+
+	static final int MAX_SURPLUS = 3;
+	private ForkJoinPool _pool = null;
+
+	/**
+	 * Enables the parallel mode: the operands of arithmetic, list and call
+	 * expressions are evaluated as tasks on pool when Effects finds that
+	 * they have no effects and enough work to share. Values and errors are
+	 * then taken in operand order, so programs print what they print when
+	 * evaluated one operand after another. Not to be combined with tiered
+	 * execution, whose compiler serves a single thread.
+	 */
+	public void setParallel(ForkJoinPool pool) {
+		_pool = pool;
+	}
+
+	/**
+	 * Evaluates exps, the operands of e, in parallel if the parallel mode
+	 * allows it, returning the value or the error of each; returns null if
+	 * they are to be evaluated one after another instead. Tasks are only
+	 * split further while few of them wait for a thread.
+	 */
+	private Object[] forked(Exp e, List<Exp> exps, Env env) {
+		if (_pool == null || exps.size() < 2)
+			return null;
+		boolean inPool = ForkJoinTask.getPool() == _pool;
+		if (inPool && ForkJoinTask.getSurplusQueuedTaskCount() > MAX_SURPLUS)
+			return null;
+		if (!Effects.parallel(e, exps, env))
+			return null;
+		Operand[] tasks = new Operand[exps.size()];
+		for (int i = 1; i < tasks.length; i++) {
+			tasks[i] = new Operand(exps.get(i), env);
+			if (inPool)
+				tasks[i].fork();
+			else
+				_pool.execute(tasks[i]);
+		}
+		Object[] results = new Object[tasks.length];
+		results[0] = resultOf(exps.get(0), env);
+		for (int i = 1; i < tasks.length; i++) {
+			tasks[i].join();
+			results[i] = tasks[i]._result;
+		}
+		return results;
+	}
+
+	private Object resultOf(Exp exp, Env env) {
+		try {
+			return exp.accept(this, env);
+		} catch (RuntimeException | Error e) {
+			return e;
+		}
+	}
+
+	/**
+	 * The value in a result of forked, or its error, thrown again.
+	 */
+	private static Value valueOf(Object result) {
+		if (result instanceof RuntimeException)
+			throw (RuntimeException) result;
+		if (result instanceof Error)
+			throw (Error) result;
+		return (Value) result;
+	}
+
+	@SuppressWarnings("serial")
+	private final class Operand extends RecursiveAction {
+		private final Exp _exp;
+		private final Env _env;
+		private Object _result;
+		Operand(Exp exp, Env env) {
+			_exp = exp;
+			_env = env;
+		}
+		protected void compute() {
+			_result = resultOf(_exp, _env);
+		}
+	}
+
 	Reader _reader;
 	public Evaluator(Reader reader) {
 		_reader = reader;
+		initEnv = initialEnv();
+	}
+
+	/**
+	 * An evaluator whose definitions go to a global environment of its own,
+	 * layered over prelude, which it never changes.
+	 */
+	Evaluator(Reader reader, GlobalEnv prelude) {
+		_reader = reader;
+		initEnv = new GlobalEnv(prelude);
 	}
 }
@@ -0,0 +1,427 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import funclang.AST.*;
+
+/**
+ * A recursive descent parser for FuncLang, building the same AST as the
+ * ANTLR grammar (FuncLang.g and the grammars it imports) without a token
+ * stream: the scanner walks the text in place and only creates strings
+ * for names and string literals.
+ *
+ * Only well-formed programs are parsed here. Anything else, including
+ * programs followed by extra text and the rare lexical forms not handled
+ * below (non-ASCII identifiers, escapes in strings, numbers that do not fit
+ * an int), makes parse return null so that the caller can use the ANTLR
+ * parser, which then reports or recovers from errors as it always has.
+ *
+ * The grammar is ambiguous for (- n e ...), which could be a subtraction or
+ * a call whose operator is the number -n. Like ANTLR, which resolves the
+ * ambiguity in favor of the first alternative, this parser reads it as a
+ * subtraction whenever there are at least two operands.
+ */
+final class FastParser {
+	private static final int EOF = 0, LPAREN = 1, RPAREN = 2, PLUS = 3, MINUS = 4,
+			STAR = 5, SLASH = 6, LESS = 7, EQUAL = 8, GREATER = 9, DOT = 10,
+			NUMBER = 11, IDENT = 12, STRING = 13, TRUE = 14, FALSE = 15,
+			DEFINE = 16, LET = 17, LAMBDA = 18, IF = 19, CAR = 20, CDR = 21,
+			CONS = 22, LIST = 23, NULL = 24;
+
+	/**
+	 * Thrown when the input is not a program this parser handles.
+	 */
+	private static final class Unsupported extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Unsupported() {
+			super(null, null, false, false);
+		}
+	}
+
+	private static final Unsupported UNSUPPORTED = new Unsupported();
+
+	private final CharSequence _in;
+	private final int _end;
+	private int _pos = 0;
+
+	private int _kind; // The current token and where it is in the input.
+	private int _start;
+	private String _text; // Only for names and string literals.
+
+	private FastParser(CharSequence in) {
+		_in = in;
+		_end = in.length();
+	}
+
+	/**
+	 * Parses programText, or returns null if it has to be left to the
+	 * ANTLR parser.
+	 */
+	static Program parse(CharSequence programText) {
+		FastParser parser = new FastParser(programText);
+		try {
+			parser.next();
+			return parser.program();
+		} catch (Unsupported e) {
+			return null;
+		}
+	}
+
+	private Program program() {
+		List<DefineDecl> decls = new ArrayList<DefineDecl>();
+		Exp e = null;
+		while (e == null && _kind != EOF) {
+			if (_kind != LPAREN) {
+				e = exp();
+			} else {
+				next();
+				if (_kind == DEFINE)
+					decls.add(define());
+				else
+					e = form();
+			}
+		}
+		expect(EOF);
+		return new Program(decls, e != null ? e : new UnitExp());
+	}
+
+	private DefineDecl define() {
+		next();
+		String name = name();
+		Exp value_exp = exp();
+		close();
+		return new DefineDecl(name, value_exp);
+	}
+
+	private Exp exp() {
+		switch (_kind) {
+		case NUMBER:
+			return number(false);
+		case MINUS:
+			next();
+			expect(NUMBER);
+			return number(true);
+		case IDENT:
+			return new VarExp(name());
+		case STRING:
+			String s = _text;
+			next();
+			return new StrExp(s);
+		case TRUE:
+			next();
+			return new BoolExp(true);
+		case FALSE:
+			next();
+			return new BoolExp(false);
+		case LPAREN:
+			next();
+			return form();
+		default:
+			throw UNSUPPORTED;
+		}
+	}
+
+	/**
+	 * Parses a parenthesized expression, after the opening parenthesis.
+	 */
+	private Exp form() {
+		switch (_kind) {
+		case PLUS:
+			next();
+			return new AddExp(atLeastTwo(operands()));
+		case STAR:
+			next();
+			return new MultExp(atLeastTwo(operands()));
+		case SLASH:
+			next();
+			return new DivExp(atLeastTwo(operands()));
+		case MINUS:
+			return minus();
+		case LET:
+			return let();
+		case LAMBDA:
+			return lambda();
+		case IF:
+			next();
+			Exp conditional = exp();
+			Exp then_exp = exp();
+			Exp else_exp = exp();
+			close();
+			return new IfExp(conditional, then_exp, else_exp);
+		case LESS:
+			next();
+			return new LessExp(exp(), lastExp());
+		case EQUAL:
+			next();
+			return new EqualExp(exp(), lastExp());
+		case GREATER:
+			next();
+			return new GreaterExp(exp(), lastExp());
+		case CAR:
+			next();
+			return new CarExp(lastExp());
+		case CDR:
+			next();
+			return new CdrExp(lastExp());
+		case NULL:
+			next();
+			return new NullExp(lastExp());
+		case CONS:
+			next();
+			return new ConsExp(exp(), lastExp());
+		case LIST:
+			next();
+			return new ListExp(operands());
+		case IDENT:
+			String name = name();
+			if (_kind == EQUAL) {
+				next();
+				return new ArgExp(name, lastExp());
+			}
+			return new CallExp(new VarExp(name), operands());
+		case DEFINE:
+		case RPAREN:
+		case EOF:
+			throw UNSUPPORTED;
+		default:
+			Exp operator = exp();
+			return new CallExp(operator, operands());
+		}
+	}
+
+	private Exp minus() {
+		next();
+		int first = _start;
+		boolean literal = _kind == NUMBER;
+		List<Exp> operands = operands();
+		if (operands.size() >= 2)
+			return new SubExp(operands);
+		if (operands.size() == 1 && literal) {
+			// A call to the number -n, with no arguments.
+			rewind(first);
+			Exp operator = number(true);
+			close();
+			return new CallExp(operator, new ArrayList<Exp>());
+		}
+		throw UNSUPPORTED;
+	}
+
+	private Exp let() {
+		next();
+		expect(LPAREN);
+		next();
+		List<String> names = new ArrayList<String>();
+		List<Exp> value_exps = new ArrayList<Exp>();
+		do {
+			expect(LPAREN);
+			next();
+			names.add(name());
+			value_exps.add(lastExp());
+		} while (_kind != RPAREN);
+		next();
+		return new LetExp(names, value_exps, lastExp());
+	}
+
+	private Exp lambda() {
+		next();
+		expect(LPAREN);
+		next();
+		List<Exp> formals = new ArrayList<Exp>();
+		while (_kind != RPAREN) {
+			if (_kind == IDENT) {
+				formals.add(new ArgExp(name()));
+			} else {
+				expect(LPAREN);
+				next();
+				String name = name();
+				expect(EQUAL);
+				next();
+				formals.add(new ArgExp(name, lastExp()));
+			}
+		}
+		next();
+		return new LambdaExp(formals, lastExp());
+	}
+
+	/**
+	 * Parses expressions up to and including the closing parenthesis.
+	 */
+	private List<Exp> operands() {
+		List<Exp> operands = new ArrayList<Exp>();
+		while (_kind != RPAREN)
+			operands.add(exp());
+		next();
+		return operands;
+	}
+
+	private static List<Exp> atLeastTwo(List<Exp> operands) {
+		if (operands.size() < 2)
+			throw UNSUPPORTED;
+		return operands;
+	}
+
+	/**
+	 * Parses the last expression of a form and its closing parenthesis.
+	 */
+	private Exp lastExp() {
+		Exp e = exp();
+		close();
+		return e;
+	}
+
+	private Exp number(boolean negative) {
+		int start = _start;
+		int stop = _pos;
+		next();
+		if (_kind == DOT) {
+			next();
+			expect(NUMBER);
+			String text = (negative ? "-" : "") + _in.subSequence(start, stop) + "." + _in.subSequence(_start, _pos);
+			next();
+			return new NumExp(Double.parseDouble(text));
+		}
+		if (stop - start > 9)
+			throw UNSUPPORTED; // Leave overflow to the grammar's Integer.parseInt.
+		int v = 0;
+		for (int i = start; i < stop; i++)
+			v = v * 10 + (_in.charAt(i) - '0');
+		return new NumExp(negative ? -v : v);
+	}
+
+	private String name() {
+		expect(IDENT);
+		String name = _text;
+		next();
+		return name;
+	}
+
+	private void close() {
+		expect(RPAREN);
+		next();
+	}
+
+	private void expect(int kind) {
+		if (_kind != kind)
+			throw UNSUPPORTED;
+	}
+
+	private void rewind(int start) {
+		_pos = start;
+		next();
+	}
+
+	/**
+	 * Scans the next token, skipping white space and comments.
+	 */
+	private void next() {
+		skip();
+		_start = _pos;
+		if (_pos == _end) {
+			_kind = EOF;
+			return;
+		}
+		char c = _in.charAt(_pos++);
+		switch (c) {
+		case '(': _kind = LPAREN; return;
+		case ')': _kind = RPAREN; return;
+		case '+': _kind = PLUS; return;
+		case '-': _kind = MINUS; return;
+		case '*': _kind = STAR; return;
+		case '/': _kind = SLASH; return;
+		case '<': _kind = LESS; return;
+		case '=': _kind = EQUAL; return;
+		case '>': _kind = GREATER; return;
+		case '.': _kind = DOT; return;
+		case '#':
+			if (_pos < _end && _in.charAt(_pos) == 't')
+				_kind = TRUE;
+			else if (_pos < _end && _in.charAt(_pos) == 'f')
+				_kind = FALSE;
+			else
+				throw UNSUPPORTED;
+			_pos++;
+			return;
+		case '"':
+			while (_pos < _end) {
+				char d = _in.charAt(_pos++);
+				if (d == '"') {
+					_kind = STRING;
+					_text = _in.subSequence(_start, _pos).toString();
+					return;
+				}
+				if (d == '\\' || d == '\n' || d == '\r')
+					throw UNSUPPORTED;
+			}
+			throw UNSUPPORTED;
+		default:
+			if (c >= '0' && c <= '9') {
+				while (_pos < _end && isDigit(_in.charAt(_pos)))
+					_pos++;
+				_kind = NUMBER;
+			} else if (isLetter(c)) {
+				while (_pos < _end && (isLetter(_in.charAt(_pos)) || isDigit(_in.charAt(_pos))))
+					_pos++;
+				if (_pos < _end && _in.charAt(_pos) >= 0x80)
+					throw UNSUPPORTED;
+				_text = _in.subSequence(_start, _pos).toString();
+				_kind = keyword(_text);
+			} else {
+				throw UNSUPPORTED;
+			}
+		}
+	}
+
+	private int keyword(String word) {
+		switch (word) {
+		case "define": return DEFINE;
+		case "let": return LET;
+		case "lambda": return LAMBDA;
+		case "if": return IF;
+		case "car": return CAR;
+		case "cdr": return CDR;
+		case "cons": return CONS;
+		case "list": return LIST;
+		case "null":
+			if (_pos < _end && _in.charAt(_pos) == '?') {
+				_pos++;
+				return NULL;
+			}
+			return IDENT;
+		case "letrec": case "ref": case "deref": case "free": case "fork": case "lock":
+		case "unlock": case "process": case "send": case "stop": case "self":
+			throw UNSUPPORTED; // Reserved words that no expression uses.
+		default:
+			return IDENT;
+		}
+	}
+
+	private void skip() {
+		while (_pos < _end) {
+			char c = _in.charAt(_pos);
+			if (c == ' ' || c == '\t' || c == '\r' || c == '\n' || c == '\f') {
+				_pos++;
+			} else if (c == '/' && _pos + 1 < _end && _in.charAt(_pos + 1) == '/') {
+				while (_pos < _end && _in.charAt(_pos) != '\n' && _in.charAt(_pos) != '\r')
+					_pos++;
+			} else if (c == '/' && _pos + 1 < _end && _in.charAt(_pos + 1) == '*') {
+				int i = _pos + 2;
+				while (i + 1 < _end && !(_in.charAt(i) == '*' && _in.charAt(i + 1) == '/'))
+					i++;
+				if (i + 1 >= _end)
+					throw UNSUPPORTED;
+				_pos = i + 2;
+			} else {
+				return;
+			}
+		}
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	private static boolean isLetter(char c) {
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '$' || c == '_';
+	}
+}
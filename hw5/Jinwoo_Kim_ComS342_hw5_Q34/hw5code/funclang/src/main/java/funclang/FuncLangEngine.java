@@ -0,0 +1,276 @@
+package funclang;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import funclang.AST.Program;
+import funclang.Env.GlobalEnv;
+
+/**
+ * Runs FuncLang programs for any number of independent sessions in one
+ * process, e.g. to embed the interpreter in a server:
+ *
+ *   FuncLangEngine engine = new FuncLangEngine();
+ *   engine.prelude("(define square (lambda (x) (* x x)))");
+ *   FuncLangEngine.Session session = engine.openSession();
+ *   session.submit("(square 7)").thenAccept(...);
+ *
+ * Every session has a global environment of its own, layered over the
+ * prelude: the built-in procedures and whatever the prelude programs
+ * define. The prelude is read-only once the first session is opened, and
+ * is shared rather than copied, so opening a session costs little. A
+ * session's definitions shadow the prelude's without other sessions seeing
+ * them.
+ *
+ * Programs of one session run one at a time, in the order submitted, since
+ * each may use the definitions of the ones before it. Programs of different
+ * sessions run concurrently on the engine's executor, which by default runs
+ * each program on a virtual thread where the JVM has them, and on a pool
+ * with a thread per processor otherwise.
+ */
+public class FuncLangEngine implements AutoCloseable {
+	private final Reader _reader;
+	private final ExecutorService _executor;
+	private final boolean _ownExecutor;
+	private final Evaluator _prelude;
+	private volatile boolean _sealed = false; // Has a session been opened?
+	private String _engine = "ast";
+	private boolean _optimize = true;
+	private boolean _memoize = false;
+	private int _maxDepth = VM.MAX_DEPTH;
+	private ForkJoinPool _pool = null;
+
+	public FuncLangEngine() {
+		this(new Reader(), null);
+	}
+
+	/**
+	 * An engine parsing with reader and running programs on executor, or on
+	 * the default executor if it is null. An executor given here is not
+	 * shut down by close.
+	 */
+	public FuncLangEngine(Reader reader, ExecutorService executor) {
+		_reader = reader;
+		_ownExecutor = executor == null;
+		_executor = executor != null ? executor : defaultExecutor();
+		_prelude = new Evaluator(reader);
+	}
+
+	/**
+	 * A virtual thread per task, if this JVM has virtual threads (Java 21
+	 * and later), or else a pool of daemon threads, one per processor.
+	 */
+	static ExecutorService defaultExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				private int _count = 0;
+				public synchronized Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "funclang-" + ++_count);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * Selects how the sessions opened from now on run programs: "ast",
+	 * "closure", "tiered" or "vm", as with the Interpreter's --engine option.
+	 */
+	public synchronized void setEngine(String engine) {
+		checkEngine(engine);
+		_engine = engine;
+	}
+
+	/**
+	 * Throws an IllegalArgumentException unless engine names one.
+	 */
+	static void checkEngine(String engine) {
+		if (!engine.equals("ast") && !engine.equals("closure") && !engine.equals("tiered")
+				&& !engine.equals("vm"))
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+	}
+
+	/**
+	 * Selects whether the sessions opened from now on optimize programs
+	 * before running them.
+	 */
+	public synchronized void setOptimize(boolean optimize) {
+		_optimize = optimize;
+	}
+
+	/**
+	 * Selects whether the sessions opened from now on memoize functions
+	 * that have no effects, as with the Interpreter's --memoize option.
+	 */
+	public synchronized void setMemoize(boolean memoize) {
+		_memoize = memoize;
+	}
+
+	/**
+	 * Sets how deep the calls of programs run by the sessions opened from
+	 * now on may nest with the vm engine, as with the Interpreter's
+	 * --max-depth option.
+	 */
+	public synchronized void setMaxDepth(int frames) {
+		_maxDepth = frames;
+	}
+
+	/**
+	 * Selects the pool on which the sessions opened from now on evaluate
+	 * costly operands in parallel with the ast engine, as with the
+	 * Interpreter's --parallel option, or evaluates them one after another
+	 * if it is null. The pool is not shut down by close.
+	 */
+	public synchronized void setParallel(ForkJoinPool pool) {
+		_pool = pool;
+	}
+
+	/**
+	 * Runs a program in the prelude, so that its definitions are seen by
+	 * every session. Only allowed before the first session is opened.
+	 */
+	public synchronized Value prelude(String programText) {
+		if (_sealed)
+			throw new IllegalStateException("The prelude is read-only once a session is open");
+		return _prelude.valueOf(_reader.parse(programText));
+	}
+
+	public synchronized Session openSession() {
+		_sealed = true;
+		Evaluator eval = new Evaluator(_reader, _prelude.globalEnv());
+		Compiler compiler = _engine.equals("closure") ? new Compiler(eval) : null;
+		if (_engine.equals("tiered"))
+			eval.setCompileThreshold(Interpreter.TIERED_COMPILE_THRESHOLD);
+		else if (_engine.equals("vm"))
+			eval.setVM();
+		eval.setMaxDepth(_maxDepth);
+		eval.setMemoize(_memoize);
+		if (compiler != null)
+			compiler.setMemoize(_memoize);
+		if (_engine.equals("ast"))
+			eval.setParallel(_pool);
+		return new Session(eval, compiler, _optimize ? new Optimizer() : null);
+	}
+
+	/**
+	 * Shuts down the default executor. Programs already submitted still run.
+	 */
+	public void close() {
+		if (_ownExecutor)
+			_executor.shutdown();
+	}
+
+	/**
+	 * A global environment of its own and the programs submitted to it.
+	 */
+	public class Session implements AutoCloseable {
+		private final Evaluator _eval;
+		private final Compiler _compiler;
+		private final Optimizer _optimizer;
+		private final Queue<Runnable> _pending = new ArrayDeque<Runnable>();
+		private boolean _running = false; // Is a program of this session on the executor?
+		private boolean _closed = false;
+
+		private Session(Evaluator eval, Compiler compiler, Optimizer optimizer) {
+			_eval = eval;
+			_compiler = compiler;
+			_optimizer = optimizer;
+		}
+
+		/**
+		 * Runs the program after the ones submitted before it. The future
+		 * completes with the program's value, or exceptionally if it could
+		 * not be run, e.g. on a LookupException.
+		 */
+		public CompletableFuture<Value> submit(final String programText) {
+			return CompletableFuture.supplyAsync(new Supplier<Value>() {
+				public Value get() { return valueOf(programText); }
+			}, _serial);
+		}
+
+		/**
+		 * Parses and runs a program on the calling thread. Only to be used
+		 * where no other program of this session can be running.
+		 */
+		Value valueOf(String programText) {
+			Program p = _reader.parse(programText);
+			if (_optimizer != null)
+				p = _optimizer.optimize(p);
+			return _compiler != null ? _compiler.valueOf(p) : _eval.valueOf(p);
+		}
+
+		/**
+		 * How many calls to memoized functions made by this session's
+		 * programs found their results remembered.
+		 */
+		public long memoHits() {
+			return _eval.memoHits();
+		}
+
+		/**
+		 * How many calls to memoized functions made by this session's
+		 * programs had to be run.
+		 */
+		public long memoMisses() {
+			return _eval.memoMisses();
+		}
+
+		/**
+		 * Refuses programs submitted from now on. Those already submitted
+		 * still run.
+		 */
+		public synchronized void close() {
+			_closed = true;
+		}
+
+		/**
+		 * Hands the session's programs to the engine's executor one at a
+		 * time, so that they run in order and never at the same time. Each
+		 * program is a task of its own, so that a busy session does not
+		 * keep other sessions from a pool thread for long.
+		 */
+		private final Executor _serial = new Executor() {
+			public void execute(Runnable program) {
+				synchronized (Session.this) {
+					if (_closed)
+						throw new IllegalStateException("Session is closed");
+					_pending.add(program);
+					if (_running)
+						return;
+					_running = true;
+				}
+				_executor.execute(_next);
+			}
+		};
+
+		private final Runnable _next = new Runnable() {
+			public void run() {
+				Runnable program;
+				synchronized (Session.this) {
+					program = _pending.poll();
+				}
+				try {
+					program.run();
+				} finally {
+					synchronized (Session.this) {
+						if (_pending.isEmpty()) {
+							_running = false;
+							return;
+						}
+					}
+					_executor.execute(_next);
+				}
+			}
+		};
+	}
+}
@@ -1,5 +1,9 @@
 package funclang;
+import java.io.BufferedReader;
+import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ForkJoinPool;
 
 import funclang.Env;
 import funclang.Value;
@@ -9,23 +13,125 @@ import funclang.AST.*;
  * This main class implements the Read-Eval-Print-Loop of the interpreter with
  * the help of Reader, Evaluator, and Printer classes. 
  * 
+ * Options:
+ *   --engine=ast       evaluate programs by walking the AST (default)
+ *   --engine=closure   compile each program into a closure tree first
+ *   --engine=tiered    walk the AST, compiling functions to JVM classes once
+ *                      they are hot
+ *   --engine=vm        compile each program to bytecode and run it on a VM
+ *   --max-depth=<n>    with --engine=vm, end programs whose calls nest more
+ *                      than n deep with an error (default 1048576)
+ *   --no-optimize      skip constant folding and list fusion between parsing and evaluation
+ *   --memoize          remember the results of calls to functions that have
+ *                      no effects and make more than one call, see Memo
+ *   --parallel         with --engine=ast, evaluate costly operands that have
+ *                      no effects in parallel
+ *   --warmup=<file>    parse the programs in file, one per line, at startup
+ *   --fast-parser      parse with the hand-written parser, falling back to
+ *                      ANTLR for programs it does not handle
+ *   --batch[=<file>]   run the programs in file (or the standard input), one
+ *                      per line, without prompting, then print a summary
+ *   --server=<port>    serve programs to local clients on a TCP port, see
+ *                      Server; --server=unix:<path> serves them on a
+ *                      Unix-domain socket instead (Java 16 and later)
+ * 
  * @author hridesh
  *
  */
 public class Interpreter {
+	static final int TIERED_COMPILE_THRESHOLD = 100;
+
 	public static void main(String[] args) {
+		String engine = "ast";
+		boolean optimize = true;
+		boolean parallel = false;
+		boolean memoize = false;
+		String warmup = null;
+		boolean fastParser = false;
+		String batch = null;
+		String server = null;
+		int maxDepth = VM.MAX_DEPTH;
+		for (String arg : args) {
+			if (arg.startsWith("--engine="))
+				engine = arg.substring("--engine=".length());
+			else if (arg.equals("--no-optimize"))
+				optimize = false;
+			else if (arg.equals("--parallel"))
+				parallel = true;
+			else if (arg.startsWith("--max-depth=")) {
+				maxDepth = positive(arg.substring("--max-depth=".length()));
+				if (maxDepth <= 0) {
+					System.out.println("Error:--max-depth needs a positive number of frames: " + arg);
+					return;
+				}
+			}
+			else if (arg.equals("--memoize"))
+				memoize = true;
+			else if (arg.startsWith("--warmup="))
+				warmup = arg.substring("--warmup=".length());
+			else if (arg.equals("--fast-parser"))
+				fastParser = true;
+			else if (arg.equals("--batch"))
+				batch = "";
+			else if (arg.startsWith("--batch="))
+				batch = arg.substring("--batch=".length());
+			else if (arg.startsWith("--server="))
+				server = arg.substring("--server=".length());
+			else
+				System.out.println("Ignoring unknown option: " + arg);
+		}
+		try {
+			FuncLangEngine.checkEngine(engine);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Error:" + e.getMessage());
+			return;
+		}
+		Reader reader = new Reader();
+		reader.setFastParser(fastParser);
+		if (warmup != null) {
+			try {
+				reader.warmUp(warmup);
+			} catch (IOException e) {
+				System.out.println("Error reading warm-up programs:" + e.getMessage());
+			}
+		}
+		ForkJoinPool pool = null;
+		if (parallel && engine.equals("ast"))
+			pool = new ForkJoinPool();
+		else if (parallel)
+			System.out.println("Ignoring --parallel, which needs --engine=ast");
+		if (server != null) {
+			runServer(server, reader, engine, optimize, memoize, maxDepth, pool);
+			return;
+		}
+		Evaluator eval = new Evaluator(reader);
+		Compiler compiler = engine.equals("closure") ? new Compiler(eval) : null;
+		if (engine.equals("tiered"))
+			eval.setCompileThreshold(TIERED_COMPILE_THRESHOLD);
+		else if (engine.equals("vm"))
+			eval.setVM();
+		eval.setMaxDepth(maxDepth);
+		eval.setMemoize(memoize);
+		if (compiler != null)
+			compiler.setMemoize(memoize);
+		eval.setParallel(pool);
+		Optimizer optimizer = optimize ? new Optimizer() : null;
+		if (batch != null) {
+			runBatch(batch, reader, eval, compiler, optimizer);
+			return;
+		}
 		System.out.println("Type a program to evaluate and press the enter key," + 
 							" e.g. ((lambda (av bv cv) (let ((a av) (b bv) (c cv) (d 279) (e 277)) (+ (* a b) (/ c (- d e))))) 3 100 84) \n" + 
 							"Press Ctrl + C to exit.");
-		Reader reader = new Reader();
-		Evaluator eval = new Evaluator(reader);
 		Printer printer = new Printer();
 		REPL: while (true) { // Read-Eval-Print-Loop (also known as REPL)
 			Program p = null;
 			try {
 				p = reader.read();
+				if(p == null) break REPL; // End of input.
 				if(p._e == null) continue REPL;
-				Value val = eval.valueOf(p);
+				if(optimizer != null) p = optimizer.optimize(p);
+				Value val = compiler != null ? compiler.valueOf(p) : eval.valueOf(p);
 				printer.print(val);
 			} catch (Env.LookupException e) {
 				printer.print(e);
@@ -36,4 +142,47 @@ public class Interpreter {
 			}
 		}
 	}
+
+	/**
+	 * The positive number text holds, or 0 if it holds none.
+	 */
+	private static int positive(String text) {
+		try {
+			return Math.max(Integer.parseInt(text), 0);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	private static void runBatch(String fileName, Reader reader, Evaluator eval, Compiler compiler, Optimizer optimizer) {
+		try (BufferedReader in = new BufferedReader(fileName.isEmpty()
+				? new InputStreamReader(System.in) : new FileReader(fileName))) {
+			int parseThreads = Runtime.getRuntime().availableProcessors();
+			new Batch(reader, eval, compiler, optimizer, parseThreads).run(in, System.out);
+		} catch (IOException e) {
+			System.out.println("Error reading input:" + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void runServer(String address, Reader reader, String engine, boolean optimize,
+			boolean memoize, int maxDepth, ForkJoinPool pool) {
+		try (FuncLangEngine funclang = new FuncLangEngine(reader, null)) {
+			funclang.setEngine(engine);
+			funclang.setOptimize(optimize);
+			funclang.setMemoize(memoize);
+			funclang.setMaxDepth(maxDepth);
+			funclang.setParallel(pool);
+			Server server = address.startsWith("unix:")
+					? Server.unix(funclang, address.substring("unix:".length()))
+					: Server.tcp(funclang, Integer.parseInt(address));
+			System.out.println("Listening on " + server.address());
+			server.serve();
+		} catch (IOException e) {
+			System.out.println("Error serving:" + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			System.out.println("Error:" + e.getMessage());
+		}
+	}
 }
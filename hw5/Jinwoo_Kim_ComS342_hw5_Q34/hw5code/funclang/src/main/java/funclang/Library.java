@@ -0,0 +1,415 @@
+package funclang;
+
+import java.util.Arrays;
+import java.util.List;
+
+import funclang.AST.CallExp;
+import funclang.AST.FusedExp;
+import funclang.AST.VarExp;
+import funclang.Env.GlobalEnv;
+import funclang.Value.*;
+
+/**
+ * The procedures every program starts with. They are native functions:
+ * called with the values of their operands, without building a frame, and
+ * walking lists in loops rather than by recursion, so they run in constant
+ * stack space on lists of any length.
+ *
+ * Those taking a function call it back through the engine running the
+ * program. The first error it returns is the result of the whole call.
+ */
+final class Library {
+	private Library() {}
+
+	/**
+	 * Defines the procedures in env.
+	 */
+	static void install(GlobalEnv env) {
+		/* Procedure: (read <filename>), the text of a file. */
+		define(env, new NativeFunVal("read", 1, false) {
+			Value apply(Value[] args, Caller caller) {
+				return Evaluator.read(args[0]);
+			}
+		});
+
+		/* Procedure: (require <filename>), same as (eval (read <filename>)). */
+		define(env, new NativeFunVal("require", 1, false) {
+			Value apply(Value[] args, Caller caller) {
+				return caller.evaluator().require(args[0]);
+			}
+		});
+
+		/* Procedure: (readlines <filename>), the lines of a file. */
+		define(env, new NativeFunVal("readlines", 1, false) {
+			Value apply(Value[] args, Caller caller) {
+				return Evaluator.readLines(args[0]);
+			}
+		});
+
+		/* Procedure: (memo <function>), a memoized copy of a function. */
+		define(env, new NativeFunVal("memo", 1, true) {
+			Value apply(Value[] args, Caller caller) {
+				return Evaluator.memo(args[0]);
+			}
+		});
+
+		/* Procedure: (listref <list> <index>), counting from 0. */
+		define(env, new NativeFunVal("listref", 2, true) {
+			Value apply(Value[] args, Caller caller) {
+				return Evaluator.listRef(args[0], args[1]);
+			}
+		});
+
+		/* Procedure: (length <string or list>). */
+		define(env, new NativeFunVal("length", 1, true) {
+			Value apply(Value[] args, Caller caller) {
+				return Evaluator.length(args[0]);
+			}
+		});
+
+		/* Procedure: (map <function> <list>), the results of the function on each element. */
+		define(env, new NativeFunVal("map", 2, false) {
+			Value apply(Value[] args, Caller caller) {
+				Value[] elems = elements(args[1]);
+				if (elems == null)
+					return notList(name());
+				Value[] arg = new Value[1];
+				for (int i = 0; i < elems.length; i++) {
+					arg[0] = elems[i];
+					Value result = call(args[0], arg, caller);
+					if (result instanceof DynamicError)
+						return result;
+					elems[i] = result;
+				}
+				return list(elems, elems.length);
+			}
+		});
+
+		/* Procedure: (filter <predicate> <list>), the elements for which the predicate holds. */
+		define(env, new NativeFunVal("filter", 2, false) {
+			Value apply(Value[] args, Caller caller) {
+				Value[] elems = elements(args[1]);
+				if (elems == null)
+					return notList(name());
+				Value[] arg = new Value[1];
+				int kept = 0;
+				for (int i = 0; i < elems.length; i++) {
+					arg[0] = elems[i];
+					Value result = call(args[0], arg, caller);
+					if (result instanceof DynamicError)
+						return result;
+					if (!(result instanceof BoolVal))
+						return new DynamicError("Predicate for filter did not return a boolean.");
+					if (((BoolVal) result).v())
+						elems[kept++] = elems[i];
+				}
+				return list(elems, kept);
+			}
+		});
+
+		/* Procedure: (foldl <function> <initial> <list>), calling (function acc element) from the left. */
+		define(env, new NativeFunVal("foldl", 3, false) {
+			Value apply(Value[] args, Caller caller) {
+				Value[] elems = elements(args[2]);
+				if (elems == null)
+					return notList(name());
+				Value acc = args[1];
+				Value[] arg = new Value[2];
+				for (int i = 0; i < elems.length; i++) {
+					arg[0] = acc;
+					arg[1] = elems[i];
+					acc = call(args[0], arg, caller);
+					if (acc instanceof DynamicError)
+						return acc;
+				}
+				return acc;
+			}
+		});
+
+		/* Procedure: (append <list> <rest>), the elements of the list followed by rest. */
+		define(env, new NativeFunVal("append", 2, true) {
+			Value apply(Value[] args, Caller caller) {
+				Value[] elems = elements(args[0]);
+				if (elems == null)
+					return notList(name());
+				Value rest = args[1];
+				if (elems.length == 0)
+					return rest;
+				if (rest instanceof Null)
+					return new ListVal(elems);
+				if (rest instanceof ListVal) {
+					ListVal tail = (ListVal) rest;
+					Value[] all = Arrays.copyOf(elems, elems.length + tail.length());
+					for (int i = 0; i < tail.length(); i++)
+						all[elems.length + i] = tail.get(i);
+					return new ListVal(all);
+				}
+				for (int i = elems.length - 1; i >= 0; i--)
+					rest = new PairVal(elems[i], rest);
+				return rest;
+			}
+		});
+
+		/* Procedure: (reverse <list>). */
+		define(env, new NativeFunVal("reverse", 1, true) {
+			Value apply(Value[] args, Caller caller) {
+				Value[] elems = elements(args[0]);
+				if (elems == null)
+					return notList(name());
+				for (int i = 0, j = elems.length - 1; i < j; i++, j--) {
+					Value elem = elems[i];
+					elems[i] = elems[j];
+					elems[j] = elem;
+				}
+				return list(elems, elems.length);
+			}
+		});
+
+		/* Procedures: (sum <list>), (product <list>), (max <list>) and (min <list>) of numbers. */
+		define(env, new Reduction("sum", 0) {
+			double combine(double acc, double v) { return acc + v; }
+		});
+		define(env, new Reduction("product", 1) {
+			double combine(double acc, double v) { return acc * v; }
+		});
+		define(env, new Reduction("max", Double.NaN) {
+			double combine(double acc, double v) { return Math.max(acc, v); }
+		});
+		define(env, new Reduction("min", Double.NaN) {
+			double combine(double acc, double v) { return Math.min(acc, v); }
+		});
+	}
+
+	private static void define(GlobalEnv env, NativeFunVal f) {
+		env.extend(f.name(), f);
+	}
+
+	/**
+	 * A procedure combining the numbers in a list, starting from identity,
+	 * or from the first element if it is NaN, in which case the list must
+	 * not be empty.
+	 */
+	private static abstract class Reduction extends NativeFunVal {
+		private final double _identity;
+		Reduction(String name, double identity) {
+			super(name, 1, true);
+			_identity = identity;
+		}
+
+		abstract double combine(double acc, double v);
+
+		Value apply(Value[] args, Caller caller) {
+			Value[] elems = elements(args[0]);
+			if (elems == null)
+				return notList(name());
+			boolean first = Double.isNaN(_identity);
+			if (first && elems.length == 0)
+				return new DynamicError("Parameter for " + name() + " was an empty list.");
+			double acc = _identity;
+			for (int i = 0; i < elems.length; i++) {
+				if (!(elems[i] instanceof NumVal))
+					return new DynamicError("Element of list for " + name() + " was not a number.");
+				double v = ((NumVal) elems[i]).v();
+				acc = first && i == 0 ? v : combine(acc, v);
+			}
+			return NumVal.of(acc);
+		}
+	}
+
+	/**
+	 * Whether a call to the procedure named name with the given number of
+	 * operands can be a stage of a FusedExp: map and filter can be any
+	 * stage, foldl, length and the reductions only the last.
+	 */
+	static boolean fusable(String name, int operands, boolean last) {
+		if (name.equals("map") || name.equals("filter"))
+			return operands == 2;
+		if (!last)
+			return false;
+		if (name.equals("foldl"))
+			return operands == 3;
+		return operands == 1 && (name.equals("length") || name.equals("sum") || name.equals("product")
+				|| name.equals("max") || name.equals("min"));
+	}
+
+	/**
+	 * The procedures called by the stages of e, their operators looked up
+	 * in env, or null if one of them is not a library procedure that
+	 * fusable accepts there, as when the program has defined or bound its
+	 * own map.
+	 */
+	static NativeFunVal[] stages(FusedExp e, Env env) {
+		List<CallExp> stages = e.stages();
+		NativeFunVal[] funs = new NativeFunVal[stages.size()];
+		for (int i = 0; i < funs.length; i++) {
+			VarExp var = (VarExp) stages.get(i).operator();
+			Value f = var.depth() < 0 ? env.get(var.name()) : env.get(var.depth(), var.slot());
+			int operands = stages.get(i).operands().size();
+			if (!(f instanceof NativeFunVal) || ((NativeFunVal) f).arity() != operands
+					|| !fusable(((NativeFunVal) f).name(), operands, i == funs.length - 1))
+				return null;
+			funs[i] = (NativeFunVal) f;
+		}
+		return funs;
+	}
+
+	/**
+	 * The value of the chain of calls to stages, innermost first, each
+	 * with its args before the list, starting from source.
+	 *
+	 * The stages run in one pass when the functions they call have no
+	 * effects, see Effects, so that the order of their calls does not
+	 * matter. Should a call fail, the stages are run again one after
+	 * another, so that the error is the one the first failing stage gives.
+	 */
+	static Value fuse(NativeFunVal[] stages, Value[][] args, Value source, NativeFunVal.Caller caller) {
+		int length = ListVal.length(source);
+		if (length >= 0 && pure(stages, args)) {
+			try {
+				Value result = fused(stages, args, source, length, caller);
+				if (result != null)
+					return result;
+			} catch (RuntimeException e) {
+				// A call failed; so does the same call run by its own stage.
+			}
+		}
+		Value list = source;
+		for (int i = 0; i < stages.length; i++) {
+			Value[] all = Arrays.copyOf(args[i], args[i].length + 1);
+			all[args[i].length] = list;
+			list = stages[i].apply(all, caller);
+		}
+		return list;
+	}
+
+	private static boolean pure(NativeFunVal[] stages, Value[][] args) {
+		for (int i = 0; i < stages.length; i++) {
+			if (args[i].length == 0)
+				continue; // A reduction or length, which calls nothing.
+			Value f = args[i][0];
+			if (f instanceof NativeFunVal ? !((NativeFunVal) f).pure()
+					: !(f instanceof FunVal) || !Effects.pure((FunVal) f, null))
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Runs the stages in one pass over the length elements of source, or
+	 * returns null if a call fails.
+	 */
+	private static Value fused(NativeFunVal[] stages, Value[][] args, Value source, int length, NativeFunVal.Caller caller) {
+		int last = stages.length - 1;
+		String consumer = stages[last].name();
+		boolean listed = consumer.equals("map") || consumer.equals("filter");
+		boolean folded = consumer.equals("foldl");
+		Reduction reduction = stages[last] instanceof Reduction ? (Reduction) stages[last] : null;
+		boolean[] mapped = new boolean[stages.length];
+		for (int i = 0; i < stages.length; i++)
+			mapped[i] = stages[i].name().equals("map");
+
+		Value[] out = listed ? new Value[length] : null;
+		int n = 0; // Elements that made it through every map and filter.
+		Value acc = folded ? args[last][1] : null;
+		double number = reduction != null ? reduction._identity : 0;
+		Value[] arg = new Value[1];
+		Value[] fold = new Value[2];
+		Cursor cursor = new Cursor(source);
+		elements:
+		for (int k = 0; k < length; k++) {
+			Value x = cursor.next();
+			for (int i = 0; i < stages.length && (i < last || listed); i++) {
+				arg[0] = x;
+				Value result = stages[i].call(args[i][0], arg, caller);
+				if (mapped[i]) {
+					if (result instanceof DynamicError)
+						return null;
+					x = result;
+				} else {
+					if (!(result instanceof BoolVal))
+						return null;
+					if (!((BoolVal) result).v())
+						continue elements;
+				}
+			}
+			if (listed) {
+				out[n++] = x;
+			} else if (folded) {
+				fold[0] = acc;
+				fold[1] = x;
+				acc = stages[last].call(args[last][0], fold, caller);
+				if (acc instanceof DynamicError)
+					return null;
+				n++;
+			} else if (reduction != null) {
+				if (!(x instanceof NumVal))
+					return null;
+				double v = ((NumVal) x).v();
+				number = n == 0 && Double.isNaN(number) ? v : reduction.combine(number, v);
+				n++;
+			} else {
+				n++;
+			}
+		}
+		if (listed)
+			return list(out, n);
+		if (folded)
+			return acc;
+		if (reduction == null)
+			return NumVal.of(n);
+		if (n == 0 && Double.isNaN(number))
+			return null; // max or min of no elements.
+		return NumVal.of(number);
+	}
+
+	/**
+	 * Walks a list made of pairs, ending in a list made by list, or not.
+	 */
+	private static final class Cursor {
+		private Value _rest;
+		private int _index = 0; // In _rest, once it is a ListVal.
+		Cursor(Value list) { _rest = list; }
+		/** The next element; there must be one. */
+		Value next() {
+			if (_rest instanceof ListVal)
+				return ((ListVal) _rest).get(_index++);
+			PairVal pair = (PairVal) _rest;
+			_rest = pair.snd();
+			return pair.fst();
+		}
+	}
+
+	/**
+	 * The elements of list, in a new array, or null if it is not a list.
+	 */
+	static Value[] elements(Value list) {
+		int length = ListVal.length(list);
+		if (length < 0)
+			return null;
+		Value[] elems = new Value[length];
+		int i = 0;
+		while (list instanceof PairVal && !(list instanceof ListVal)) {
+			elems[i++] = ((PairVal) list).fst();
+			list = ((PairVal) list).snd();
+		}
+		if (list instanceof ListVal) {
+			ListVal rest = (ListVal) list;
+			for (int j = 0; j < rest.length(); j++)
+				elems[i++] = rest.get(j);
+		}
+		return elems;
+	}
+
+	/**
+	 * The list of the first n of elems, which it may keep.
+	 */
+	static Value list(Value[] elems, int n) {
+		if (n == 0)
+			return new Null();
+		return new ListVal(n == elems.length ? elems : Arrays.copyOf(elems, n));
+	}
+
+	private static Value notList(String name) {
+		return new DynamicError("Parameter for " + name + " was not a list.");
+	}
+}
@@ -0,0 +1,143 @@
+package funclang;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reads the lines of a file through memory-mapped buffers, decoding the
+ * characters only as lines are asked for. Lines end at \n, \r or \r\n, as
+ * with BufferedReader.readLine, and are decoded with the default charset,
+ * as with FileReader.
+ *
+ * The file is mapped one window at a time, so files larger than the heap,
+ * or than a single mapping can be, are read in bounded memory. The file is
+ * only open while a window is being mapped. Characters are decoded CHUNK
+ * at a time.
+ */
+final class LineReader {
+	static final int WINDOW = 1 << 26;
+	static final int CHUNK = 8192;
+
+	private final String _fileName;
+	private final long _size;
+	private final int _window;
+	private long _offset = 0; // Of the first byte after the mapped window.
+	private ByteBuffer _bytes;
+	private final CharsetDecoder _decoder;
+	private final CharBuffer _chars = CharBuffer.allocate(CHUNK);
+	private boolean _decoded = false; // Has the whole file been decoded?
+	private boolean _skipLF = false; // Did the last line end with \r?
+
+	LineReader(String fileName) throws IOException {
+		this(fileName, Charset.defaultCharset(), WINDOW);
+	}
+
+	/**
+	 * A reader decoding with charset and mapping window bytes at a time,
+	 * which must be enough for any one character.
+	 */
+	LineReader(String fileName, Charset charset, int window) throws IOException {
+		_fileName = fileName;
+		_window = window;
+		_decoder = charset.newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			_size = file.length();
+			map(file.getChannel());
+		}
+		_chars.flip();
+	}
+
+	long size() {
+		return _size;
+	}
+
+	private void map(FileChannel channel) throws IOException {
+		long length = Math.min(_window, _size - _offset);
+		_bytes = channel.map(FileChannel.MapMode.READ_ONLY, _offset, length);
+		_offset += length;
+	}
+
+	/**
+	 * Decodes more characters into _chars, which must have been consumed.
+	 * Returns false at the end of the file.
+	 */
+	private boolean fill() throws IOException {
+		_chars.clear();
+		try {
+			while (_chars.position() == 0 && !_decoded) {
+				boolean last = _offset == _size;
+				CoderResult result = _decoder.decode(_bytes, _chars, last);
+				if (result.isError())
+					throw new CharacterCodingException();
+				if (result.isOverflow())
+					continue;
+				if (last) {
+					_decoder.flush(_chars);
+					_decoded = true;
+				} else {
+					// Map the next window, starting with any bytes of a
+					// character split at the end of this one.
+					_offset -= _bytes.remaining();
+					try (RandomAccessFile file = new RandomAccessFile(_fileName, "r")) {
+						map(file.getChannel());
+					}
+				}
+			}
+		} finally {
+			_chars.flip();
+		}
+		return _chars.hasRemaining();
+	}
+
+	/**
+	 * Appends the next line, without its line terminator, to line. Returns
+	 * false if there are no more lines.
+	 */
+	boolean nextLine(StringBuilder line) throws IOException {
+		boolean started = false;
+		while (true) {
+			if (!_chars.hasRemaining() && !fill())
+				return started;
+			if (_skipLF) {
+				_skipLF = false;
+				if (_chars.get(_chars.position()) == '\n') {
+					_chars.get();
+					continue;
+				}
+			}
+			started = true;
+			char[] chars = _chars.array();
+			int start = _chars.arrayOffset() + _chars.position();
+			int end = _chars.arrayOffset() + _chars.limit();
+			for (int i = start; i < end; i++) {
+				char c = chars[i];
+				if (c == '\n' || c == '\r') {
+					line.append(chars, start, i - start);
+					_chars.position(i + 1 - _chars.arrayOffset());
+					_skipLF = c == '\r';
+					return true;
+				}
+			}
+			line.append(chars, start, end - start);
+			_chars.position(_chars.limit());
+		}
+	}
+
+	/**
+	 * Returns the next line, or null if there are no more lines.
+	 */
+	String readLine() throws IOException {
+		StringBuilder line = new StringBuilder();
+		return nextLine(line) ? line.toString() : null;
+	}
+}
@@ -0,0 +1,155 @@
+package funclang;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import funclang.Env.GlobalEnv;
+import funclang.Value.*;
+
+/**
+ * The results of calls to one function, keyed by the values of their
+ * arguments, compared by structure. Bounded, evicting the least recently
+ * used result once full.
+ *
+ * A function is memoized either by the memo procedure, (memo f) returning
+ * a memoized copy of f, or, with --memoize, automatically when Effects
+ * proves that calls to it have no effects and its body makes more than one
+ * call, as in naive recursive definitions, which are the ones whose
+ * running time memoizing changes. Functions whose body makes a single
+ * call, such as loops, are left alone: memoized calls are not tail calls.
+ *
+ * A result may depend on the values of global variables, so results are
+ * dropped whenever a variable is defined in the global environment the
+ * function was created in, or one that environment is layered over, such
+ * as a shared prelude. Definitions made by other sessions leave them be.
+ * Calls with arguments that cannot be hashed without being read, i.e. the
+ * lines of a file, are not memoized.
+ */
+final class Memo {
+	static final int DEFAULT_CAPACITY = 1 << 12;
+
+	/**
+	 * The arguments of a call.
+	 */
+	static final class Key {
+		private final Value[] _args;
+		private final int _hash;
+		private Key(Value[] args, int hash) {
+			_args = args;
+			_hash = hash;
+		}
+		public int hashCode() {
+			return _hash;
+		}
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			if (_hash != other._hash || _args.length != other._args.length)
+				return false;
+			for (int i = 0; i < _args.length; i++)
+				if (!Comparison.same(_args[i], other._args[i]))
+					return false;
+			return true;
+		}
+	}
+
+	/**
+	 * How many calls memos found the results of, and how many they did
+	 * not, counted for the engine that made the calls.
+	 */
+	static final class Stats {
+		private final LongAdder _hits = new LongAdder();
+		private final LongAdder _misses = new LongAdder();
+		long hits() { return _hits.sum(); }
+		long misses() { return _misses.sum(); }
+	}
+
+	private final boolean _explicit;
+	private final Map<Key, Value> _results;
+	private final Env _env; // Where the function was created.
+	private long _version; // Of its global environment, when the results were computed.
+
+	/**
+	 * A memo for a function created in env.
+	 */
+	Memo(boolean explicit, Env env) {
+		this(explicit, env, DEFAULT_CAPACITY);
+	}
+
+	Memo(boolean explicit, Env env, final int capacity) {
+		_explicit = explicit;
+		_env = env;
+		_version = GlobalEnv.version(env);
+		_results = new LinkedHashMap<Key, Value>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<Key, Value> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	/**
+	 * The memo to use for a call to f: f's own if it was memoized with memo,
+	 * and otherwise, if automatic is set and f is worth memoizing, the one
+	 * attached to f for that purpose. Null if the call is not memoized.
+	 */
+	static Memo of(FunVal f, boolean automatic) {
+		Memo memo = f.memo();
+		if (memo != null && memo._explicit)
+			return memo;
+		if (!automatic || !Effects.memoizable(f))
+			return null;
+		if (memo == null) {
+			memo = new Memo(false, f.env());
+			f.setMemo(memo);
+		}
+		return memo;
+	}
+
+	/**
+	 * The key for actuals, or null if they cannot be hashed.
+	 */
+	static Key key(Value[] actuals) {
+		int hash = 1;
+		for (Value actual : actuals) {
+			if (actual instanceof LazyPairVal)
+				return null;
+			if (actual instanceof PairVal && !Comparison.hashPairs((PairVal) actual))
+				return null;
+			hash = 31 * hash + Comparison.hash(actual);
+		}
+		return new Key(actuals.clone(), hash);
+	}
+
+	/**
+	 * The result of the call with key, or null, counting either in stats.
+	 */
+	synchronized Value get(Key key, Stats stats) {
+		drop();
+		Value result = _results.get(key);
+		if (result != null)
+			stats._hits.increment();
+		else
+			stats._misses.increment();
+		return result;
+	}
+
+	synchronized void put(Key key, Value result) {
+		drop();
+		_results.put(key, result);
+	}
+
+	/**
+	 * Drops the results if a variable that the function could see has been
+	 * defined since they were computed.
+	 */
+	private void drop() {
+		long version = GlobalEnv.version(_env);
+		if (version != _version) {
+			_results.clear();
+			_version = version;
+		}
+	}
+}
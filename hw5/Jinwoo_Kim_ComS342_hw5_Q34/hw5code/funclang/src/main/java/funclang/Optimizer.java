@@ -0,0 +1,318 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.AST.*;
+
+/**
+ * This pass rewrites a program into an equivalent one that does less work
+ * at run time:
+ *
+ *  - arithmetic and comparisons whose operands are all number literals
+ *    are folded,
+ *  - an if expression whose condition is a boolean literal is replaced by
+ *    the selected branch,
+ *  - let-bound literals are propagated into the let body, and bindings
+ *    that are no longer needed are dropped,
+ *  - chains of calls to list procedures, such as (sum (map f l)), are
+ *    fused into one pass over the list, see FusedExp.
+ *
+ * The input program is left untouched; every rewritten node is new.
+ *
+ */
+public class Optimizer implements AST.Visitor<ASTNode> {
+
+	private Map<String, Exp> _constants = new HashMap<String, Exp>(); // Let-bound literals in scope.
+
+	public Program optimize(Program p) {
+		return (Program) p.accept(this, null);
+	}
+
+	private static boolean isLiteral(Exp e) {
+		return e instanceof NumExp || e instanceof StrExp || e instanceof BoolExp;
+	}
+
+	private List<Exp> optimizeAll(List<Exp> exps) {
+		List<Exp> result = new ArrayList<Exp>(exps.size());
+		for (Exp exp : exps)
+			result.add((Exp) exp.accept(this, null));
+		return result;
+	}
+
+	/**
+	 * Optimizes body in a scope where names are bound to something other
+	 * than the constants, hiding any constant of the same name.
+	 */
+	private Exp optimizeShadowed(List<String> names, Exp body) {
+		Map<String, Exp> saved = _constants;
+		_constants = new HashMap<String, Exp>(saved);
+		for (String name : names)
+			_constants.remove(name);
+		try {
+			return (Exp) body.accept(this, null);
+		} finally {
+			_constants = saved;
+		}
+	}
+
+	static List<Exp> children(Exp e) {
+		List<Exp> children = new ArrayList<Exp>();
+		if (e instanceof CompoundArithExp) {
+			children.addAll(((CompoundArithExp) e).all());
+		} else if (e instanceof LetExp) {
+			children.addAll(((LetExp) e).value_exps());
+			children.add(((LetExp) e).body());
+		} else if (e instanceof LambdaExp) {
+			children.addAll(((LambdaExp) e).formals());
+			children.add(((LambdaExp) e).body());
+		} else if (e instanceof ArgExp) {
+			if (((ArgExp) e).getExp() != null)
+				children.add(((ArgExp) e).getExp());
+		} else if (e instanceof CallExp) {
+			children.add(((CallExp) e).operator());
+			children.addAll(((CallExp) e).operands());
+		} else if (e instanceof IfExp) {
+			children.add(((IfExp) e).conditional());
+			children.add(((IfExp) e).then_exp());
+			children.add(((IfExp) e).else_exp());
+		} else if (e instanceof BinaryComparator) {
+			children.add(((BinaryComparator) e).first_exp());
+			children.add(((BinaryComparator) e).second_exp());
+		} else if (e instanceof CarExp) {
+			children.add(((CarExp) e).arg());
+		} else if (e instanceof CdrExp) {
+			children.add(((CdrExp) e).arg());
+		} else if (e instanceof NullExp) {
+			children.add(((NullExp) e).arg());
+		} else if (e instanceof ConsExp) {
+			children.add(((ConsExp) e).fst());
+			children.add(((ConsExp) e).snd());
+		} else if (e instanceof ListExp) {
+			children.addAll(((ListExp) e).elems());
+		} else if (e instanceof FusedExp) {
+			children.add(((FusedExp) e).original());
+		} else if (e instanceof DefineDecl) {
+			children.add(((DefineDecl) e).value_exp());
+		}
+		return children;
+	}
+
+	public ASTNode visit(Program p, Env env) {
+		List<DefineDecl> decls = new ArrayList<DefineDecl>(p.decls().size());
+		for (DefineDecl d : p.decls())
+			decls.add((DefineDecl) d.accept(this, null));
+		return new Program(decls, (Exp) p.e().accept(this, null));
+	}
+
+	public ASTNode visit(DefineDecl d, Env env) {
+		return new DefineDecl(d.name(), (Exp) d.value_exp().accept(this, null));
+	}
+
+	public ASTNode visit(VarExp e, Env env) {
+		Exp value = _constants.get(e.name());
+		if (value != null)
+			return value;
+		return new VarExp(e.name());
+	}
+
+	public ASTNode visit(AddExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands))
+			return new AddExp(operands);
+		double result = 0;
+		for (Exp exp : operands)
+			result += ((NumExp) exp).v();
+		return new NumExp(result);
+	}
+
+	public ASTNode visit(SubExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands))
+			return new SubExp(operands);
+		double result = ((NumExp) operands.get(0)).v();
+		for (int i = 1; i < operands.size(); i++)
+			result = result - ((NumExp) operands.get(i)).v();
+		return new NumExp(result);
+	}
+
+	public ASTNode visit(MultExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands))
+			return new MultExp(operands);
+		double result = 1;
+		for (Exp exp : operands)
+			result *= ((NumExp) exp).v();
+		return new NumExp(result);
+	}
+
+	public ASTNode visit(DivExp e, Env env) {
+		List<Exp> operands = optimizeAll(e.all());
+		if (!allNumbers(operands))
+			return new DivExp(operands);
+		double result = ((NumExp) operands.get(0)).v();
+		for (int i = 1; i < operands.size(); i++)
+			result = result / ((NumExp) operands.get(i)).v();
+		return new NumExp(result);
+	}
+
+	private static boolean allNumbers(List<Exp> exps) {
+		for (Exp exp : exps)
+			if (!(exp instanceof NumExp))
+				return false;
+		return true;
+	}
+
+	public ASTNode visit(IfExp e, Env env) {
+		Exp conditional = (Exp) e.conditional().accept(this, null);
+		if (conditional instanceof BoolExp) {
+			if (((BoolExp) conditional).v())
+				return (Exp) e.then_exp().accept(this, null);
+			return (Exp) e.else_exp().accept(this, null);
+		}
+		return new IfExp(conditional,
+				(Exp) e.then_exp().accept(this, null),
+				(Exp) e.else_exp().accept(this, null));
+	}
+
+	public ASTNode visit(LetExp e, Env env) {
+		List<String> names = e.names();
+		List<Exp> value_exps = optimizeAll(e.value_exps());
+
+		Map<String, Exp> saved = _constants;
+		_constants = new HashMap<String, Exp>(saved);
+		for (int i = 0; i < names.size(); i++)
+			_constants.remove(names.get(i));
+		for (int i = 0; i < names.size(); i++) {
+			// With duplicate names, the last binding is the one in scope.
+			if (isLiteral(value_exps.get(i)) && names.lastIndexOf(names.get(i)) == i)
+				_constants.put(names.get(i), value_exps.get(i));
+		}
+		Exp body;
+		try {
+			body = (Exp) e.body().accept(this, null);
+		} finally {
+			_constants = saved;
+		}
+
+		List<String> new_names = new ArrayList<String>();
+		List<Exp> new_value_exps = new ArrayList<Exp>();
+		for (int i = 0; i < names.size(); i++) {
+			if (!isLiteral(value_exps.get(i))) { // Literals have all been propagated.
+				new_names.add(names.get(i));
+				new_value_exps.add(value_exps.get(i));
+			}
+		}
+		if (new_names.isEmpty())
+			return body;
+		return new LetExp(new_names, new_value_exps, body);
+	}
+
+	public ASTNode visit(LambdaExp e, Env env) {
+		List<Exp> formals = optimizeAll(e.formals());
+		List<String> names = new ArrayList<String>();
+		for (Exp formal : formals)
+			names.add(Resolver.formalName(formal));
+		return new LambdaExp(formals, optimizeShadowed(names, e.body()));
+	}
+
+	/**
+	 * Defaults are left as written: only number literals are defaults (see
+	 * FunVal), so folding another expression into one, or propagating a
+	 * constant into it, would give a default where there was none.
+	 */
+	public ASTNode visit(ArgExp e, Env env) {
+		return new ArgExp(e.getVar(), e.getExp());
+	}
+
+	public ASTNode visit(CallExp e, Env env) {
+		return fuse(new CallExp((Exp) e.operator().accept(this, null), optimizeAll(e.operands())));
+	}
+
+	/**
+	 * Turns call into a FusedExp if it starts a chain of at least two calls
+	 * to list procedures that Library.fusable accepts, each given the list
+	 * the next one returns. The operands other than the lists must be
+	 * variables, literals or lambda expressions: looking up the operators
+	 * before evaluating them then changes nothing.
+	 */
+	private static Exp fuse(CallExp call) {
+		List<CallExp> chain = new ArrayList<CallExp>();
+		Exp e = call;
+		while (true) {
+			// A FusedExp operand is a shorter chain, fused before this call.
+			Exp original = e instanceof FusedExp ? ((FusedExp) e).original() : e;
+			if (!(original instanceof CallExp) || !isStage((CallExp) original, chain.isEmpty()))
+				break;
+			CallExp stage = (CallExp) original;
+			chain.add(stage);
+			e = stage.operands().get(stage.operands().size() - 1);
+		}
+		if (chain.size() < 2)
+			return call;
+		Exp list = e;
+		for (int i = chain.size() - 1; i >= 0; i--) {
+			CallExp stage = chain.get(i);
+			List<Exp> operands = new ArrayList<Exp>(stage.operands());
+			operands.set(operands.size() - 1, list);
+			list = new CallExp(stage.operator(), operands);
+		}
+		return new FusedExp((CallExp) list, chain.size());
+	}
+
+	private static boolean isStage(CallExp call, boolean last) {
+		if (!(call.operator() instanceof VarExp))
+			return false;
+		List<Exp> operands = call.operands();
+		if (!Library.fusable(((VarExp) call.operator()).name(), operands.size(), last))
+			return false;
+		for (int i = 0; i < operands.size() - 1; i++) {
+			Exp operand = operands.get(i);
+			if (!(isLiteral(operand) || operand instanceof VarExp || operand instanceof LambdaExp))
+				return false;
+		}
+		return true;
+	}
+
+	public ASTNode visit(LessExp e, Env env) {
+		Exp first = (Exp) e.first_exp().accept(this, null);
+		Exp second = (Exp) e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return new BoolExp(((NumExp) first).v() < ((NumExp) second).v());
+		return new LessExp(first, second);
+	}
+
+	public ASTNode visit(EqualExp e, Env env) {
+		Exp first = (Exp) e.first_exp().accept(this, null);
+		Exp second = (Exp) e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return new BoolExp(((NumExp) first).v() == ((NumExp) second).v());
+		return new EqualExp(first, second);
+	}
+
+	public ASTNode visit(GreaterExp e, Env env) {
+		Exp first = (Exp) e.first_exp().accept(this, null);
+		Exp second = (Exp) e.second_exp().accept(this, null);
+		if (first instanceof NumExp && second instanceof NumExp)
+			return new BoolExp(((NumExp) first).v() > ((NumExp) second).v());
+		return new GreaterExp(first, second);
+	}
+
+	public ASTNode visit(CarExp e, Env env) { return new CarExp((Exp) e.arg().accept(this, null)); }
+	public ASTNode visit(CdrExp e, Env env) { return new CdrExp((Exp) e.arg().accept(this, null)); }
+	public ASTNode visit(NullExp e, Env env) { return new NullExp((Exp) e.arg().accept(this, null)); }
+
+	public ASTNode visit(ConsExp e, Env env) {
+		return new ConsExp((Exp) e.fst().accept(this, null), (Exp) e.snd().accept(this, null));
+	}
+
+	public ASTNode visit(ListExp e, Env env) { return new ListExp(optimizeAll(e.elems())); }
+	public ASTNode visit(FusedExp e, Env env) { return (ASTNode) e.original().accept(this, null); }
+
+	public ASTNode visit(UnitExp e, Env env) { return e; }
+	public ASTNode visit(NumExp e, Env env) { return e; }
+	public ASTNode visit(StrExp e, Env env) { return e; }
+	public ASTNode visit(BoolExp e, Env env) { return e; }
+}
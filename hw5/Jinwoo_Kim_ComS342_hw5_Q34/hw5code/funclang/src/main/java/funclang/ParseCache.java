@@ -0,0 +1,106 @@
+package funclang;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import funclang.AST.Program;
+
+/**
+ * A bounded cache of parsed programs, evicting the least recently used
+ * entry once full.
+ *
+ * Program text is keyed by its content. Files are keyed by their path and
+ * remembered together with their modification time and size, so an entry
+ * is dropped as soon as the file changes on disk.
+ *
+ * Cached programs are shared: passes that run before evaluation either
+ * build a new tree (Optimizer) or annotate the tree the same way on every
+ * run (Resolver).
+ */
+public class ParseCache {
+	public static final int DEFAULT_CAPACITY = 256;
+
+	private static class FileEntry {
+		private final long _modified;
+		private final long _length;
+		private final Program _program;
+		FileEntry(long modified, long length, Program program) {
+			_modified = modified;
+			_length = length;
+			_program = program;
+		}
+	}
+
+	private final Map<String, Program> _texts;
+	private final Map<String, FileEntry> _files;
+	private long _hits = 0;
+	private long _misses = 0;
+
+	public ParseCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public ParseCache(final int capacity) {
+		_texts = new LinkedHashMap<String, Program>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, Program> eldest) {
+				return size() > capacity;
+			}
+		};
+		_files = new LinkedHashMap<String, FileEntry>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+			protected boolean removeEldestEntry(Map.Entry<String, FileEntry> eldest) {
+				return size() > capacity;
+			}
+		};
+	}
+
+	public synchronized Program get(String programText) {
+		Program p = _texts.get(programText);
+		count(p);
+		return p;
+	}
+
+	public synchronized void put(String programText, Program p) {
+		_texts.put(programText, p);
+	}
+
+	/**
+	 * Returns the program parsed from file, or null if it is not cached or
+	 * the file has changed since it was parsed.
+	 */
+	public synchronized Program getFile(File file) {
+		FileEntry entry = _files.get(file.getPath());
+		if (entry != null && (entry._modified != file.lastModified() || entry._length != file.length())) {
+			_files.remove(file.getPath());
+			entry = null;
+		}
+		Program p = entry == null ? null : entry._program;
+		count(p);
+		return p;
+	}
+
+	/**
+	 * Caches the program parsed from file, given the modification time and
+	 * size the file had before it was read.
+	 */
+	public synchronized void putFile(File file, long modified, long length, Program p) {
+		_files.put(file.getPath(), new FileEntry(modified, length, p));
+	}
+
+	public synchronized void clear() {
+		_texts.clear();
+		_files.clear();
+	}
+
+	public synchronized long hits() { return _hits; }
+	public synchronized long misses() { return _misses; }
+
+	private void count(Program p) {
+		if (p != null)
+			_hits++;
+		else
+			_misses++;
+	}
+}
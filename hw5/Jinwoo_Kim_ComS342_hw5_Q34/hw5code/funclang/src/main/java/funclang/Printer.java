@@ -1,16 +1,178 @@
 package funclang;
 
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 import funclang.AST.Exp;
+import funclang.Value.*;
 
+/**
+ * Prints values, one per line, to an Appendable such as a PrintStream or a
+ * Writer.
+ *
+ * Pairs and lists are written without recursion, keeping the work left on
+ * a stack, so a list of any length or depth is printed without
+ * overflowing the Java stack, and in time linear in its size. What is
+ * written goes through a buffer handed to the Appendable in chunks of
+ * CHUNK_SIZE characters, and at the end of each value, so that output
+ * written to the same stream by others is not reordered.
+ */
 public class Printer {
+	static final int CHUNK_SIZE = 1 << 13;
+
+	private final Appendable _out;
+	private final StringBuilder _buffer = new StringBuilder();
+
+	public Printer() {
+		this(System.out);
+	}
+
+	public Printer(PrintStream out) {
+		this((Appendable) out);
+	}
+
+	public Printer(Appendable out) {
+		_out = out;
+	}
+
+	/**
+	 * Prints v on a line of its own, unless it prints as nothing, as unit
+	 * does.
+	 */
 	public void print(Value v) {
-		if(v.tostring() != "")
-			System.out.println(v.tostring());
+		try {
+			write(v, _buffer, this);
+		} catch (RuntimeException | Error e) {
+			_buffer.setLength(0);
+			throw e;
+		}
+		if (_buffer.length() > 0)
+			_buffer.append(System.lineSeparator());
+		flush();
 	}
 	public void print(Exception e) {
-		System.out.println(e.toString());
+		println(e.toString());
+	}
+
+	/**
+	 * Prints a line of text, such as an error message.
+	 */
+	void println(String line) {
+		_buffer.append(line).append(System.lineSeparator());
+		flush();
+	}
+
+	private void flush() {
+		try {
+			_out.append(_buffer);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		_buffer.setLength(0);
+	}
+
+	/**
+	 * The text of v, as print would print it.
+	 */
+	static String text(Value v) {
+		StringBuilder text = new StringBuilder();
+		write(v, text, null);
+		return text.toString();
+	}
+
+	/**
+	 * The elements of a list that are yet to be written: pairs up to a
+	 * ListVal, and then the elements of the ListVal from _index on.
+	 */
+	private static final class Rest {
+		private Value _pairs;
+		private ListVal _elems = null;
+		private int _index = 0;
+		private boolean _first = true;
+		Rest(Value list) {
+			_pairs = list;
+		}
+
+		/** The next element, or null if there are none left. */
+		Value next() {
+			if (_pairs instanceof ListVal) {
+				_elems = (ListVal) _pairs;
+				_pairs = null;
+			}
+			if (_elems != null)
+				return _index < _elems.length() ? _elems.get(_index++) : null;
+			if (!(_pairs instanceof PairVal))
+				return null;
+			PairVal pair = (PairVal) _pairs;
+			_pairs = pair.snd();
+			return pair.fst();
+		}
+	}
+
+	/**
+	 * A pair of a chain that does not end in the empty list, written as
+	 * (first rest), with rest written the same way.
+	 */
+	private static final class Improper {
+		private final PairVal _pair;
+		Improper(PairVal pair) {
+			_pair = pair;
+		}
+	}
+
+	/**
+	 * Writes v to text. If printer is not null, text is its buffer, handed
+	 * to it whenever it holds CHUNK_SIZE characters.
+	 */
+	private static void write(Value v, StringBuilder text, Printer printer) {
+		Deque<Object> stack = new ArrayDeque<Object>(); // Values, Rests, Impropers and Strings.
+		stack.push(v);
+		while (!stack.isEmpty()) {
+			if (printer != null && text.length() >= CHUNK_SIZE)
+				printer.flush();
+			Object top = stack.pop();
+			if (top instanceof String) {
+				text.append((String) top);
+			} else if (top instanceof Rest) {
+				Rest rest = (Rest) top;
+				Value elem = rest.next();
+				if (elem == null) {
+					text.append(')');
+					continue;
+				}
+				if (!rest._first)
+					text.append(' ');
+				rest._first = false;
+				stack.push(rest);
+				stack.push(elem);
+			} else if (top instanceof Improper) {
+				PairVal pair = ((Improper) top)._pair;
+				text.append('(');
+				stack.push(")");
+				stack.push(pair.snd() instanceof PairVal ? new Improper((PairVal) pair.snd()) : pair.snd());
+				stack.push(" ");
+				stack.push(pair.fst());
+			} else if (top instanceof PairVal) {
+				if (ListVal.length((Value) top) >= 0) {
+					text.append('(');
+					stack.push(new Rest((Value) top));
+				} else {
+					stack.push(new Improper((PairVal) top));
+				}
+			} else if (top instanceof NumVal) {
+				double d = ((NumVal) top).v();
+				if ((int) d == d)
+					text.append((int) d);
+				else
+					text.append(d);
+			} else {
+				text.append(((Value) top).tostring());
+			}
+		}
 	}
 
 	public static class Formatter implements AST.Visitor<String> {
@@ -46,12 +208,8 @@ public class Printer {
 			return result + ")";
 		}
 
-		public String visit(AST.ReadExp e, Env env) {
-			return "(read " + e.file().accept(this, env) + ")";
-		}
-
-		public String visit(AST.EvalExp e, Env env) {
-			return "(eval " + e.code().accept(this, env) + ")";
+		public String visit(AST.FusedExp e, Env env) {
+			return (String) e.original().accept(this, env);
 		}
 
 		public String visit(AST.MultExp e, Env env) {
@@ -101,7 +259,7 @@ public class Printer {
 		public String visit(AST.LambdaExp e, Env env) {
 			String result = "(lambda ( ";
 			for(Exp formal : e.formals())
-				result += formal + " ";
+				result += formal.accept(this, env) + " ";
 			result += ") ";
 			result += e.body().accept(this, env);
 			return result + ")";
@@ -176,17 +334,10 @@ public class Printer {
 			return result + ")";
 		}
 
-		@Override
-		public String visit(AST.LengthStrExp e, Env env) {
-			String result = "(length ";
-			result += e.getStrExpr().accept(this, env);
-			return result + ")";
-		}
-
 		public String visit(AST.ArgExp e, Env env) {
-			String result = "(";
-			result += e.toString();
-			return result + ")";
+			if (e.getExp() == null)
+				return e.getVar();
+			return "(" + e.getVar() + " = " + e.getExp().accept(this, env) + ")";
 		}
 	}
 }
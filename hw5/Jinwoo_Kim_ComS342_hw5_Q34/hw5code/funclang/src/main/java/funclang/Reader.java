@@ -1,9 +1,20 @@
 package funclang;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.InputStreamReader;
 import java.io.IOException;
-import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BailErrorStrategy;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
+import org.antlr.v4.runtime.Token;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 
 import funclang.AST.Program;
 import funclang.parser.FuncLangLexer;
@@ -11,41 +22,174 @@ import funclang.parser.FuncLangParser;
 
 public class Reader {
 
+	private final ParseCache _cache;
+	private boolean _fast = false;
+	private BufferedReader _stdin = null; // Shared by all reads, so no buffered input is lost.
+
+	/**
+	 * The lexer and parser of one thread, reused from one parse to the next.
+	 * The DFA they build up while predicting is static in the generated
+	 * classes, so it is shared by every thread.
+	 */
+	private static class ParserState {
+		final FuncLangLexer lexer = new FuncLangLexer(new ANTLRInputStream(""));
+		final FuncLangParser parser = new FuncLangParser(new CommonTokenStream(lexer));
+
+		/**
+		 * Restarts the parser at the first token the lexer produces. The
+		 * token stream is not reused: it remembers having reached the end of
+		 * input even when given a new source.
+		 */
+		void rewind() {
+			lexer.reset();
+			parser.setTokenStream(new CommonTokenStream(lexer));
+			parser.reset();
+		}
+	}
+
+	private static final ThreadLocal<ParserState> _state = new ThreadLocal<ParserState>() {
+		protected ParserState initialValue() {
+			return new ParserState();
+		}
+	};
+
+	public Reader() {
+		this(new ParseCache());
+	}
+
+	public Reader(ParseCache cache) {
+		_cache = cache;
+	}
+
+	public ParseCache cache() {
+		return _cache;
+	}
+
+	/**
+	 * Selects the hand-written parser (FastParser) for the programs it
+	 * handles, instead of always using the ANTLR parser.
+	 */
+	public void setFastParser(boolean fast) {
+		_fast = fast;
+	}
+
+	/**
+	 * Reads and parses the next program typed in, or returns null at the
+	 * end of the input.
+	 */
 	Program read() throws IOException {
 		String programText = readNextProgram();
+		if (programText == null)
+			return null;
 		return parse(programText);
 	}
 
 	Program parse(String programText) {
-		FuncLangLexer l = new FuncLangLexer(new org.antlr.v4.runtime.ANTLRInputStream(programText));
-		FuncLangParser p = new FuncLangParser(new org.antlr.v4.runtime.CommonTokenStream(l));
-		Program program = p.program().ast;
+		Program program = _cache.get(programText);
+		if (program == null) {
+			program = parseText(programText);
+			_cache.put(programText, program);
+		}
 		return program;
 	}
 
-	static String readFile(String fileName) throws IOException {
-		try (BufferedReader br = new BufferedReader(
-				new FileReader(fileName))) {
-			StringBuilder sb = new StringBuilder();
-			String line = br.readLine();
-
-			while (line != null) {
-				sb.append(line);
-				sb.append(System.lineSeparator());
-				line = br.readLine();
-			}
-			return sb.toString();
+	/**
+	 * Reads and parses a file, reusing the program parsed from it before if
+	 * the file has not changed since.
+	 */
+	Program parseFile(String fileName) throws IOException {
+		File file = new File(fileName);
+		Program program = _cache.getFile(file);
+		if (program == null) {
+			long modified = file.lastModified();
+			long length = file.length();
+			program = parseText(readFile(fileName));
+			_cache.putFile(file, modified, length, program);
+		}
+		return program;
+	}
+
+	/**
+	 * Parses with SLL prediction first, which is faster and succeeds for
+	 * nearly every input. Only if it reports a syntax error, or stops
+	 * before the end of the text, is the text parsed again with full LL
+	 * prediction, which then either succeeds or reports the error the
+	 * usual way. The grammar does not end with EOF, and the bail strategy
+	 * does not look ahead at loop entries as the default one does, so
+	 * stopping early is how SLL misses input such as a leading ')'.
+	 */
+	private Program parseText(String programText) {
+		if (_fast) {
+			Program program = FastParser.parse(programText);
+			if (program != null)
+				return program;
+		}
+		ParserState state = _state.get();
+		FuncLangLexer l = state.lexer;
+		FuncLangParser p = state.parser;
+		l.setInputStream(new ANTLRInputStream(programText));
+		state.rewind();
+		p.getInterpreter().setPredictionMode(PredictionMode.SLL);
+		p.setErrorHandler(new BailErrorStrategy());
+		p.removeErrorListeners();
+		try {
+			Program program = p.program().ast;
+			if (p.getCurrentToken().getType() == Token.EOF)
+				return program;
+		} catch (ParseCancellationException e) {
+			// Parsed again below.
 		}
+		state.rewind();
+		p.getInterpreter().setPredictionMode(PredictionMode.LL);
+		p.setErrorHandler(new DefaultErrorStrategy());
+		p.addErrorListener(ConsoleErrorListener.INSTANCE);
+		return p.program().ast;
+	}
+
+	/**
+	 * Parses each of the sample programs once, without caching them, so
+	 * the shared prediction DFA is built before the first real program.
+	 */
+	public void warmUp(Iterable<String> programs) {
+		for (String programText : programs)
+			parseText(programText);
+	}
+
+	/**
+	 * Warms up with the programs in a file, one per line.
+	 */
+	public void warmUp(String fileName) throws IOException {
+		List<String> programs = new ArrayList<String>();
+		for (String line : readFile(fileName).split("\\R"))
+			if (!line.trim().isEmpty())
+				programs.add(line);
+		warmUp(programs);
+	}
+
+	/**
+	 * Reads a file into a string, ending every line with the line
+	 * separator. The file is memory-mapped and decoded straight into the
+	 * result, so the only other copy made is the final string.
+	 */
+	static String readFile(String fileName) throws IOException {
+		LineReader lines = new LineReader(fileName);
+		StringBuilder sb = new StringBuilder((int) Math.min(lines.size() + 16, Integer.MAX_VALUE - 16));
+		while (lines.nextLine(sb))
+			sb.append(System.lineSeparator());
+		return sb.toString();
 	}
 
 	private String readNextProgram() throws IOException {
-		BufferedReader br = new BufferedReader(new InputStreamReader(System.in));
+		if (_stdin == null)
+			_stdin = new BufferedReader(new InputStreamReader(System.in));
 		System.out.print("$ ");
-		String programText = br.readLine();
+		String programText = _stdin.readLine();
+		if (programText == null)
+			return null;
 		return runFile(programText);
 	}
 
-	private String runFile(String programText) throws IOException {
+	String runFile(String programText) throws IOException {
 		if(programText.startsWith("run ")){
 			programText = readFile("build/funclang/examples/" + programText.substring(4));
 		}
@@ -0,0 +1,215 @@
+package funclang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import funclang.AST.*;
+
+/**
+ * This pass computes the lexical address (depth, slot) of every variable
+ * reference in a program, so that the Evaluator can read local variables
+ * out of array-backed frames instead of comparing names frame by frame.
+ *
+ * The scopes built here mirror the frames created by the Evaluator: one
+ * frame per let expression, one frame per call holding the formals.
+ * Variables not bound by any enclosing frame keep depth -1 and are looked
+ * up by name in the global environment.
+ *
+ * A function value does not keep the environment its lambda expression was
+ * evaluated in, which would keep every enclosing frame alive for as long
+ * as the function, but a frame of its own holding copies of the variables
+ * of enclosing scopes that its body uses, its captures. Beyond that frame
+ * is the global environment. So within a lambda's body, the scopes are
+ * those of the body, then the formals, then the captures, which grow as
+ * the body is resolved: a variable found in an enclosing scope is added to
+ * them. The addresses of the captures where the lambda is evaluated are
+ * recorded in the LambdaExp.
+ *
+ */
+public class Resolver implements AST.Visitor<Void> {
+
+	private static class Scope {
+		private String[] _names;
+		private Scope _parent;
+		// For the captures of a lambda, the last scope of its body: the scope
+		// the lambda is evaluated in, where looking up a variable that is not
+		// captured yet continues, and the variables captured from it.
+		private Scope _outer = null;
+		private List<VarExp> _sources = null;
+		Scope(String[] names, Scope parent) {
+			_names = names;
+			_parent = parent;
+		}
+
+		static Scope captures(Scope outer) {
+			Scope captures = new Scope(new String[0], null);
+			captures._outer = outer;
+			captures._sources = new ArrayList<VarExp>();
+			return captures;
+		}
+
+		int capture(VarExp source) {
+			_sources.add(source);
+			_names = Arrays.copyOf(_names, _names.length + 1);
+			_names[_names.length - 1] = source.name();
+			return _names.length - 1;
+		}
+	}
+
+	private Scope _scope = null;
+
+	public static Program resolve(Program p) {
+		p.accept(new Resolver(), null);
+		return p;
+	}
+
+	/**
+	 * Name bound by a formal parameter.
+	 */
+	static String formalName(Exp formal) {
+		return ((ArgExp) formal).getVar();
+	}
+
+	static String[] formalNames(List<Exp> formals) {
+		String[] names = new String[formals.size()];
+		for (int i = 0; i < names.length; i++)
+			names[i] = formalName(formals.get(i));
+		return names;
+	}
+
+	private void resolveAll(List<? extends Exp> exps) {
+		for (Exp exp : exps)
+			exp.accept(this, null);
+	}
+
+	private void resolveIn(String[] names, Exp body) {
+		Scope saved = _scope;
+		_scope = new Scope(names, saved);
+		try {
+			body.accept(this, null);
+		} finally {
+			_scope = saved;
+		}
+	}
+
+	public Void visit(Program p, Env env) {
+		resolveAll(p.decls());
+		p.e().accept(this, null);
+		return null;
+	}
+
+	public Void visit(VarExp e, Env env) {
+		resolve(e, _scope);
+		return null;
+	}
+
+	/**
+	 * Sets the address of e as seen from scope, capturing it in the
+	 * lambdas it is used in if it is bound outside them.
+	 */
+	private static void resolve(VarExp e, Scope scope) {
+		int depth = 0;
+		for (Scope s = scope; s != null; s = s._parent, depth++) {
+			for (int slot = s._names.length - 1; slot >= 0; slot--) {
+				if (s._names[slot].equals(e.name())) {
+					e.setAddress(depth, slot);
+					return;
+				}
+			}
+			if (s._sources != null) {
+				VarExp source = new VarExp(e.name());
+				resolve(source, s._outer);
+				if (source.depth() >= 0)
+					e.setAddress(depth, s.capture(source));
+				else
+					e.setAddress(-1, -1);
+				return;
+			}
+		}
+		e.setAddress(-1, -1);
+	}
+
+	public Void visit(LetExp e, Env env) {
+		resolveAll(e.value_exps());
+		resolveIn(e.names().toArray(new String[0]), e.body());
+		return null;
+	}
+
+	public Void visit(DefineDecl d, Env env) {
+		Scope saved = _scope;
+		_scope = null; // Definitions are evaluated in the global environment.
+		try {
+			d.value_exp().accept(this, null);
+		} finally {
+			_scope = saved;
+		}
+		return null;
+	}
+
+	public Void visit(LambdaExp e, Env env) {
+		resolveAll(e.formals());
+		Scope saved = _scope;
+		Scope captures = Scope.captures(saved);
+		_scope = captures;
+		try {
+			resolveIn(formalNames(e.formals()), e.body());
+		} finally {
+			_scope = saved;
+		}
+		e.setCaptures(captures._sources.toArray(new VarExp[captures._sources.size()]));
+		return null;
+	}
+
+	public Void visit(ArgExp e, Env env) {
+		if (e.getExp() != null)
+			e.getExp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(CallExp e, Env env) {
+		e.operator().accept(this, null);
+		resolveAll(e.operands());
+		return null;
+	}
+
+	public Void visit(IfExp e, Env env) {
+		e.conditional().accept(this, null);
+		e.then_exp().accept(this, null);
+		e.else_exp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(AddExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(SubExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(MultExp e, Env env) { resolveAll(e.all()); return null; }
+	public Void visit(DivExp e, Env env) { resolveAll(e.all()); return null; }
+
+	public Void visit(LessExp e, Env env) { return visitComparator(e); }
+	public Void visit(EqualExp e, Env env) { return visitComparator(e); }
+	public Void visit(GreaterExp e, Env env) { return visitComparator(e); }
+
+	private Void visitComparator(BinaryComparator e) {
+		e.first_exp().accept(this, null);
+		e.second_exp().accept(this, null);
+		return null;
+	}
+
+	public Void visit(CarExp e, Env env) { e.arg().accept(this, null); return null; }
+	public Void visit(CdrExp e, Env env) { e.arg().accept(this, null); return null; }
+	public Void visit(NullExp e, Env env) { e.arg().accept(this, null); return null; }
+
+	public Void visit(ConsExp e, Env env) {
+		e.fst().accept(this, null);
+		e.snd().accept(this, null);
+		return null;
+	}
+
+	public Void visit(ListExp e, Env env) { resolveAll(e.elems()); return null; }
+	public Void visit(FusedExp e, Env env) { e.original().accept(this, null); return null; }
+
+	public Void visit(UnitExp e, Env env) { return null; }
+	public Void visit(NumExp e, Env env) { return null; }
+	public Void visit(StrExp e, Env env) { return null; }
+	public Void visit(BoolExp e, Env env) { return null; }
+}
@@ -0,0 +1,319 @@
+package funclang;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+
+/**
+ * Serves programs to local clients over TCP or a Unix-domain socket, so that
+ * a client does not pay for starting a JVM (and warming it up) for each
+ * program it runs.
+ *
+ * The protocol is line-based, as with --batch: a client sends programs one
+ * per line, and gets back one line per program, in the same order, holding
+ * what the interpreter would have printed for it (an empty line for unit).
+ * Within that line, a backslash is sent as \\ and line breaks as \n or \r.
+ * A client need not wait for an answer before sending the next program, so
+ * many small programs cost one round trip. Closing its output makes the
+ * server close the connection once it has answered everything.
+ *
+ * Each connection has a session of the engine of its own, so its
+ * definitions are visible to its later programs and to no other
+ * connection. One thread multiplexes all connections with a selector; the
+ * programs run on the engine's executor.
+ */
+public class Server {
+	static final int BUFFER_SIZE = 1 << 16;
+	static final int MAX_LINE = 1 << 24;
+	static final int MAX_IN_FLIGHT = 1024; // Programs per connection before it stops being read.
+
+	private static final Charset CHARSET = Charset.defaultCharset();
+
+	private final FuncLangEngine _engine;
+	private final Selector _selector;
+	private final ServerSocketChannel _channel;
+	// Connections with answers to write, handed over by the executor's threads.
+	private final Queue<Connection> _answered = new ConcurrentLinkedQueue<Connection>();
+
+	private Server(FuncLangEngine engine, ServerSocketChannel channel) throws IOException {
+		_engine = engine;
+		_channel = channel;
+		_selector = Selector.open();
+		channel.configureBlocking(false);
+		channel.register(_selector, SelectionKey.OP_ACCEPT);
+	}
+
+	/**
+	 * A server listening on the loopback address at port (any free port if
+	 * it is 0).
+	 */
+	public static Server tcp(FuncLangEngine engine, int port) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+		return new Server(engine, channel);
+	}
+
+	/**
+	 * A server listening on a Unix-domain socket at path, which must not
+	 * exist yet. The JVM needs to be Java 16 or later.
+	 */
+	public static Server unix(FuncLangEngine engine, String path) throws IOException {
+		ServerSocketChannel channel;
+		try {
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			channel = (ServerSocketChannel) ServerSocketChannel.class
+					.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+			channel.bind((SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+					.getMethod("of", String.class).invoke(null, path));
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			throw new IOException("Unix-domain sockets need Java 16 or later");
+		}
+		return new Server(engine, channel);
+	}
+
+	public SocketAddress address() throws IOException {
+		return _channel.getLocalAddress();
+	}
+
+	/**
+	 * Serves clients until the thread is interrupted.
+	 */
+	public void serve() throws IOException {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				_selector.select();
+				Connection answered;
+				while ((answered = _answered.poll()) != null)
+					answered.write();
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid())
+						continue;
+					if (key.isAcceptable())
+						accept();
+					else {
+						Connection connection = (Connection) key.attachment();
+						if (key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.write();
+					}
+				}
+			}
+		} finally {
+			for (SelectionKey key : _selector.keys())
+				key.channel().close();
+			_selector.close();
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = _channel.accept();
+		if (channel == null)
+			return;
+		channel.configureBlocking(false);
+		SelectionKey key = channel.register(_selector, SelectionKey.OP_READ);
+		key.attach(new Connection(key, channel, _engine.openSession()));
+	}
+
+	/**
+	 * The answer to one program, once it has been run.
+	 */
+	private static final class Answer {
+		private volatile byte[] _line;
+	}
+
+	/**
+	 * A client, with the programs it has sent and the answers it has yet to
+	 * get. Apart from queuing answers, only used by the selector's thread.
+	 */
+	private final class Connection {
+		private final SelectionKey _key;
+		private final SocketChannel _channel;
+		private final FuncLangEngine.Session _session;
+		private final ByteBuffer _in = ByteBuffer.allocate(BUFFER_SIZE);
+		private byte[] _line = new byte[256]; // The line being read, up to _length.
+		private int _length = 0;
+		private final Queue<Answer> _pending = new ArrayDeque<Answer>(); // In the order of the programs.
+		private ByteBuffer _out = ByteBuffer.allocate(BUFFER_SIZE);
+		private boolean _eof = false; // Has the client closed its output?
+
+		Connection(SelectionKey key, SocketChannel channel, FuncLangEngine.Session session) {
+			_key = key;
+			_channel = channel;
+			_session = session;
+			_out.flip();
+		}
+
+		void read() {
+			int n;
+			try {
+				n = _channel.read(_in);
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (n < 0) {
+				_eof = true;
+				if (_length > 0)
+					submit(); // A last program without a line break.
+				write();
+				return;
+			}
+			_in.flip();
+			while (_in.hasRemaining()) {
+				byte b = _in.get();
+				if (b == '\n') {
+					submit();
+				} else {
+					if (_length == MAX_LINE) {
+						close();
+						return;
+					}
+					if (_length == _line.length)
+						_line = Arrays.copyOf(_line, Math.min(_line.length * 2, MAX_LINE));
+					_line[_length++] = b;
+				}
+			}
+			_in.clear();
+			interest();
+		}
+
+		private void submit() {
+			int length = _length;
+			if (length > 0 && _line[length - 1] == '\r')
+				length--;
+			String programText = new String(_line, 0, length, CHARSET);
+			_length = 0;
+			final Answer answer = new Answer();
+			_pending.add(answer);
+			_session.submit(programText).whenComplete(new BiConsumer<Value, Throwable>() {
+				public void accept(Value value, Throwable error) {
+					if (error instanceof CompletionException && error.getCause() != null)
+						error = error.getCause();
+					answer._line = format(error == null ? value : error);
+					_answered.add(Connection.this);
+					_selector.wakeup();
+				}
+			});
+		}
+
+		/**
+		 * Writes the answers that are ready, in order.
+		 */
+		void write() {
+			if (!_key.isValid())
+				return;
+			try {
+				while (true) {
+					if (!_out.hasRemaining()) {
+						if (!fill())
+							break;
+					}
+					if (_channel.write(_out) == 0)
+						break; // The client is not keeping up.
+				}
+			} catch (IOException e) {
+				close();
+				return;
+			}
+			if (_eof && _pending.isEmpty() && !_out.hasRemaining())
+				close();
+			else
+				interest();
+		}
+
+		/**
+		 * Moves the answers that are ready into the output buffer. Returns
+		 * false if there were none.
+		 */
+		private boolean fill() {
+			_out.clear();
+			while (!_pending.isEmpty() && _pending.peek()._line != null) {
+				byte[] line = _pending.peek()._line;
+				if (line.length > _out.remaining()) {
+					if (_out.position() > 0)
+						break;
+					_out = ByteBuffer.allocate(line.length); // Larger than the usual buffer.
+				}
+				_out.put(line);
+				_pending.remove();
+			}
+			_out.flip();
+			if (_out.capacity() > BUFFER_SIZE && !_out.hasRemaining())
+				_out = (ByteBuffer) ByteBuffer.allocate(BUFFER_SIZE).flip();
+			return _out.hasRemaining();
+		}
+
+		/**
+		 * Reads while the client has not sent too many programs ahead, and
+		 * writes while there is something to write.
+		 */
+		private void interest() {
+			if (!_key.isValid())
+				return;
+			int ops = 0;
+			if (!_eof && _pending.size() < MAX_IN_FLIGHT)
+				ops |= SelectionKey.OP_READ;
+			if (_out.hasRemaining())
+				ops |= SelectionKey.OP_WRITE;
+			_key.interestOps(ops);
+		}
+
+		private void close() {
+			_key.cancel();
+			_session.close();
+			try {
+				_channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * The line printed for the result of a program, as in batch mode.
+	 */
+	static byte[] format(Object result) {
+		StringBuilder out = new StringBuilder();
+		Batch.print(new Printer(out), result);
+		String text = out.toString();
+		if (text.endsWith(System.lineSeparator()))
+			text = text.substring(0, text.length() - System.lineSeparator().length());
+		StringBuilder line = new StringBuilder(text.length() + 1);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '\\')
+				line.append("\\\\");
+			else if (c == '\n')
+				line.append("\\n");
+			else if (c == '\r')
+				line.append("\\r");
+			else
+				line.append(c);
+		}
+		return line.append('\n').toString().getBytes(CHARSET);
+	}
+}
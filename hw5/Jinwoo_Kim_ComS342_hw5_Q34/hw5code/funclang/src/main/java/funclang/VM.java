@@ -0,0 +1,527 @@
+package funclang;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import funclang.AST.*;
+import funclang.Env.*;
+import funclang.Value.*;
+import static funclang.Bytecode.*;
+
+/**
+ * An execution engine that compiles programs to Bytecode and runs them in
+ * a single dispatch loop. Operands live on an array of values, and calls
+ * push the state of the caller (its code, position and environment) on
+ * arrays as well, so neither deep recursion in a program nor tail calls
+ * grow the Java stack. Those arrays grow as needed, up to a maximum depth
+ * of calls (see setMaxDepth), beyond which the program ends with an error.
+ *
+ * Values are the ones the Evaluator produces, in the same global
+ * environment; the Evaluator runs the few expressions that the Bytecode
+ * leaves to it. A VM is tied to its Evaluator, so it is used by one thread
+ * at a time.
+ *
+ */
+public class VM implements NativeFunVal.Caller {
+
+	// Small, since native functions start a run for each call they make back.
+	private static final int INITIAL_STACK = 32;
+	private static final int INITIAL_FRAMES = 16;
+	private static final int FRAME = 4; // Slots of a caller's frame in frames.
+	static final int MAX_DEPTH = 1 << 20; // Frames of callers, by default.
+
+	/**
+	 * Thrown to end a program whose calls nest deeper than the maximum,
+	 * before its stacks use up the heap.
+	 */
+	private static final class TooDeep extends RuntimeException {
+		TooDeep() { super("recursion too deep", null, false, false); }
+	}
+	private static final TooDeep TOO_DEEP = new TooDeep();
+
+	private final Evaluator _evaluator;
+	private final Printer.Formatter ts = new Printer.Formatter();
+	private boolean _memoize = false;
+	private int _maxDepth = MAX_DEPTH;
+	private int _depth = 0; // Frames of the runs that started the current one.
+	// Bodies of functions from another global environment (a shared prelude),
+	// keyed by their formals, as in the Compiler.
+	private final Map<List<Exp>, Code> _foreign = new IdentityHashMap<List<Exp>, Code>();
+
+	public VM(Evaluator evaluator) {
+		_evaluator = evaluator;
+	}
+
+	/**
+	 * Enables memoizing the functions that Memo finds worth it, besides
+	 * those memoized by the program.
+	 */
+	public void setMemoize(boolean memoize) {
+		_memoize = memoize;
+	}
+
+	/**
+	 * Limits how deeply calls may nest, counting the callers in every run,
+	 * so that runaway recursion gives an error rather than filling the
+	 * heap with frames.
+	 */
+	public void setMaxDepth(int frames) {
+		_maxDepth = frames;
+	}
+
+	Value valueOf(Program p) {
+		Resolver.resolve(p);
+		Env global = _evaluator.globalEnv();
+		try {
+			return run(Bytecode.program(p, global), global);
+		} catch (ClassCastException e) {
+			return new DynamicError(e.getMessage());
+		} catch (TooDeep e) {
+			return new DynamicError(e.getMessage());
+		}
+	}
+
+	/**
+	 * Calls operator for a native function, in a run of its own.
+	 */
+	@Override
+	public Value call(FunVal operator, Value[] actuals) {
+		Memo memo = Memo.of(operator, _memoize);
+		Memo.Key key = memo != null ? Memo.key(actuals) : null;
+		Value result = key != null ? memo.get(key, _evaluator._memoStats) : null;
+		if (result == null) {
+			result = run(code(operator), new FrameEnv(operator.env(), operator.names(), actuals));
+			if (key != null)
+				memo.put(key, result);
+		}
+		return result;
+	}
+
+	@Override
+	public Evaluator evaluator() {
+		return _evaluator;
+	}
+
+	/**
+	 * Body of a function value, compiled on its first call if the function
+	 * was not created by this VM.
+	 */
+	private Code code(FunVal operator) {
+		Code code = operator.code(this);
+		if (code == null) {
+			Env global = Env.root(operator.env());
+			if (global == _evaluator.globalEnv()) {
+				code = Bytecode.function(operator.body(), global);
+				operator.setCode(this, code);
+			} else {
+				code = _foreign.get(operator.formals());
+				if (code == null) {
+					code = Bytecode.function(operator.body(), global);
+					_foreign.put(operator.formals(), code);
+				}
+			}
+		}
+		return code;
+	}
+
+	/**
+	 * Runs code in env until it returns. Each run has stacks of its own, so
+	 * that a program run by eval from within a run gets its own.
+	 */
+	private Value run(Code code, Env env) {
+		Value[] stack = new Value[Math.max(INITIAL_STACK, code._max_stack)];
+		int sp = 0;
+		// The frames of the callers: each call pushes the code, environment
+		// and position to return to, and the memo (and key) to store the
+		// result in if the callee is memoized, FRAME slots of frames and one
+		// of pcs.
+		Object[] frames = new Object[INITIAL_FRAMES * FRAME];
+		int[] pcs = new int[INITIAL_FRAMES];
+		int fp = 0;
+
+		int[] ops = code._ops;
+		Object[] constants = code._constants;
+		int pc = 0;
+		while (true) {
+			switch (ops[pc++]) {
+			case CONST:
+				stack[sp++] = (Value) constants[ops[pc++]];
+				break;
+			case UNIT:
+				stack[sp++] = new UnitVal();
+				break;
+			case LOCAL0: {
+				int slot = ops[pc++];
+				stack[sp++] = env instanceof FrameEnv ? ((FrameEnv) env).vals()[slot] : env.get(0, slot);
+				break;
+			}
+			case LOCAL: {
+				int depth = ops[pc++];
+				stack[sp++] = env.get(depth, ops[pc++]);
+				break;
+			}
+			case GLOBAL:
+				stack[sp++] = code._global.get((String) constants[ops[pc++]]);
+				break;
+			case NUM: {
+				NumVal checked = (NumVal) stack[sp - 1]; // Dynamic type-checking
+				break;
+			}
+			case ADD:
+			case SUB:
+			case MUL:
+			case DIV: {
+				int op = ops[pc - 1];
+				int n = ops[pc++];
+				sp -= n;
+				Value first = stack[sp], second = n == 2 ? stack[sp + 1] : null;
+				double result;
+				if (first instanceof NumVal && second instanceof NumVal)
+					result = apply(op, ((NumVal) first).v(), ((NumVal) second).v());
+				else
+					result = arith(op, stack, sp, n);
+				sp = push(stack, sp, NumVal.of(result), n);
+				break;
+			}
+			case EQ:
+				sp--;
+				stack[sp - 1] = BoolVal.of(test(EQ, stack[sp - 1], stack[sp]));
+				stack[sp] = null;
+				break;
+			case LT:
+				sp--;
+				stack[sp - 1] = BoolVal.of(test(LT, stack[sp - 1], stack[sp]));
+				stack[sp] = null;
+				break;
+			case GT:
+				sp--;
+				stack[sp - 1] = BoolVal.of(test(GT, stack[sp - 1], stack[sp]));
+				stack[sp] = null;
+				break;
+			case CAR:
+				stack[sp - 1] = ((PairVal) stack[sp - 1]).fst();
+				break;
+			case CDR:
+				stack[sp - 1] = ((PairVal) stack[sp - 1]).snd();
+				break;
+			case NULLP:
+				stack[sp - 1] = BoolVal.of(stack[sp - 1] instanceof Null);
+				break;
+			case CONS:
+				sp--;
+				stack[sp - 1] = new PairVal(stack[sp - 1], stack[sp]);
+				stack[sp] = null;
+				break;
+			case LIST: {
+				int n = ops[pc++];
+				if (n == 0) {
+					stack[sp++] = new Null();
+					break;
+				}
+				sp -= n;
+				sp = push(stack, sp, new ListVal(Arrays.copyOfRange(stack, sp, sp + n)), n);
+				break;
+			}
+			case JUMP:
+				pc = ops[pc];
+				break;
+			case IFFALSE: {
+				Value condition = stack[--sp];
+				stack[sp] = null;
+				if (!(condition instanceof BoolVal)) {
+					IfExp e = (IfExp) constants[ops[pc + 2]];
+					stack[sp++] = new DynamicError("Condition not a boolean in expression " + ts.visit(e, env));
+					pc = ops[pc + 1];
+				} else if (((BoolVal) condition).v()) {
+					pc += 3;
+				} else {
+					pc = ops[pc];
+				}
+				break;
+			}
+			case LET: {
+				int n = ops[pc++];
+				String[] names = (String[]) constants[ops[pc++]];
+				sp -= n;
+				Value[] vals = Arrays.copyOfRange(stack, sp, sp + n);
+				Arrays.fill(stack, sp, sp + n, null);
+				env = new FrameEnv(env, names, vals);
+				break;
+			}
+			case ENDLET:
+				env = ((FrameEnv) env).saved_env();
+				break;
+			case CLOSURE: {
+				int n = ops[pc++];
+				int k = ops[pc++];
+				LambdaExp lambda = (LambdaExp) constants[k];
+				sp -= n;
+				Value[] vals = Arrays.copyOfRange(stack, sp, sp + n);
+				FunVal fun = new FunVal(Env.closure(env, lambda.captureNames(), vals), lambda.formals(), lambda.body());
+				fun.setCode(this, (Code) constants[k + 1]);
+				sp = push(stack, sp, fun, n);
+				break;
+			}
+			case CHECKFUN:
+				if (!(stack[sp - 1] instanceof FunVal || stack[sp - 1] instanceof NativeFunVal)) {
+					CallExp e = (CallExp) constants[ops[pc + 1]];
+					stack[sp - 1] = new DynamicError("Operator not a function in call " + ts.visit(e, env));
+					pc = ops[pc];
+				} else {
+					pc += 2;
+				}
+				break;
+			case CALL:
+			case TAILCALL: {
+				boolean tail = ops[pc - 1] == TAILCALL;
+				int n = ops[pc++];
+				CallExp e = (CallExp) constants[ops[pc++]];
+				sp -= n + 1;
+				if (stack[sp] instanceof NativeFunVal) {
+					NativeFunVal fun = (NativeFunVal) stack[sp];
+					Value[] args = Arrays.copyOfRange(stack, sp + 1, sp + n + 1);
+					Arrays.fill(stack, sp, sp + n + 1, null);
+					if (n != fun.arity()) {
+						stack[sp++] = new DynamicError("Argument mismatch in call " + ts.visit(e, env));
+						break;
+					}
+					_depth += fp + 1; // The runs it starts are nested in this one.
+					try {
+						stack[sp++] = fun.apply(args, this); // RETURN follows a TAILCALL.
+					} finally {
+						_depth -= fp + 1;
+					}
+					break;
+				}
+				FunVal operator = (FunVal) stack[sp];
+				CallSite.Target target = e.site().lookup(operator);
+				Value[] actuals = null;
+				if (n <= target.arity()) {
+					actuals = new Value[target.arity()];
+					System.arraycopy(stack, sp + 1, actuals, 0, n);
+					if (!target.fill(actuals, n))
+						actuals = null;
+				}
+				Arrays.fill(stack, sp, sp + n + 1, null);
+				if (actuals == null) {
+					stack[sp++] = new DynamicError("Argument mismatch in call " + ts.visit(e, env));
+					break;
+				}
+				Memo memo = Memo.of(operator, _memoize);
+				Memo.Key key = null;
+				if (memo != null) {
+					key = Memo.key(actuals);
+					Value result = key != null ? memo.get(key, _evaluator._memoStats) : null;
+					if (result != null) {
+						stack[sp++] = result;
+						break;
+					}
+				}
+				// A tail call takes the place of the current function, unless
+				// one of them has a result to remember when it returns.
+				if (!tail || memo != null || fp > 0 && frames[(fp - 1) * FRAME + 2] != null) {
+					if (_depth + fp >= _maxDepth)
+						throw TOO_DEEP;
+					if (fp == pcs.length) {
+						frames = Arrays.copyOf(frames, 2 * frames.length);
+						pcs = Arrays.copyOf(pcs, 2 * pcs.length);
+					}
+					int f = fp * FRAME;
+					frames[f] = code;
+					frames[f + 1] = env;
+					frames[f + 2] = memo;
+					frames[f + 3] = key;
+					pcs[fp++] = pc;
+				}
+				code = code(operator);
+				ops = code._ops;
+				constants = code._constants;
+				pc = 0;
+				env = new FrameEnv(operator.env(), target.names(), actuals);
+				if (sp + code._max_stack > stack.length)
+					stack = Arrays.copyOf(stack, Math.max(2 * stack.length, sp + code._max_stack));
+				break;
+			}
+			case RETURN: {
+				Value result = stack[--sp];
+				stack[sp] = null;
+				if (fp == 0)
+					return result;
+				pc = pcs[--fp];
+				int f = fp * FRAME;
+				if (frames[f + 2] != null && frames[f + 3] != null)
+					((Memo) frames[f + 2]).put((Memo.Key) frames[f + 3], result);
+				code = (Code) frames[f];
+				env = (Env) frames[f + 1];
+				ops = code._ops;
+				constants = code._constants;
+				Arrays.fill(frames, f, f + FRAME, null);
+				stack[sp++] = result;
+				break;
+			}
+			case DEFINE: {
+				String name = (String) constants[ops[pc++]];
+				Value value = stack[--sp];
+				stack[sp] = null;
+				((GlobalEnv) code._global).extend(name, value);
+				break;
+			}
+			case INTERP:
+				_depth += fp + 1;
+				try {
+					stack[sp++] = (Value) ((Exp) constants[ops[pc++]]).accept(_evaluator, env);
+				} finally {
+					_depth -= fp + 1;
+				}
+				break;
+			case ADD2: {
+				double first = number(ops[pc++], constants, env);
+				stack[sp++] = NumVal.of(first + number(ops[pc++], constants, env));
+				break;
+			}
+			case SUB2: {
+				double first = number(ops[pc++], constants, env);
+				stack[sp++] = NumVal.of(first - number(ops[pc++], constants, env));
+				break;
+			}
+			case MUL2: {
+				double first = number(ops[pc++], constants, env);
+				stack[sp++] = NumVal.of(first * number(ops[pc++], constants, env));
+				break;
+			}
+			case DIV2: {
+				double first = number(ops[pc++], constants, env);
+				stack[sp++] = NumVal.of(first / number(ops[pc++], constants, env));
+				break;
+			}
+			case EQ2:
+			case LT2:
+			case GT2: {
+				int op = ops[pc - 1] - EQ2 + EQ;
+				Value first = direct(ops[pc++], constants, env);
+				stack[sp++] = BoolVal.of(test(op, first, direct(ops[pc++], constants, env)));
+				break;
+			}
+			case IFEQ:
+			case IFLT:
+			case IFGT: {
+				int op = ops[pc - 1] - IFEQ + EQ;
+				if (test(op, direct(ops[pc], constants, env), direct(ops[pc + 1], constants, env)))
+					pc += 3;
+				else
+					pc = ops[pc + 2];
+				break;
+			}
+			case CALLEE: {
+				Value operator = code._global.get((String) constants[ops[pc]]);
+				if (operator instanceof FunVal || operator instanceof NativeFunVal) {
+					stack[sp++] = operator;
+					pc += 3;
+				} else {
+					CallExp e = (CallExp) constants[ops[pc + 2]];
+					stack[sp++] = new DynamicError("Operator not a function in call " + ts.visit(e, env));
+					pc = ops[pc + 1];
+				}
+				break;
+			}
+			case STAGES: {
+				NativeFunVal[] stages = Library.stages((FusedExp) constants[ops[pc]], env);
+				if (stages == null) {
+					pc = ops[pc + 1];
+				} else {
+					for (NativeFunVal stage : stages)
+						stack[sp++] = stage;
+					pc += 2;
+				}
+				break;
+			}
+			case FUSE: {
+				List<CallExp> calls = ((FusedExp) constants[ops[pc++]]).stages();
+				int n = calls.size(), values = n + 1;
+				for (CallExp call : calls)
+					values += call.operands().size() - 1;
+				int base = sp - values;
+				NativeFunVal[] stages = new NativeFunVal[n];
+				for (int i = 0; i < n; i++)
+					stages[i] = (NativeFunVal) stack[base + i];
+				Value[][] args = new Value[n][];
+				int at = base + n;
+				for (int i = n - 1; i >= 0; i--) {
+					int m = calls.get(i).operands().size() - 1;
+					args[i] = Arrays.copyOfRange(stack, at, at + m);
+					at += m;
+				}
+				Value source = stack[at];
+				Arrays.fill(stack, base, sp, null);
+				sp = base;
+				stack[sp++] = Library.fuse(stages, args, source, this);
+				break;
+			}
+			default:
+				throw new IllegalStateException("Unknown opcode " + ops[pc - 1]);
+			}
+		}
+	}
+
+	/**
+	 * The value of an operand read directly, see Bytecode.
+	 */
+	private static Value direct(int operand, Object[] constants, Env env) {
+		if (operand >= 0)
+			return (Value) constants[operand];
+		int slot = -1 - operand;
+		return env instanceof FrameEnv ? ((FrameEnv) env).vals()[slot] : env.get(0, slot);
+	}
+
+	private static double number(int operand, Object[] constants, Env env) {
+		return ((NumVal) direct(operand, constants, env)).v(); // Dynamic type-checking
+	}
+
+	/**
+	 * Whether the comparison op (EQ, LT or GT) holds for first and second.
+	 */
+	private static boolean test(int op, Value first, Value second) {
+		if (first instanceof NumVal && second instanceof NumVal) {
+			double x = ((NumVal) first).v(), y = ((NumVal) second).v();
+			return op == EQ ? x == y : op == LT ? x < y : x > y;
+		}
+		if (op == EQ)
+			return Comparison.equal(first, second);
+		return op == LT ? Comparison.less(first, second) : Comparison.greater(first, second);
+	}
+
+	private static double apply(int op, double left, double right) {
+		switch (op) {
+		case ADD: return left + right;
+		case SUB: return left - right;
+		case MUL: return left * right;
+		default: return left / right;
+		}
+	}
+
+	/**
+	 * Arithmetic over the n values from sp on, converting each as the
+	 * Evaluator does, so that a non-number fails with its ClassCastException.
+	 */
+	private static double arith(int op, Value[] stack, int sp, int n) {
+		boolean from_first = op == SUB || op == DIV;
+		double result = op == MUL ? 1 : 0;
+		for (int i = 0; i < n; i++) {
+			double operand = ((NumVal) stack[sp + i]).v();
+			result = i == 0 && from_first ? operand : apply(op, result, operand);
+		}
+		return result;
+	}
+
+	/**
+	 * Pushes value at sp in place of the n values that were above it.
+	 */
+	private static int push(Value[] stack, int sp, Value value, int n) {
+		for (int i = sp + 1; i < sp + n; i++)
+			stack[i] = null;
+		stack[sp] = value;
+		return sp + 1;
+	}
+}
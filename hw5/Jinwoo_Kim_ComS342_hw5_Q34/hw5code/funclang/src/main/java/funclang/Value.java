@@ -1,5 +1,6 @@
 package funclang;
 
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -10,27 +11,149 @@ public interface Value {
 	static class FunVal implements Value { //New in the funclang
 		private Env _env;
 		private List<Exp> _formals;
+		private String[] _names;
+		private Value[] _defaults;
 		private Exp _body;
+		private Compiler.Node _code; // Body compiled by the Compiler, if any.
+		private Compiler _compiler; // The one that compiled _code.
+		private Bytecode.Code _bytecode; // Body compiled for a VM, if any.
+		private VM _vm; // The one that compiled _bytecode.
+		private int _calls; // Calls made by the Evaluator, used to pick functions to compile.
+		// What Effects last found about calls (flags in the lowest two bits),
+		// and the version of the global environments it holds for.
+		private volatile long _effects = -1;
+		private volatile Memo _memo; // Results of earlier calls, if memoized.
 
 		public FunVal(Env env, List<Exp> formals, Exp body) {
 			_env = env;
 			_formals = formals;
+			_names = Resolver.formalNames(formals);
+			_defaults = new Value[formals.size()];
+			for (int i = 0; i < _defaults.length; i++) {
+				Exp formal = formals.get(i);
+				if (formal instanceof AST.ArgExp && ((AST.ArgExp) formal).getExp() instanceof AST.NumExp)
+					_defaults[i] = new NumVal(((AST.NumExp) ((AST.ArgExp) formal).getExp()).v());
+			}
 			_body = body;
 		}
 		public Env env() { return _env; }
 		public List<Exp> formals() { return _formals; }
+		public String[] names() { return _names; }
+		/** Default values of the formals, null where a formal has none. */
+		public Value[] defaults() { return _defaults; }
+		/** The body as compiled by compiler, or null if it has not compiled it. */
+		Compiler.Node code(Compiler compiler) { return _compiler == compiler ? _code : null; }
+		void setCode(Compiler compiler, Compiler.Node code) { _compiler = compiler; _code = code; }
+		/** The body as compiled for vm, or null if it has not been. */
+		Bytecode.Code code(VM vm) { return _vm == vm ? _bytecode : null; }
+		void setCode(VM vm, Bytecode.Code code) { _vm = vm; _bytecode = code; }
+		int countCall() { return ++_calls; }
+		/** The flags set by Effects, or -1 if they are out of date. */
+		int effects(long version) {
+			long effects = _effects;
+			return effects >>> 2 == version ? (int) (effects & 3) : -1;
+		}
+		void setEffects(long version, int flags) { _effects = version << 2 | flags; }
+		Memo memo() { return _memo; }
+		void setMemo(Memo memo) { _memo = memo; }
 		public Exp body() { return _body; }
 
 		public String tostring() {
+			Printer.Formatter formatter = new Printer.Formatter();
 			String result = "(lambda ( ";
 			for(Exp formal : _formals)
-				result += formal + " ";
+				result += formal.accept(formatter, _env) + " ";
 			result += ") ";
-			result += _body.accept(new Printer.Formatter(), _env);
+			result += _body.accept(formatter, _env);
 			return result + ")";
 		}
 	}
+	/**
+	 * A function implemented in Java. It is called with the values of the
+	 * operands of a call, without a frame, and may call function values of
+	 * the program back through the engine running it.
+	 */
+	static abstract class NativeFunVal implements Value {
+		/**
+		 * The engine a native function is called from.
+		 */
+		interface Caller {
+			/** The value of calling f with actuals, one for each of its formals. */
+			Value call(FunVal f, Value[] actuals);
+			/** The evaluator whose global environment the program runs in. */
+			Evaluator evaluator();
+		}
+
+		private final String _name;
+		private final int _arity;
+		private final boolean _pure;
+		private final CallSite _site = new CallSite(); // For the functions it calls.
+
+		/**
+		 * A function named name taking arity arguments. It is pure if a
+		 * call to it can have no effect, see Effects.
+		 */
+		protected NativeFunVal(String name, int arity, boolean pure) {
+			_name = name;
+			_arity = arity;
+			_pure = pure;
+		}
+		public String name() { return _name; }
+		public int arity() { return _arity; }
+		public boolean pure() { return _pure; }
+
+		/**
+		 * The value of a call with args, of which there are arity.
+		 */
+		abstract Value apply(Value[] args, Caller caller);
+
+		/**
+		 * Calls f, a function value given to this function, with args.
+		 */
+		Value call(Value f, Value[] args, Caller caller) {
+			if (f instanceof NativeFunVal) {
+				NativeFunVal fun = (NativeFunVal) f;
+				if (args.length != fun.arity())
+					return new DynamicError("Argument mismatch in call from " + _name);
+				return fun.apply(args, caller);
+			}
+			if (!(f instanceof FunVal))
+				return new DynamicError("Argument to " + _name + " is not a function");
+			FunVal fun = (FunVal) f;
+			CallSite.Target target = _site.lookup(fun);
+			if (args.length > target.arity())
+				return new DynamicError("Argument mismatch in call from " + _name);
+			Value[] actuals = Arrays.copyOf(args, target.arity());
+			if (!target.fill(actuals, args.length))
+				return new DynamicError("Argument mismatch in call from " + _name);
+			return caller.call(fun, actuals);
+		}
+
+		public String tostring() {
+			return "(native " + _name + ")";
+		}
+	}
 	static class NumVal implements Value {
+		private static final int CACHE_LOW = -128;
+		private static final int CACHE_HIGH = 1024;
+		private static final NumVal[] CACHE = new NumVal[CACHE_HIGH - CACHE_LOW + 1];
+		static {
+			for (int i = 0; i < CACHE.length; i++)
+				CACHE[i] = new NumVal(CACHE_LOW + i);
+		}
+
+		/**
+		 * Returns a NumVal for v, shared for small integers, which is safe
+		 * since number values are immutable.
+		 */
+		public static NumVal of(double v) {
+			int i = (int) v;
+			if (i == v && i >= CACHE_LOW && i <= CACHE_HIGH
+					&& (i != 0 || Double.doubleToRawLongBits(v) == 0L)) // Keep -0.0 distinct.
+				return CACHE[i - CACHE_LOW];
+			return new NumVal(v);
+		}
+
 		private double _val;
 		public NumVal(double v) { _val = v; }
 		public double v() { return _val; }
@@ -41,42 +164,140 @@ public interface Value {
 		}
 	}
 	static class BoolVal implements Value {
+		public static final BoolVal TRUE = new BoolVal(true);
+		public static final BoolVal FALSE = new BoolVal(false);
+		public static BoolVal of(boolean v) { return v ? TRUE : FALSE; }
+
 		private boolean _val;
 		public BoolVal(boolean v) { _val = v; }
 		public boolean v() { return _val; }
 		public String tostring() { if(_val) return "#t"; return "#f"; }
 	}
+	/**
+	 * A string, whose value keeps the double quotes around it, as string
+	 * literals are written.
+	 */
 	static class StringVal implements Value {
 		private java.lang.String _val;
 		public StringVal(String v) { _val = v; }
+		/** The string value with text between its quotes. */
+		static StringVal of(String text) { return new StringVal("\"" + text + "\""); }
 		public String v() { return _val; }
+		/** The text between the quotes. */
+		String text() {
+			if (_val.length() >= 2 && _val.charAt(0) == '"' && _val.charAt(_val.length() - 1) == '"')
+				return _val.substring(1, _val.length() - 1);
+			return _val;
+		}
 		public java.lang.String tostring() { return "" + _val; }
 	}
 	static class PairVal implements Value {
 		protected Value _fst;
 		protected Value _snd;
+		private int _hash = 0; // Structural hash, once computed by Comparison.
 		public PairVal(Value fst, Value snd) { _fst = fst; _snd = snd; }
 		public Value fst() { return _fst; }
 		public Value snd() { return _snd; }
+		int hash() { return _hash; }
+		void setHash(int hash) { _hash = hash; }
 		public java.lang.String tostring() {
-			if(isList()) return listToString();
-			return "(" + _fst.tostring() + " " + _snd.tostring() + ")";
+			return Printer.text(this);
 		}
 		public boolean isList() {
-			if(_snd instanceof Value.Null) return true;
-			if(_snd instanceof Value.PairVal &&
-					((Value.PairVal) _snd).isList()) return true;
-			return false;
-		}
-		private java.lang.String listToString() {
-			String result = "(";
-			result += _fst.tostring();
-			Value next = _snd;
-			while(!(next instanceof Value.Null)) {
-				result += " " + ((PairVal) next)._fst.tostring();
-				next = ((PairVal) next)._snd;
+			Value next = this;
+			while(next instanceof Value.PairVal && !(next instanceof ListVal))
+				next = ((Value.PairVal) next).snd();
+			return next instanceof Value.Null || next instanceof ListVal;
+		}
+	}
+	/**
+	 * A list made by list: its elements in an array rather than in a chain of
+	 * pairs, so that it takes little more memory than its elements, and its
+	 * length and elements are found in constant time. It is immutable, and
+	 * its rest is a view of the same array from the next element on, so
+	 * taking cdr costs a small object and no copying. Lists made with cons
+	 * are still pairs, and may end in a ListVal.
+	 */
+	static class ListVal extends PairVal {
+		private final Value[] _elems;
+		private final int _offset; // Of the first element in _elems.
+		/** A list of elems, which must not be empty, and is not copied. */
+		public ListVal(Value[] elems) { this(elems, 0); }
+		private ListVal(Value[] elems, int offset) {
+			super(null, null);
+			_elems = elems;
+			_offset = offset;
+		}
+		public Value fst() { return _elems[_offset]; }
+		public Value snd() {
+			if (_offset + 1 == _elems.length)
+				return new Null();
+			return new ListVal(_elems, _offset + 1);
+		}
+		public int length() { return _elems.length - _offset; }
+		/** The i-th element, counting from 0, which must be below length(). */
+		public Value get(int i) { return _elems[_offset + i]; }
+		public boolean isList() { return true; }
+
+		/**
+		 * The length of list, or -1 if it is not a list. Only the pairs
+		 * before a ListVal are counted one by one.
+		 */
+		static int length(Value list) {
+			int length = 0;
+			while (list instanceof PairVal && !(list instanceof ListVal)) {
+				length++;
+				list = ((PairVal) list).snd();
 			}
-			return result + ")";
+			if (list instanceof ListVal)
+				return length + ((ListVal) list).length();
+			return list instanceof Null ? length : -1;
+		}
+
+		/**
+		 * The i-th element of list, counting from 0, or null if list has no
+		 * such element.
+		 */
+		static Value ref(Value list, int i) {
+			while (i >= 0 && list instanceof PairVal && !(list instanceof ListVal)) {
+				if (i == 0)
+					return ((PairVal) list).fst();
+				i--;
+				list = ((PairVal) list).snd();
+			}
+			if (i >= 0 && list instanceof ListVal && i < ((ListVal) list).length())
+				return ((ListVal) list).get(i);
+			return null;
+		}
+	}
+	/**
+	 * The lines of a file, as a list whose rest is only read when it is
+	 * first asked for. Lines a program has moved past can be collected, so
+	 * a file larger than the heap can be processed a line at a time.
+	 */
+	static class LazyPairVal extends PairVal {
+		private LineReader _lines; // Null once the rest has been read.
+		private LazyPairVal(Value fst, LineReader lines) {
+			super(fst, null);
+			_lines = lines;
+		}
+		/** Returns the list of the lines left in lines. */
+		static Value lines(LineReader lines) {
+			try {
+				String line = lines.readLine();
+				if (line == null)
+					return new Null();
+				return new LazyPairVal(StringVal.of(line), lines);
+			} catch (java.io.IOException e) {
+				return new DynamicError(e.getMessage());
+			}
+		}
+		public synchronized Value snd() {
+			if (_lines != null) {
+				_snd = lines(_lines);
+				_lines = null;
+			}
+			return _snd;
 		}
 	}
 	static class Null implements Value {
@@ -0,0 +1,95 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import funclang.AST.Program;
+
+/**
+ * Checks how much garbage numeric code leaves per evaluation, in both
+ * engines, as counted by the thread allocation counter of the JVM. Nested
+ * arithmetic runs on doubles and small integers are shared, so what is
+ * left is boxing at let, call and return boundaries.
+ */
+public class AllocationTest {
+	private static final String LOOP =
+			"(define loop (lambda (n acc) (if (= n 0) acc (loop (- n 1) (+ acc (* (/ n 4) (- n 1)))))))";
+	private static final int ITERATIONS = 100000;
+
+	private com.sun.management.ThreadMXBean _threads;
+	private final Reader _reader = new Reader();
+
+	@Before
+	public void setUp() {
+		java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+		_threads = (com.sun.management.ThreadMXBean) threads;
+		assumeTrue(_threads.isThreadAllocatedMemorySupported());
+		_threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	private long allocated() {
+		return _threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	/**
+	 * Runs a program, in the AST engine if compiler is null, and returns
+	 * the bytes it allocates per run, once warmed up.
+	 */
+	private double bytesPerRun(Evaluator eval, Compiler compiler, String text, int runs) throws Exception {
+		Program p = _reader.parse(text);
+		Compiler.Node node = compiler != null ? compiler.compile(p) : null;
+		Env global = eval.globalEnv();
+		for (int i = 0; i < 20 * runs; i++)
+			run(eval, node, p, global);
+		long overhead = allocated();
+		overhead = allocated() - overhead; // Of reading the counter.
+		long start = allocated();
+		for (int i = 0; i < runs; i++)
+			run(eval, node, p, global);
+		return (double) (allocated() - start - overhead) / runs;
+	}
+
+	private static Value run(Evaluator eval, Compiler.Node node, Program p, Env global) {
+		return node != null ? node.execute(global) : eval.valueOf(p);
+	}
+
+	private double loopBytesPerIteration(boolean compiled) throws Exception {
+		Evaluator eval = new Evaluator(_reader);
+		Compiler compiler = compiled ? new Compiler(eval) : null;
+		Program define = _reader.parse(LOOP);
+		if (compiler != null)
+			compiler.valueOf(define);
+		else
+			eval.valueOf(define);
+		return bytesPerRun(eval, compiler, "(loop " + ITERATIONS + " 0)", 2) / ITERATIONS;
+	}
+
+	@Test
+	public void loopBoxesOnlyAtCalls() throws Exception {
+		// A frame and its array, and the two arguments: the temporaries of
+		// the nested arithmetic would add another 48 bytes.
+		assertTrue(loopBytesPerIteration(false) < 128);
+		assertTrue(loopBytesPerIteration(true) < 128);
+	}
+
+	@Test
+	public void nestedArithmeticAllocatesNothingCompiled() throws Exception {
+		Evaluator eval = new Evaluator(_reader);
+		assertEquals(0, bytesPerRun(eval, new Compiler(eval), "(+ (* 3 4) (/ 10 (- 7 2)))", 10000), 1);
+	}
+
+	@Test
+	public void letAllocatesOnlyItsFrame() throws Exception {
+		String let = "(let ((a 3) (b 4) (c 10) (d 7) (e 2)) (+ (* a b) (/ c (- d e))))";
+		Evaluator eval = new Evaluator(_reader);
+		assertTrue(bytesPerRun(eval, new Compiler(eval), let, 10000) <= 64);
+		assertTrue(bytesPerRun(new Evaluator(_reader), null, let, 10000) <= 256);
+	}
+}
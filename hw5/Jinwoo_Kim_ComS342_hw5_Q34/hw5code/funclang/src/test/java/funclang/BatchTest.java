@@ -0,0 +1,82 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+
+import org.junit.Test;
+
+/**
+ * Checks that Batch prints the values of the programs in the order of
+ * their lines, however the parser pool splits them, nothing for blank
+ * lines and definitions, and an error line for each program that fails.
+ */
+public class BatchTest {
+	private static String run(String input, int parseThreads) throws Exception {
+		Reader reader = new Reader();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Batch(reader, new Evaluator(reader), null, new Optimizer(), parseThreads)
+				.run(new BufferedReader(new StringReader(input)), new PrintStream(out));
+		return out.toString();
+	}
+
+	private static String lines(String... lines) {
+		StringBuilder text = new StringBuilder();
+		for (String line : lines)
+			text.append(line).append(System.lineSeparator());
+		return text.toString();
+	}
+
+	/**
+	 * Each value depends on the definitions before it, and the lines vary
+	 * in length, so chunks take the parsers different times.
+	 */
+	@Test
+	public void valuesComeInTheOrderOfTheLines() throws Exception {
+		StringBuilder input = new StringBuilder("(define n 0)\n");
+		StringBuilder expected = new StringBuilder();
+		for (int i = 1; i <= 5000; i++) {
+			input.append("(define n (+ n 1))\n");
+			input.append("(+ n");
+			for (int j = 0; j < i % 97; j++)
+				input.append(" (* 0 ").append(j).append(')');
+			input.append(" 0)\n");
+			expected.append(i).append(System.lineSeparator());
+		}
+		for (int threads : new int[] { 1, 4, 16 })
+			assertEquals("threads " + threads, expected.toString(), run(input.toString(), threads));
+	}
+
+	@Test
+	public void blankLinesPrintNothing() throws Exception {
+		assertEquals(lines("3", "3"), run("(+ 1 2)\n\n   \n\t\n(+ 1 2)\n\n", 2));
+		assertEquals("", run("\n\n\n", 2));
+		assertEquals("", run("", 2));
+	}
+
+	@Test
+	public void failedProgramsPrintAnErrorLine() throws Exception {
+		String input = "(define x 4)\n"
+				+ "undefined\n"
+				+ "(if 1 2 3)\n"
+				+ "(+ 1\n"
+				+ "(max (list))\n"
+				+ "(read \"nofile.txt\")\n"
+				+ "x\n";
+		String missing = new java.io.File(System.getProperty("user.dir"), "nofile.txt").getPath();
+		String[] output = run(input, 2).split(System.lineSeparator(), -1);
+		assertEquals(7, output.length);
+		assertEquals("funclang.Env$LookupException: No binding found for name: undefined", output[0]);
+		assertEquals("Condition not a boolean in expression (if 1.0 2.0 3.0)", output[1]);
+		// A syntax error, whose message differs between JVMs.
+		assertTrue(output[2], output[2].startsWith("Error:"));
+		assertEquals("Parameter for max was an empty list.", output[3]);
+		assertEquals(missing + " (No such file or directory)", output[4]);
+		assertEquals("4", output[5]);
+		assertEquals("", output[6]);
+	}
+}
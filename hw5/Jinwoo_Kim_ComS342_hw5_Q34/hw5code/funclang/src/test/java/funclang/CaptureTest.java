@@ -0,0 +1,104 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.ref.WeakReference;
+
+import org.junit.Test;
+
+import funclang.AST.Program;
+
+/**
+ * Checks that closures see the variables they capture, however deeply
+ * nested and wherever bound, in every engine, and that they do not keep
+ * the frame they capture from alive.
+ */
+public class CaptureTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+
+	private static final String[] DEFINITIONS = {
+		"(define y 100)",
+		"(define curry (lambda (a) (lambda (b) (lambda (c) (list a b c)))))",
+		// Only the innermost lambda uses a, which the middle one captures for it.
+		"(define outer (lambda (a) (lambda (b) (lambda (c) a))))",
+		"(define scale (let ((k 4)) (lambda (x) (* x k))))",
+		"(define local (let ((y 1)) (lambda (x) (+ x y))))",
+		"(define global (lambda (x) (+ x y)))",
+		"(define both (let ((y 1)) (lambda (x) (let ((y (+ y 10))) (lambda (z) (+ x y z))))))",
+	};
+
+	private static final String[][] CASES = {
+		{ "(((curry 1) 2) 3)", "(1 2 3)" },
+		{ "(let ((f (curry 4))) (list ((f 5) 6) ((f 7) 8)))", "((4 5 6) (4 7 8))" },
+		{ "(((outer 1) 2) 3)", "1" },
+		{ "(scale 3)", "12" },
+		{ "(let ((k 10)) (scale 3))", "12" },
+		{ "(local 5)", "6" },
+		{ "(global 5)", "105" },
+		{ "((both 2) 3)", "16" },
+		{ "(let ((y 7)) (list (local 5) (global 5) ((lambda (x) (+ x y)) 5)))", "(6 105 12)" },
+		{ "(define y 200)", "" },
+		{ "(list (local 5) (global 5) ((both 2) 3))", "(6 205 16)" },
+	};
+
+	@Test
+	public void capturesInEveryEngine() throws Exception {
+		for (String name : ENGINES)
+			for (boolean optimize : new boolean[] { false, true }) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(optimize);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					for (String definition : DEFINITIONS)
+						session.valueOf(definition);
+					for (String[] c : CASES)
+						assertEquals(name + (optimize ? " optimized: " : ": ") + c[0], c[1],
+								session.valueOf(c[0]).tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+
+	/**
+	 * Makes a closure in a frame that also holds a list, which the closure
+	 * does not use, and returns a weak reference to the list once nothing
+	 * but that frame could hold it.
+	 */
+	private static WeakReference<Value> captureNextTo(Evaluator eval, Compiler compiler) {
+		Reader reader = new Reader();
+		run(eval, compiler, reader.parse("(define big (list 1 2 3))"));
+		run(eval, compiler, reader.parse("(define f ((lambda (big k) (lambda (x) (+ x k))) big 1))"));
+		WeakReference<Value> big = new WeakReference<Value>(eval.globalEnv().get("big"));
+		run(eval, compiler, reader.parse("(define big 0)"));
+		return big;
+	}
+
+	private static Value run(Evaluator eval, Compiler compiler, Program p) {
+		return compiler != null ? compiler.valueOf(p) : eval.valueOf(p);
+	}
+
+	private static void assertCollected(String engine, WeakReference<Value> ref) throws InterruptedException {
+		for (int i = 0; i < 100 && ref.get() != null; i++) {
+			System.gc();
+			Thread.sleep(10);
+		}
+		assertNull(engine, ref.get());
+	}
+
+	@Test
+	public void closuresDoNotKeepTheFrameTheyCaptureFrom() throws Exception {
+		Reader reader = new Reader();
+		for (String engine : new String[] { "ast", "closure", "vm" }) {
+			Evaluator eval = new Evaluator(reader);
+			Compiler compiler = engine.equals("closure") ? new Compiler(eval) : null;
+			if (engine.equals("vm"))
+				eval.setVM();
+			WeakReference<Value> big = captureNextTo(eval, compiler);
+			assertCollected(engine, big);
+			assertEquals(engine, "6", run(eval, compiler, reader.parse("(f 5)")).tostring());
+		}
+	}
+}
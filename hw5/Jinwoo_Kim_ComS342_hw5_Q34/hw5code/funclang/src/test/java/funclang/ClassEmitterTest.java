@@ -0,0 +1,123 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import funclang.Value.*;
+
+/**
+ * Checks that the bodies of hot functions get classes of their own, and
+ * that running them gives the values and errors the closure compiler
+ * gives, once the functions are hot and before.
+ */
+public class ClassEmitterTest {
+	private static final String[] DEFINITIONS = {
+		"(define arith (lambda (x y) (+ (* x y) (- x y) (/ x y) (- 0 x))))",
+		"(define order (lambda (a b) (if (< a b) 1 (if (> a b) 2 (if (= a b) 3 4)))))",
+		"(define same (lambda (a b) (= a b)))",
+		"(define choose (lambda (c) (if c 1 2)))",
+		"(define inc (lambda (x) (+ x 1)))",
+		"(define loop (lambda (n acc) (if (= n 0) acc (loop (- n 1) (+ acc 1)))))",
+		"(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))",
+		"(define adder (lambda (k) (lambda (x) (+ x k))))",
+		"(define add3 (adder 3))",
+		"(define g 10)",
+		"(define global (lambda (x) (* x g)))",
+		"(define twice (lambda (x) (let ((y (* x 2))) (+ y x))))",
+		"(define pick (lambda (l) (if (null? l) 0 (car l))))",
+	};
+
+	private static final String[] CALLS = {
+		"(arith 3 4)", "(arith 1 0)", "(arith 0 0)", "(arith (- 0 0) 1)",
+		"(order 1 2)", "(order 2 1)", "(order 2 2)", "(order (/ 0 0) 1)",
+		"(order \"ab\" \"abc\")", "(order (list 1 2) (list 1))", "(order 1 \"a\")", "(order #t #f)",
+		"(same (list 1 2) (list 1 2))", "(same \"a\" \"a\")", "(same 1 \"1\")", "(same (/ 0 0) (/ 0 0))",
+		"(choose #t)", "(choose #f)", "(choose 5)", "(choose (list))",
+		"(inc 1)",
+		"(loop 10000 0)", "(fib 15)", "(add3 4)", "(global 4)", "(twice 7)",
+		"(pick (list 5 6))", "(pick (list))",
+	};
+
+	/*
+	 * Calls failing with a ClassCastException, made once the functions are
+	 * hot: made over and over, the JIT throws them without a message.
+	 */
+	private static final String[] CAST_ERRORS = {
+		"(inc #t)", "(inc (list 1))", "(pick 1)", "(arith 1 #t)",
+	};
+
+	private static FuncLangEngine.Session session(FuncLangEngine engine, String name) {
+		engine.setEngine(name);
+		engine.setOptimize(false);
+		FuncLangEngine.Session session = engine.openSession();
+		for (String definition : DEFINITIONS)
+			session.valueOf(definition);
+		return session;
+	}
+
+	@Test
+	public void hotFunctionsAnswerAsCompiledOnes() throws Exception {
+		FuncLangEngine closure = new FuncLangEngine(), tiered = new FuncLangEngine();
+		try {
+			FuncLangEngine.Session expected = session(closure, "closure"), actual = session(tiered, "tiered");
+			for (int round = 0; round <= Interpreter.TIERED_COMPILE_THRESHOLD + 10; round++)
+				for (String call : CALLS)
+					assertEquals(round + ": " + call, expected.valueOf(call).tostring(),
+							actual.valueOf(call).tostring());
+			for (String call : CAST_ERRORS)
+				assertEquals(call, expected.valueOf(call).tostring(), actual.valueOf(call).tostring());
+		} finally {
+			closure.close();
+			tiered.close();
+		}
+	}
+
+	private static Compiler.Node emit(String lambda) {
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		Compiler compiler = new Compiler(eval);
+		compiler.valueOf(reader.parse("(define f " + lambda + ")"));
+		FunVal f = (FunVal) eval.globalEnv().get("f");
+		return ClassEmitter.emit(f.body(), compiler);
+	}
+
+	@Test
+	public void bodiesGetClassesOfTheirOwn() {
+		assertTrue(ClassEmitter.available());
+		Compiler.Node fib = emit("(lambda (n) (if (< n 2) n (+ (f (- n 1)) (f (- n 2)))))");
+		assertNotNull(fib);
+		assertTrue(fib.getClass().getName().startsWith("funclang.Hot"));
+	}
+
+	/**
+	 * Each of the functions mk makes is hot on its own, as map calls it
+	 * more than the threshold, but their body is only compiled once.
+	 */
+	@Test
+	public void functionsOfOneLambdaShareTheirClass() {
+		Reader reader = new Reader();
+		Evaluator eval = new Evaluator(reader);
+		eval.setCompileThreshold(Interpreter.TIERED_COMPILE_THRESHOLD);
+		StringBuilder xs = new StringBuilder("(define xs (list");
+		for (int x = 1; x <= 2 * Interpreter.TIERED_COMPILE_THRESHOLD; x++)
+			xs.append(' ').append(x);
+		eval.valueOf(reader.parse(xs.append("))").toString()));
+		eval.valueOf(reader.parse("(define mk (lambda (n) (lambda (x) (+ x n))))"));
+		int before = ClassEmitter.defined();
+		int sum = Interpreter.TIERED_COMPILE_THRESHOLD * (2 * Interpreter.TIERED_COMPILE_THRESHOLD + 1);
+		for (int i = 0; i < 100; i++)
+			assertEquals("" + (sum + 2 * Interpreter.TIERED_COMPILE_THRESHOLD * i),
+					eval.valueOf(reader.parse("(sum (map (mk " + i + ") xs))")).tostring());
+		assertEquals(1, ClassEmitter.defined() - before);
+	}
+
+	@Test
+	public void bodiesWithNothingToEmitKeepTheirNodes() {
+		assertNull(emit("(lambda (x) (car x))"));
+		assertNull(emit("(lambda (x) x)"));
+	}
+}
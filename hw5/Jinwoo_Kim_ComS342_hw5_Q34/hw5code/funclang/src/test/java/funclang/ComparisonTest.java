@@ -0,0 +1,167 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import funclang.Value.*;
+
+/**
+ * Checks =, < and > on every kind of value, in programs run by each
+ * engine and on values built directly, including lists too long or too
+ * deeply nested to be compared by recursion.
+ */
+public class ComparisonTest {
+	private static final String[] ENGINES = { "ast", "closure", "vm" };
+
+	private static final String[][] CASES = {
+		{ "(= (list 1 2 3) (list 1 2 3))", "#t" },
+		{ "(= (list 1 2 3) (list 1 2 4))", "#f" },
+		{ "(= (list 1 2) (list 1 2 3))", "#f" },
+		{ "(= (list 1 2 3) (list 1 2))", "#f" },
+		{ "(= (list) (list))", "#t" },
+		{ "(= (list) 0)", "#f" },
+		{ "(= (cons 1 (cons 2 (list))) (list 1 2))", "#t" },
+		{ "(= (cons 1 (list 2 3)) (list 1 2 3))", "#t" },
+		{ "(= (cdr (list 0 1 2)) (list 1 2))", "#t" },
+		{ "(= (cons 1 2) (cons 1 2))", "#t" },
+		{ "(= (cons 1 2) (cons 2 1))", "#f" },
+		{ "(= (list (list 1 2) (cons 3 4) \"s\") (list (list 1 2) (cons 3 4) \"s\"))", "#t" },
+		{ "(= (list (list 1 (list 2 (list 3)))) (list (list 1 (list 2 (list 4)))))", "#f" },
+		{ "(= (list 1 #t \"a\") (list 1 #t \"a\"))", "#t" },
+		{ "(= (list 1 #t \"a\") (list 1 #f \"a\"))", "#f" },
+		{ "(let ((f (lambda (x) x))) (= (list f) (list f)))", "#t" },
+		{ "(= (list (lambda (x) x)) (list (lambda (x) x)))", "#f" },
+		{ "(let ((l (list 1 2))) (= l l))", "#t" },
+		{ "(= \"ab\" \"ab\")", "#t" },
+		{ "(= \"ab\" \"abc\")", "#f" },
+		{ "(= 1 \"1\")", "#f" },
+		{ "(= #t #t)", "#t" },
+		{ "(= 0 (- 0 0))", "#t" },
+		{ "(let ((n 3)) (= n 3))", "#t" },
+		{ "(< (list 1) (list 1 2))", "#t" },
+		{ "(> (list 1) (list 1 2))", "#f" },
+		{ "(> (cons 1 (list 2 3)) (list 9 9))", "#t" },
+		{ "(< \"ab\" \"abc\")", "#t" },
+		{ "(< 1 (list 1 2))", "#f" },
+		{ "(> (cons 1 2) (list))", "#f" },
+	};
+
+	@Test
+	public void comparisonsInEveryEngine() throws Exception {
+		for (String name : ENGINES) {
+			FuncLangEngine engine = new FuncLangEngine();
+			engine.setEngine(name);
+			try {
+				FuncLangEngine.Session session = engine.openSession();
+				for (String[] c : CASES)
+					assertEquals(name + ": " + c[0], c[1], session.valueOf(c[0]).tostring());
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	/*
+	 * Calls that give the comparisons in lt, gt and eq operands of one kind
+	 * first and of other kinds later, so that compiled comparisons
+	 * specialize on the first and must deoptimize on the others.
+	 */
+	private static final String[] COMPARERS = {
+		"(define lt (lambda (a b) (< a b)))",
+		"(define gt (lambda (a b) (> a b)))",
+		"(define eq (lambda (a b) (= a b)))",
+	};
+
+	private static final String[][][] SWITCHES = {
+		{ { "(lt 1 2)", "#t" }, { "(lt \"abc\" \"ab\")", "#f" }, { "(lt (list) (list 1))", "#t" },
+			{ "(lt 1 \"a\")", "#f" }, { "(lt 2 1)", "#f" } },
+		{ { "(gt \"abc\" \"ab\")", "#t" }, { "(gt 2 1)", "#t" }, { "(gt (list 1 2) (cons 1 (list)))", "#t" },
+			{ "(gt \"a\" \"ab\")", "#f" } },
+		{ { "(eq (list 1 2) (list 1 2))", "#t" }, { "(eq (list) (list))", "#t" }, { "(eq 0 (- 0 0))", "#t" },
+			{ "(eq \"a\" \"a\")", "#t" }, { "(eq (cons 1 2) (cons 1 3))", "#f" }, { "(eq #t #t)", "#t" },
+			{ "(eq (list 1) 1)", "#f" } },
+		{ { "(eq 1 \"1\")", "#f" }, { "(eq 1 1)", "#t" }, { "(eq \"x\" \"x\")", "#t" } },
+		{ { "(eq \"x\" \"x\")", "#t" }, { "(eq \"x\" \"y\")", "#f" }, { "(eq 1 1)", "#t" } },
+	};
+
+	@Test
+	public void comparisonsSeeingOtherKindsDeoptimize() throws Exception {
+		for (String name : ENGINES)
+			for (String[][] calls : SWITCHES) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(false);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					for (String comparer : COMPARERS)
+						session.valueOf(comparer);
+					for (int round = 0; round < 2; round++)
+						for (String[] c : calls)
+							assertEquals(name + ": " + c[0], c[1], session.valueOf(c[0]).tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+
+	private static Value chain(int length, int last) {
+		Value list = new Null();
+		for (int i = length - 1; i >= 0; i--)
+			list = new PairVal(new NumVal(i == length - 1 ? last : i), list);
+		return list;
+	}
+
+	private static Value array(int length, int last) {
+		Value[] elems = new Value[length];
+		for (int i = 0; i < length; i++)
+			elems[i] = new NumVal(i == length - 1 ? last : i);
+		return new ListVal(elems);
+	}
+
+	@Test
+	public void longListsCompareWithoutRecursion() {
+		int n = 1000000;
+		assertTrue(Comparison.equal(chain(n, -1), chain(n, -1)));
+		assertFalse(Comparison.equal(chain(n, -1), chain(n, -2)));
+		assertTrue(Comparison.equal(chain(n, -1), array(n, -1)));
+		assertTrue(Comparison.equal(array(n, -1), chain(n, -1)));
+		assertFalse(Comparison.equal(array(n, -1), array(n, -2)));
+		assertTrue(Comparison.less(chain(n - 1, 0), array(n, 0)));
+	}
+
+	@Test
+	public void deeplyNestedPairsCompareWithoutRecursion() {
+		Value a = new Null(), b = new Null(), c = new Null();
+		for (int i = 0; i < 1000000; i++) {
+			a = new PairVal(a, new NumVal(i));
+			b = new PairVal(b, new NumVal(i));
+			c = new PairVal(c, new NumVal(i == 0 ? -1 : i));
+		}
+		assertTrue(Comparison.equal(a, b));
+		assertFalse(Comparison.equal(a, c));
+	}
+
+	@Test
+	public void hashesAgreeWithEquality() {
+		Value chain = chain(100, 7), list = array(100, 7), other = array(100, 8);
+		assertTrue(Comparison.hashPairs((PairVal) chain));
+		assertTrue(Comparison.hashPairs((PairVal) list));
+		assertTrue(Comparison.hashPairs((PairVal) other));
+		// Known hashes only rule out pairs that differ.
+		assertEquals(Comparison.hash(chain), Comparison.hash(list));
+		assertTrue(Comparison.equal(chain, list));
+		assertFalse(Comparison.equal(list, other));
+	}
+
+	@Test
+	public void memoKeysTellZeroFromMinusZero() {
+		Value zero = new NumVal(0.0), minusZero = new NumVal(-0.0);
+		assertTrue(Comparison.equal(zero, minusZero));
+		assertFalse(Comparison.same(zero, minusZero));
+		assertTrue(Comparison.same(new ListVal(new Value[] { zero }), new ListVal(new Value[] { new NumVal(0.0) })));
+		assertEquals(Comparison.hash(zero), Comparison.hash(minusZero));
+	}
+}
@@ -0,0 +1,68 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that calls fill in missing trailing arguments from the defaults
+ * of the function called, in every engine, whatever else the call site
+ * has called before and whatever variables of the same names are bound.
+ */
+public class DefaultsTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+
+	private static final String[] DEFINITIONS = {
+		"(define add (lambda (x (y = 10)) (+ x y)))",
+		"(define two (lambda ((a = 1) (b = 2)) (list a b)))",
+		"(define need (lambda (a (b = 2)) (list a b)))",
+		"(define mk (lambda (n) (lambda (x (y = 3)) (+ x y n))))",
+		// More functions than a call site caches.
+		"(define fs (list (lambda ((a = 1)) a) (lambda ((a = 0) (b = 2)) (+ a b)) (lambda ((a = 3)) (* a 2))"
+				+ " (lambda ((a = 4) (b = 5)) (- a b)) (lambda ((a = 6)) a) (lambda ((a = 7)) a)))",
+		"(define call (lambda (f) (f 1)))",
+	};
+
+	private static final String[][] CASES = {
+		{ "(add 1)", "11" },
+		{ "(add 1 2)", "3" },
+		{ "(two)", "(1 2)" },
+		{ "(two 5)", "(5 2)" },
+		{ "(two 5 6)", "(5 6)" },
+		{ "(two 5 6 7)", "Argument mismatch in call (two 5.0 6.0 7.0 )" },
+		{ "(need)", "Argument mismatch in call (need )" },
+		{ "(need 1)", "(1 2)" },
+		{ "(map (lambda (n) ((mk n) 1)) (list 1 2 3))", "(5 6 7)" },
+		{ "(map (lambda (f) (f)) fs)", "(1 2 6 -1 6 7)" },
+		{ "(map (lambda (f) (f 10)) fs)", "(10 12 20 5 10 10)" },
+		// One site calling functions with and without a default.
+		{ "(list (call add) (call (lambda (x) x)) (call need) (call (lambda (x y) y)))",
+				"(11 1 (1 2) Argument mismatch in call (f 1.0 ))" },
+		// Variables named after formals do not supply or hide defaults.
+		{ "(define y 100)", "" },
+		{ "(add 1)", "11" },
+		{ "(let ((y 5) (b 6)) (list (add 1) (two 0)))", "(11 (0 2))" },
+		{ "(define redefines (lambda (y) y))", "" },
+		{ "(add 1)", "11" },
+	};
+
+	@Test
+	public void defaultsInEveryEngine() throws Exception {
+		for (String name : ENGINES)
+			for (boolean optimize : new boolean[] { false, true }) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(optimize);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					for (String definition : DEFINITIONS)
+						session.valueOf(definition);
+					for (String[] c : CASES)
+						assertEquals(name + (optimize ? " optimized: " : ": ") + c[0], c[1],
+								session.valueOf(c[0]).tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+}
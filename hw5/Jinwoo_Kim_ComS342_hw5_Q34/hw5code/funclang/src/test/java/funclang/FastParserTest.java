@@ -0,0 +1,225 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.junit.Test;
+
+import funclang.AST.DefineDecl;
+import funclang.AST.Program;
+import funclang.parser.FuncLangLexer;
+import funclang.parser.FuncLangParser;
+
+/**
+ * Checks FastParser against the ANTLR parser: both must build the same
+ * tree, compared through the Printer, for every program FastParser
+ * accepts, and FastParser must leave every program ANTLR rejects, or
+ * that it does not handle, to ANTLR.
+ */
+public class FastParserTest {
+	private static final String[] NAMES = { "x", "y", "n", "acc", "f", "foo_1", "$a", "list1", "Lambda" };
+
+	/**
+	 * Prints the definitions and the expression of p.
+	 */
+	static String format(Program p) {
+		Printer.Formatter formatter = new Printer.Formatter();
+		StringBuilder result = new StringBuilder();
+		for (DefineDecl d : p.decls())
+			result.append(formatter.visit(d, null)).append(' ');
+		if (p.e() != null)
+			result.append(p.e().accept(formatter, null));
+		return result.toString();
+	}
+
+	/**
+	 * The program ANTLR parses from text with full LL prediction, or null
+	 * if it reports a syntax error or fails in an action.
+	 */
+	static Program antlr(String text) {
+		final int[] errors = { 0 };
+		BaseErrorListener counter = new BaseErrorListener() {
+			public void syntaxError(Recognizer<?, ?> recognizer, Object symbol, int line, int column,
+					String message, RecognitionException e) {
+				errors[0]++;
+			}
+		};
+		FuncLangLexer lexer = new FuncLangLexer(new ANTLRInputStream(text));
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(counter);
+		FuncLangParser parser = new FuncLangParser(new CommonTokenStream(lexer));
+		parser.removeErrorListeners();
+		parser.addErrorListener(counter);
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		try {
+			Program p = parser.program().ast;
+			return errors[0] == 0 ? p : null;
+		} catch (RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Checks that FastParser either leaves text to ANTLR or parses it as
+	 * ANTLR does, and returns whether it parsed it.
+	 */
+	private static boolean agrees(String text) {
+		Program expected = antlr(text);
+		Program fast = FastParser.parse(text);
+		if (expected == null) {
+			assertNull("accepted what ANTLR rejects: " + text, fast);
+			return false;
+		}
+		if (fast != null)
+			assertEquals(text, format(expected), format(fast));
+		return fast != null;
+	}
+
+	/**
+	 * The programs of the test corpus, one per line.
+	 */
+	static List<String> corpus() throws Exception {
+		List<String> programs = new ArrayList<String>();
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				FastParserTest.class.getResourceAsStream("corpus.txt"), "UTF-8"));
+		try {
+			for (String line = in.readLine(); line != null; line = in.readLine())
+				if (!line.trim().isEmpty())
+					programs.add(line);
+		} finally {
+			in.close();
+		}
+		return programs;
+	}
+
+	@Test
+	public void corpusParsesOnTheFastPath() throws Exception {
+		List<String> programs = corpus();
+		assertTrue(programs.size() > 40);
+		for (String text : programs) {
+			assertNotNull("rejected by ANTLR: " + text, antlr(text));
+			assertTrue("left to ANTLR: " + text, agrees(text));
+		}
+	}
+
+	@Test
+	public void unhandledFormsFallBackToAntlr() {
+		String[] fallbacks = {
+			"(+ 1 2) )", "1 2", "(+ 1 2) x", // Trailing text.
+			"\"a \\\" b\"", "(list \"\\\"\")", // Escaped quotes.
+			"(let ((\u03b1\u03b2 1)) \u03b1\u03b2)", "(\u03bb 2)", // Non-ASCII identifiers.
+			"12345678901", "(+ 1 -99999999999)", // Integers that do not fit an int.
+		};
+		for (String text : fallbacks) {
+			assertNull("not left to ANTLR: " + text, FastParser.parse(text));
+			String expected, fast;
+			try {
+				expected = format(new Reader().parse(text));
+			} catch (NumberFormatException e) {
+				expected = e.toString();
+			}
+			Reader reader = new Reader();
+			reader.setFastParser(true);
+			try {
+				fast = format(reader.parse(text));
+			} catch (NumberFormatException e) {
+				fast = e.toString();
+			}
+			assertEquals(text, expected, fast);
+		}
+	}
+
+	@Test
+	public void generatedAndMutatedProgramsAgree() {
+		Random random = new Random(342);
+		String tokens = "()+-*/<=>.#\"; xyz019";
+		for (int i = 0; i < 1000; i++) {
+			String text = program(random);
+			assertTrue("left to ANTLR: " + text, agrees(text));
+			for (int j = 0; j < 4; j++) {
+				StringBuilder mutant = new StringBuilder(text);
+				int at = random.nextInt(mutant.length());
+				switch (random.nextInt(3)) {
+				case 0: mutant.deleteCharAt(at); break;
+				case 1: mutant.insert(at, tokens.charAt(random.nextInt(tokens.length()))); break;
+				default: mutant.insert(at, mutant.charAt(at)); break;
+				}
+				agrees(mutant.toString());
+			}
+		}
+	}
+
+	private static String program(Random random) {
+		StringBuilder result = new StringBuilder();
+		for (int i = random.nextInt(3); i > 0; i--)
+			result.append("(define ").append(name(random)).append(' ').append(exp(random, 0)).append(")").append(space(random));
+		return result.append(exp(random, 0)).toString();
+	}
+
+	private static String name(Random random) {
+		return NAMES[random.nextInt(NAMES.length)];
+	}
+
+	private static String space(Random random) {
+		switch (random.nextInt(8)) {
+		case 0: return "  ";
+		case 1: return "\t";
+		case 2: return " /* c */ ";
+		default: return " ";
+		}
+	}
+
+	private static String number(Random random) {
+		switch (random.nextInt(4)) {
+		case 0: return "-" + random.nextInt(100);
+		case 1: return random.nextInt(100) + "." + random.nextInt(100);
+		default: return "" + random.nextInt(2000);
+		}
+	}
+
+	private static String exp(Random random, int depth) {
+		switch (depth > 3 ? random.nextInt(4) : random.nextInt(16)) {
+		case 0: return number(random);
+		case 1: return name(random);
+		case 2: return random.nextBoolean() ? "#t" : "#f";
+		case 3: return "\"s " + random.nextInt(10) + "\"";
+		case 4: return compound(random, depth, "+-*/".charAt(random.nextInt(4)) + "", 2 + random.nextInt(2));
+		case 5: return compound(random, depth, "<=>".charAt(random.nextInt(3)) + "", 2);
+		case 6: return "(let ((" + name(random) + " " + exp(random, depth + 1) + ")" + space(random)
+				+ "(" + name(random) + " " + exp(random, depth + 1) + ")) " + exp(random, depth + 1) + ")";
+		case 7: {
+			String formals = "";
+			for (int i = random.nextInt(3); i > 0; i--)
+				formals += random.nextInt(3) == 0 ? "(" + name(random) + " = " + number(random) + ") " : name(random) + " ";
+			return "(lambda (" + formals + ") " + exp(random, depth + 1) + ")";
+		}
+		case 8: return compound(random, depth, exp(random, depth + 1), random.nextInt(3));
+		case 9: return compound(random, depth, "if", 3);
+		case 10: return compound(random, depth, random.nextBoolean() ? "car" : random.nextBoolean() ? "cdr" : "null?", 1);
+		case 11: return compound(random, depth, "cons", 2);
+		case 12: return compound(random, depth, "list", random.nextInt(4));
+		default: return compound(random, depth, name(random), random.nextInt(3));
+		}
+	}
+
+	private static String compound(Random random, int depth, String head, int operands) {
+		StringBuilder result = new StringBuilder("(").append(head);
+		for (int i = 0; i < operands; i++)
+			result.append(space(random)).append(exp(random, depth + 1));
+		return result.append(")").toString();
+	}
+}
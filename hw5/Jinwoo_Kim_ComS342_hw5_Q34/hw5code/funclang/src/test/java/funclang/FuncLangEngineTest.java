@@ -0,0 +1,178 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import funclang.Env.LookupException;
+
+/**
+ * Checks that the sessions of a FuncLangEngine share the prelude but not
+ * their own definitions, in every engine, that each session runs its
+ * programs in the order they were submitted, and that sessions take the
+ * options the engine had when they were opened.
+ */
+public class FuncLangEngineTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+	private static final int SESSIONS = 20;
+	private static final int ROUNDS = 100;
+
+	private static FuncLangEngine engine(String name) {
+		FuncLangEngine engine = new FuncLangEngine();
+		engine.setEngine(name);
+		engine.prelude("(define sq (lambda (x) (* x x)))");
+		engine.prelude("(define adder (lambda (n) (lambda (x) (+ x n))))");
+		return engine;
+	}
+
+	private static String value(CompletableFuture<Value> result) throws Exception {
+		return result.get().tostring();
+	}
+
+	private static Throwable failure(CompletableFuture<Value> result) throws Exception {
+		try {
+			result.get();
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		throw new AssertionError("Completed with " + result.get().tostring());
+	}
+
+	@Test
+	public void sessionsSeeOnlyTheirOwnDefinitions() throws Exception {
+		for (String name : ENGINES) {
+			FuncLangEngine engine = engine(name);
+			try {
+				List<FuncLangEngine.Session> sessions = new ArrayList<FuncLangEngine.Session>();
+				List<CompletableFuture<Value>> results = new ArrayList<CompletableFuture<Value>>();
+				for (int i = 0; i < SESSIONS; i++) {
+					FuncLangEngine.Session session = engine.openSession();
+					sessions.add(session);
+					results.add(session.submit("(define k " + i + ")"));
+					// Shadows the prelude's sq in this session only.
+					results.add(session.submit("(define sq (lambda (x) (+ x k)))"));
+				}
+				for (int r = 0; r < ROUNDS; r++)
+					for (FuncLangEngine.Session session : sessions) {
+						results.add(session.submit("(define k (+ k 1))"));
+						results.add(session.submit("((adder k) 1)"));
+					}
+				for (CompletableFuture<Value> result : results)
+					result.get();
+				for (int i = 0; i < SESSIONS; i++) {
+					assertEquals(name, "" + (i + ROUNDS), value(sessions.get(i).submit("(sq 0)")));
+					assertEquals(name, "" + (i + ROUNDS + 1), value(sessions.get(i).submit("((adder k) 1)")));
+				}
+
+				FuncLangEngine.Session fresh = engine.openSession();
+				assertEquals(name, "81", value(fresh.submit("(sq 9)")));
+				assertTrue(name, failure(fresh.submit("k")) instanceof LookupException);
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void programsOfASessionRunInOrder() throws Exception {
+		FuncLangEngine engine = engine("ast");
+		try {
+			FuncLangEngine.Session session = engine.openSession();
+			session.submit("(define log (list))");
+			CompletableFuture<Value> last = null;
+			for (int i = 0; i < 1000; i++)
+				last = session.submit("(define log (cons " + i + " log))");
+			last.get();
+			String expected = "";
+			for (int i = 999; i >= 0; i--)
+				expected += (expected.isEmpty() ? "" : " ") + i;
+			assertEquals("(" + expected + ")", value(session.submit("log")));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void failedProgramsDoNotStopTheSession() throws Exception {
+		FuncLangEngine engine = engine("ast");
+		try {
+			FuncLangEngine.Session session = engine.openSession();
+			assertTrue(failure(session.submit("undefined")) instanceof LookupException);
+			assertTrue(session.submit("(car 1)").get() instanceof Value.DynamicError);
+			assertEquals("4", value(session.submit("(sq 2)")));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void preludeIsReadOnlyOnceASessionIsOpen() throws Exception {
+		FuncLangEngine engine = engine("ast");
+		try {
+			engine.openSession();
+			try {
+				engine.prelude("(define sq 1)");
+				fail();
+			} catch (IllegalStateException e) {
+			}
+			assertEquals("9", value(engine.openSession().submit("(sq 3)")));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void closedSessionsRefuseNewPrograms() throws Exception {
+		FuncLangEngine engine = engine("ast");
+		try {
+			FuncLangEngine.Session session = engine.openSession();
+			CompletableFuture<Value> submitted = session.submit("(sq 5)");
+			session.close();
+			try {
+				session.submit("(sq 6)");
+				fail();
+			} catch (IllegalStateException e) {
+			}
+			assertEquals("25", value(submitted));
+		} finally {
+			engine.close();
+		}
+	}
+
+	@Test
+	public void sessionsTakeTheEngineOptions() throws Exception {
+		String down = "(define down (lambda (n) (if (= n 0) 0 (+ 1 (down (- n 1))))))";
+		FuncLangEngine engine = engine("vm");
+		ForkJoinPool pool = new ForkJoinPool();
+		try {
+			engine.setMaxDepth(1000);
+			engine.setMemoize(true);
+			FuncLangEngine.Session session = engine.openSession();
+			session.submit(down);
+			assertEquals("900", value(session.submit("(down 900)")));
+			assertEquals("recursion too deep", value(session.submit("(down 1100)")));
+			session.submit("(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))");
+			assertEquals("832040", value(session.submit("(fib 30)")));
+			assertTrue(session.memoHits() > 0);
+
+			engine.setEngine("ast");
+			engine.setMemoize(false);
+			engine.setParallel(pool);
+			session = engine.openSession();
+			session.submit("(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))");
+			assertEquals("(6765 6765)", value(session.submit("(list (fib 20) (fib 20))")));
+			assertEquals(0, session.memoHits() + session.memoMisses());
+		} finally {
+			engine.close();
+			pool.shutdown();
+		}
+	}
+}
@@ -0,0 +1,125 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks the procedures of the Library in every engine, with and without
+ * the Optimizer fusing chains of them, on lists long enough to overflow
+ * the stack if they were walked by recursion, and that programs which
+ * define procedures of the same names call theirs.
+ */
+public class LibraryTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+
+	private static final String[] DEFINITIONS = {
+		"(define iota (lambda (n acc) (if (= n 0) acc (iota (- n 1) (cons n acc)))))",
+		"(define big (iota 200000 (list)))",
+		"(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))",
+		"(define add (lambda (x (y = 10)) (+ x y)))",
+		"(define m (lambda (l) (map (lambda (x) (+ x 1)) l)))",
+		"(define tailmap (lambda (l) (sum (map (lambda (x) x) l))))",
+	};
+
+	private static final String[][] CASES = {
+		{ "(sum big)", "2.00001E10" },
+		{ "(length (map (lambda (x) (* x 2)) big))", "200000" },
+		{ "(sum (map (lambda (x) (* x 2)) big))", "4.00002E10" },
+		{ "(length (filter (lambda (x) (= x (* 2 (/ x 2)))) big))", "200000" },
+		{ "(foldl (lambda (acc x) (+ acc x)) 0 big)", "2.00001E10" },
+		{ "(car (reverse big))", "200000" },
+		{ "(length (append big big))", "400000" },
+		{ "(listref (append big (list 7 8 9)) 200001)", "8" },
+		{ "(tailmap big)", "2.00001E10" },
+		{ "(map (lambda (x) (+ x 1)) (list 1 2 3))", "(2 3 4)" },
+		{ "(map (lambda (x) (+ x 1)) (list))", "()" },
+		{ "(filter (lambda (x) (< x 2)) (list 1 2 3 0))", "(1 0)" },
+		{ "(append (list 1 2) (list 3 4))", "(1 2 3 4)" },
+		{ "(append (list) 5)", "5" },
+		{ "(append (cons 1 (cons 2 (list))) (cons 3 (list)))", "(1 2 3)" },
+		{ "(reverse (cons 1 (cons 2 (list))))", "(2 1)" },
+		{ "(foldl (lambda (acc x) (cons x acc)) (list) (list 1 2 3))", "(3 2 1)" },
+		{ "(product (list 1 2 3 4))", "24" },
+		{ "(max (list 3 9 2))", "9" },
+		{ "(min (list 3 9 2))", "2" },
+		{ "(sum (list))", "0" },
+		{ "(product (list))", "1" },
+		{ "(map length (list \"ab\" (list 1 2 3)))", "(2 3)" },
+		{ "(map (lambda (x) (listref x 0)) (list (list 5) (list 6)))", "(5 6)" },
+		{ "(map fib (list 10 15 20))", "(55 610 6765)" },
+		{ "(map (memo (lambda (n) (* n n))) (list 1 2 3))", "(1 4 9)" },
+		{ "(map add (list 1 2))", "(11 12)" },
+		{ "(foldl add 0 (list 1 2 3))", "6" },
+		{ "(let ((f (lambda (x) (* x x)))) (map f (list 1 2 3)))", "(1 4 9)" },
+		{ "(m (list 1 2))", "(2 3)" },
+		{ "sum", "(native sum)" },
+		// Errors.
+		{ "(max (list))", "Parameter for max was an empty list." },
+		{ "(sum (list 1 #t))", "Element of list for sum was not a number." },
+		{ "(sum 5)", "Parameter for sum was not a list." },
+		{ "(map 5 (list 1 2))", "Argument to map is not a function" },
+		{ "(map (lambda (x y) x) (list 1 2))", "Argument mismatch in call from map" },
+		{ "(filter (lambda (x) 1) (list 1 2))", "Predicate for filter did not return a boolean." },
+		{ "(map (lambda (x) (car x)) (list 1))", castError() },
+		{ "(length 1 2)", "Argument mismatch in call (length 1.0 2.0 )" },
+		{ "(map)", "Argument mismatch in call (map )" },
+	};
+
+	/**
+	 * The message of the ClassCastException taking the car of a number,
+	 * which differs between JVMs.
+	 */
+	private static String castError() {
+		try {
+			Object number = new Value.NumVal(1);
+			return "" + ((Value.PairVal) number).fst();
+		} catch (ClassCastException e) {
+			return e.getMessage();
+		}
+	}
+
+	@Test
+	public void libraryInEveryEngine() throws Exception {
+		for (String name : ENGINES)
+			for (boolean optimize : new boolean[] { false, true }) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(optimize);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					for (String definition : DEFINITIONS)
+						session.valueOf(definition);
+					for (String[] c : CASES)
+						assertEquals(name + (optimize ? " optimized: " : ": ") + c[0], c[1],
+								session.valueOf(c[0]).tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+
+	@Test
+	public void redefinedProceduresAreNotFused() throws Exception {
+		for (String name : new String[] { "ast", "closure", "vm" })
+			for (boolean optimize : new boolean[] { false, true }) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(optimize);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					String label = name + (optimize ? " optimized" : "");
+					assertEquals(label, "12", session.valueOf("(sum (map (lambda (x) (* x 2)) (list 1 2 3)))").tostring());
+					// A map that ignores f and multiplies every element by 4.
+					session.valueOf("(define map (lambda (f l) (if (null? l) l (cons (* 4 (car l)) (map f (cdr l))))))");
+					assertEquals(label, "24", session.valueOf("(sum (map (lambda (x) (* x 2)) (list 1 2 3)))").tostring());
+					assertEquals(label, "(4 8 12)",
+							session.valueOf("(filter (lambda (x) (> x 0)) (map (lambda (x) x) (list 1 2 3)))").tostring());
+					session.valueOf("(define sum (lambda (l) (length l)))");
+					assertEquals(label, "3", session.valueOf("(sum (map (lambda (x) (* x 2)) (list 1 2 3)))").tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+}
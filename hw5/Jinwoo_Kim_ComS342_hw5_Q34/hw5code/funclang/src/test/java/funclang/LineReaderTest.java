@@ -0,0 +1,120 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+import funclang.Value.*;
+
+/**
+ * Checks that LineReader splits lines as BufferedReader.readLine does,
+ * across the chunks it decodes and the windows it maps, and that the
+ * lines of readlines are strings like the others.
+ */
+public class LineReaderTest {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final List<File> _files = new ArrayList<File>();
+
+	@After
+	public void tearDown() {
+		for (File file : _files)
+			file.delete();
+	}
+
+	/**
+	 * A file in the working directory, which readlines reads from.
+	 */
+	private File file(byte[] content) throws IOException {
+		File file = File.createTempFile("lines", ".txt", new File(System.getProperty("user.dir")));
+		_files.add(file);
+		try (FileOutputStream out = new FileOutputStream(file)) {
+			out.write(content);
+		}
+		return file;
+	}
+
+	private File file(String content) throws IOException {
+		return file(content.getBytes(UTF8));
+	}
+
+	private static List<String> lines(File file, int window) throws IOException {
+		LineReader reader = new LineReader(file.getPath(), UTF8, window);
+		List<String> lines = new ArrayList<String>();
+		for (String line = reader.readLine(); line != null; line = reader.readLine())
+			lines.add(line);
+		return lines;
+	}
+
+	@Test
+	public void linesEndAtLineFeedsReturnsOrBoth() throws IOException {
+		List<String> expected = Arrays.asList("a", "b", "", "c", "d", "", "e");
+		assertEquals(expected, lines(file("a\nb\n\nc\rd\r\re\n"), LineReader.WINDOW));
+		assertEquals(expected, lines(file("a\r\nb\r\n\r\nc\r\nd\r\n\r\ne"), LineReader.WINDOW));
+		assertEquals(Arrays.asList("a", "", "b", ""), lines(file("a\r\n\rb\r\r\n"), LineReader.WINDOW));
+		assertEquals(Arrays.asList("x", ""), lines(file("x\n\n"), LineReader.WINDOW));
+	}
+
+	@Test
+	public void returnAtTheEndOfAChunk() throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < LineReader.CHUNK - 1; i++)
+			text.append('x');
+		String first = text.toString();
+		File file = file(first + "\r\ny\r\n");
+		assertEquals(Arrays.asList(first, "y"), lines(file, LineReader.WINDOW));
+		assertEquals(Arrays.asList(first, "y"), lines(file, 64));
+	}
+
+	@Test
+	public void charactersSplitAcrossWindows() throws IOException {
+		String text = "\u20ac\u00e9a\u20ac\n\u00e9\u20ac\u00e9\r\n\ud83d\ude00b\u20ac";
+		for (int window = 4; window <= 12; window++)
+			assertEquals("window " + window, Arrays.asList("\u20ac\u00e9a\u20ac", "\u00e9\u20ac\u00e9", "\ud83d\ude00b\u20ac"),
+					lines(file(text), window));
+	}
+
+	@Test
+	public void emptyFileHasNoLines() throws IOException {
+		File file = file("");
+		assertEquals(Arrays.asList(), lines(file, LineReader.WINDOW));
+		assertEquals("()", run("(readlines \"" + file.getName() + "\")"));
+	}
+
+	@Test
+	public void partlyWalkedListsReadNoFurther() throws IOException {
+		File file = file("1\n2\n3\n4\n");
+		LineReader reader = new LineReader(file.getPath(), UTF8, LineReader.WINDOW);
+		Value lines = LazyPairVal.lines(reader);
+		PairVal second = (PairVal) ((PairVal) lines).snd();
+		assertEquals("\"2\"", second.fst().tostring());
+		assertEquals("3", reader.readLine());
+		assertEquals("(\"4\")", second.snd().tostring());
+		assertNull(reader.readLine());
+	}
+
+	private static String run(String program) {
+		Reader reader = new Reader();
+		return new Evaluator(reader).valueOf(reader.parse(program)).tostring();
+	}
+
+	@Test
+	public void linesAreStringsLikeLiterals() throws IOException {
+		String name = "\"" + file("a\nbc\n").getName() + "\"";
+		assertEquals("1", run("(length (car (readlines " + name + ")))"));
+		assertEquals("#t", run("(= (car (readlines " + name + ")) \"a\")"));
+		assertEquals("(\"a\" \"bc\")", run("(readlines " + name + ")"));
+		assertEquals("2", run("(length (car (cdr (readlines " + name + "))))"));
+		assertEquals("#t", run("(= (read " + name + ") (read " + name + "))"));
+	}
+}
@@ -0,0 +1,100 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Checks that memoized results are dropped by definitions the function
+ * could see, in its own session or the prelude, but not by those of other
+ * sessions, and that sessions count the hits and misses of their calls.
+ */
+public class MemoTest {
+	private static final String[] ENGINES = { "ast", "closure", "vm" };
+
+	private static FuncLangEngine engine(String name) {
+		FuncLangEngine engine = new FuncLangEngine();
+		engine.setEngine(name);
+		engine.setOptimize(false);
+		return engine;
+	}
+
+	private static void call(FuncLangEngine.Session session, String program, String value,
+			long hits, long misses) {
+		assertEquals(program, value, session.valueOf(program).tostring());
+		assertEquals(program, hits, session.memoHits());
+		assertEquals(program, misses, session.memoMisses());
+	}
+
+	@Test
+	public void definitionsOfOtherSessionsKeepResults() throws Exception {
+		for (String name : ENGINES) {
+			FuncLangEngine engine = engine(name);
+			try {
+				FuncLangEngine.Session first = engine.openSession(), second = engine.openSession();
+				first.valueOf("(define sq (memo (lambda (x) (* x x))))");
+				call(first, "(sq 3)", "9", 0, 1);
+				call(first, "(sq 3)", "9", 1, 1);
+				second.valueOf("(define y 1)");
+				call(first, "(sq 3)", "9", 2, 1);
+				first.valueOf("(define z 2)");
+				call(first, "(sq 3)", "9", 2, 2);
+				assertEquals(0, second.memoHits() + second.memoMisses());
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void preludeResultsAreShared() throws Exception {
+		for (String name : ENGINES) {
+			FuncLangEngine engine = engine(name);
+			try {
+				engine.prelude("(define k 10)");
+				engine.prelude("(define add (memo (lambda (x) (+ x k))))");
+				FuncLangEngine.Session first = engine.openSession(), second = engine.openSession();
+				call(first, "(add 4)", "14", 0, 1);
+				call(second, "(add 4)", "14", 1, 0);
+				second.valueOf("(define k 20)");
+				call(first, "(add 4)", "14", 1, 1);
+				call(second, "(add 4)", "14", 2, 0);
+			} finally {
+				engine.close();
+			}
+		}
+	}
+
+	@Test
+	public void preludeDefinitionsDropResults() {
+		Reader reader = new Reader();
+		Evaluator prelude = new Evaluator(reader);
+		Evaluator session = new Evaluator(reader, prelude.globalEnv());
+		session.valueOf(reader.parse("(define sq (memo (lambda (x) (* x x))))"));
+		session.valueOf(reader.parse("(sq 5)"));
+		session.valueOf(reader.parse("(sq 5)"));
+		assertEquals(1, session.memoHits());
+		prelude.valueOf(reader.parse("(define w 1)"));
+		session.valueOf(reader.parse("(sq 5)"));
+		assertEquals(1, session.memoHits());
+		assertEquals(2, session.memoMisses());
+	}
+
+	@Test
+	public void automaticMemoizingIsCounted() throws Exception {
+		for (String name : ENGINES) {
+			FuncLangEngine engine = engine(name);
+			engine.setMemoize(true);
+			try {
+				FuncLangEngine.Session session = engine.openSession();
+				session.valueOf("(define fib (lambda (n) (if (< n 2) n (+ (fib (- n 1)) (fib (- n 2))))))");
+				assertEquals("832040", session.valueOf("(fib 30)").tostring());
+				assertTrue(name, session.memoHits() > 0);
+				assertTrue(name, session.memoMisses() <= 31);
+			} finally {
+				engine.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,77 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that optimized programs give the values and errors they give
+ * unoptimized, in every engine, where folding and propagating constants
+ * could change them: shadowed bindings, defaults, negative zero and NaN,
+ * and branches that are never taken.
+ */
+public class OptimizerTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+
+	private static final String[] DEFINITIONS = {
+		"(define x 5)",
+	};
+
+	private static final String[][] CASES = {
+		// The values of a let see the bindings outside it, not each other.
+		{ "(let ((x 1) (y x)) y)", "5" },
+		{ "(let ((x 1) (y x)) (+ x y))", "6" },
+		{ "(let ((x 1)) (let ((x (car (list 7))) (y x)) (+ x y)))", "8" },
+		{ "(let ((x 1) (x 2)) x)", "2" },
+		{ "(let ((x 2)) ((lambda (x) (+ x 1)) 5))", "6" },
+		{ "(let ((x 2)) ((lambda (y) (+ x y)) 5))", "7" },
+		{ "((let ((x 2)) (lambda (x) x)) 9)", "9" },
+		// Only number literals are defaults, whatever a constant would fold to.
+		{ "((lambda (a) ((lambda (b (c = 4)) (+ a b c)) 1)) 10)", "15" },
+		{ "(let ((y 8)) ((lambda (z (y = 3)) (+ z y)) 1))", "4" },
+		{ "(let ((k 2)) ((lambda (z (y = 3)) (+ z y k)) 1))", "6" },
+		{ "(let ((k 2)) ((lambda (z (y = (* k 2))) (+ z y)) 1))",
+				"Argument mismatch in call ((lambda ( z (y = (* k 2.0 )) ) (+ z y )) 1.0 )" },
+		{ "((lambda (z (y = (* 2 2))) (+ z y)) 1)",
+				"Argument mismatch in call ((lambda ( z (y = (* 2.0 2.0 )) ) (+ z y )) 1.0 )" },
+		// Negative zero and NaN.
+		{ "(* (- 0 1) 0)", "0" },
+		{ "(/ 1 (* (- 0 1) 0))", "-Infinity" },
+		{ "(/ 1 (* 0 (- 0 1)))", "-Infinity" },
+		{ "(/ 1 (- 0 0))", "Infinity" },
+		{ "(= 0 (* (- 0 1) 0))", "#t" },
+		{ "(/ 0 0)", "NaN" },
+		{ "(- (/ 0 0) (/ 0 0))", "NaN" },
+		{ "(= (/ 0 0) (/ 0 0))", "#f" },
+		{ "(< (/ 0 0) 1)", "#f" },
+		{ "(> (/ 0 0) 1)", "#f" },
+		// Branches that are never taken.
+		{ "(if #t 1 (car 1))", "1" },
+		{ "(if #f nothere 2)", "2" },
+		{ "(if (> 1 2) (car 1) 9)", "9" },
+		{ "(if (= 1 1) 1 nothere)", "1" },
+		{ "(if (< 1 2) (if #f 3 4) 5)", "4" },
+		{ "(let ((c #f)) (if c (car 1) 6))", "6" },
+		{ "(if 5 1 2)", "Condition not a boolean in expression (if 5.0 1.0 2.0)" },
+	};
+
+	@Test
+	public void optimizedProgramsAnswerAsWritten() throws Exception {
+		for (String name : ENGINES)
+			for (boolean optimize : new boolean[] { false, true }) {
+				FuncLangEngine engine = new FuncLangEngine();
+				engine.setEngine(name);
+				engine.setOptimize(optimize);
+				try {
+					FuncLangEngine.Session session = engine.openSession();
+					for (String definition : DEFINITIONS)
+						session.valueOf(definition);
+					for (String[] c : CASES)
+						assertEquals(name + (optimize ? " optimized: " : ": ") + c[0], c[1],
+								session.valueOf(c[0]).tostring());
+				} finally {
+					engine.close();
+				}
+			}
+	}
+}
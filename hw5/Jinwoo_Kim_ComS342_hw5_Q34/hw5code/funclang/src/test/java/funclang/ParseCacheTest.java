@@ -0,0 +1,104 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import funclang.AST.Program;
+
+/**
+ * Checks that the ParseCache evicts the entry used least recently once it
+ * is full, and drops the entry of a file as soon as its modification time
+ * or size changes.
+ */
+public class ParseCacheTest {
+	private final Reader _reader = new Reader();
+	private File _file;
+
+	@After
+	public void tearDown() {
+		if (_file != null)
+			_file.delete();
+	}
+
+	private Program program(String text) {
+		return _reader.parse(text);
+	}
+
+	private File file(String content, long modified) throws IOException {
+		if (_file == null)
+			_file = File.createTempFile("cache", ".fl");
+		try (FileOutputStream out = new FileOutputStream(_file)) {
+			out.write(content.getBytes("UTF-8"));
+		}
+		_file.setLastModified(modified);
+		return _file;
+	}
+
+	@Test
+	public void leastRecentlyUsedTextIsEvicted() {
+		ParseCache cache = new ParseCache(2);
+		Program a = program("1"), b = program("2"), c = program("3");
+		cache.put("1", a);
+		cache.put("2", b);
+		assertSame(a, cache.get("1"));
+		cache.put("3", c);
+		assertNull(cache.get("2"));
+		assertSame(a, cache.get("1"));
+		assertSame(c, cache.get("3"));
+		assertEquals(3, cache.hits());
+		assertEquals(1, cache.misses());
+	}
+
+	@Test
+	public void leastRecentlyUsedFileIsEvicted() throws IOException {
+		ParseCache cache = new ParseCache(2);
+		File[] files = new File[3];
+		try {
+			for (int i = 0; i < files.length; i++)
+				files[i] = File.createTempFile("cache", ".fl");
+			Program a = program("1"), b = program("2"), c = program("3");
+			cache.putFile(files[0], files[0].lastModified(), files[0].length(), a);
+			cache.putFile(files[1], files[1].lastModified(), files[1].length(), b);
+			assertSame(a, cache.getFile(files[0]));
+			cache.putFile(files[2], files[2].lastModified(), files[2].length(), c);
+			assertNull(cache.getFile(files[1]));
+			assertSame(a, cache.getFile(files[0]));
+			assertSame(c, cache.getFile(files[2]));
+		} finally {
+			for (File file : files)
+				if (file != null)
+					file.delete();
+		}
+	}
+
+	@Test
+	public void changedFilesAreParsedAgain() throws IOException {
+		long modified = 1000000000000L;
+		File file = file("(+ 1 2)", modified);
+		Program first = _reader.parseFile(file.getPath());
+		assertSame(first, _reader.parseFile(file.getPath()));
+
+		// Same size, another modification time.
+		file("(+ 1 3)", modified + 2000);
+		Program second = _reader.parseFile(file.getPath());
+		assertNotSame(first, second);
+		assertEquals("4", new Evaluator(_reader).valueOf(second).tostring());
+		assertSame(second, _reader.parseFile(file.getPath()));
+
+		// Same modification time, another size.
+		file("(+ 1 30)", modified + 2000);
+		Program third = _reader.parseFile(file.getPath());
+		assertNotSame(second, third);
+		assertEquals("31", new Evaluator(_reader).valueOf(third).tostring());
+		assertSame(third, _reader.parseFile(file.getPath()));
+	}
+}
@@ -0,0 +1,104 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.junit.Test;
+
+import funclang.Value.*;
+
+/**
+ * Checks that the Printer writes lists a million elements long, or nested
+ * a million deep, as the formatting of small ones would, without running
+ * out of stack, and hands its output over in chunks of bounded size.
+ */
+public class PrinterTest {
+	private static final int N = 1000000;
+
+	/**
+	 * Collects what a Printer writes, and the size of the largest piece.
+	 */
+	private static final class Output implements Appendable {
+		private final StringBuilder _text = new StringBuilder();
+		private int _largest = 0;
+		public Appendable append(CharSequence s) {
+			_largest = Math.max(_largest, s.length());
+			_text.append(s);
+			return this;
+		}
+		public Appendable append(CharSequence s, int start, int end) {
+			return append(s.subSequence(start, end));
+		}
+		public Appendable append(char c) throws IOException {
+			return append(String.valueOf(c));
+		}
+	}
+
+	private static Output print(Value v) {
+		Output out = new Output();
+		new Printer(out).print(v);
+		assertTrue(out._largest < Printer.CHUNK_SIZE + 64);
+		return out;
+	}
+
+	private static String elements(int from, int to) {
+		StringBuilder text = new StringBuilder();
+		for (int i = from; i <= to; i++)
+			text.append(i == from ? "" : " ").append(i);
+		return text.toString();
+	}
+
+	@Test
+	public void millionElementLists() {
+		String expected = "(" + elements(1, N) + ")";
+		Value pairs = new Null();
+		Value[] elems = new Value[N];
+		for (int i = N; i >= 1; i--) {
+			pairs = new PairVal(new NumVal(i), pairs);
+			elems[i - 1] = new NumVal(i);
+		}
+		assertEquals(expected + System.lineSeparator(), print(pairs)._text.toString());
+		assertEquals(expected + System.lineSeparator(), print(new ListVal(elems))._text.toString());
+		assertEquals(expected, pairs.tostring());
+	}
+
+	@Test
+	public void listsNestedAMillionDeep() {
+		StringBuilder expected = new StringBuilder();
+		Value nested = new NumVal(1);
+		for (int i = 0; i < N; i++) {
+			nested = new PairVal(nested, new Null());
+			expected.append('(');
+		}
+		expected.append('1');
+		for (int i = 0; i < N; i++)
+			expected.append(')');
+		assertEquals(expected + System.lineSeparator(), print(nested)._text.toString());
+		assertEquals(expected.toString(), nested.tostring());
+	}
+
+	@Test
+	public void improperChainsAMillionLong() {
+		StringBuilder expected = new StringBuilder();
+		Value chain = new NumVal(N);
+		for (int i = N - 1; i >= 1; i--)
+			chain = new PairVal(new NumVal(i), chain);
+		for (int i = 1; i < N; i++)
+			expected.append('(').append(i).append(' ');
+		expected.append(N);
+		for (int i = 1; i < N; i++)
+			expected.append(')');
+		assertEquals(expected + System.lineSeparator(), print(chain)._text.toString());
+	}
+
+	@Test
+	public void smallValues() {
+		Value mixed = new PairVal(new ListVal(new Value[] { new NumVal(1.5), BoolVal.TRUE }),
+				new PairVal(new PairVal(new NumVal(2), new NumVal(3)), new Null()));
+		assertEquals("((1.5 #t) (2 3))", mixed.tostring());
+		assertEquals("", print(UnitVal.v)._text.toString());
+		assertEquals("()" + System.lineSeparator(), print(new Null())._text.toString());
+	}
+}
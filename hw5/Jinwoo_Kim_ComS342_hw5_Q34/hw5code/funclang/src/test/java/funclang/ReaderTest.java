@@ -0,0 +1,139 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.junit.Test;
+
+import funclang.parser.FuncLangLexer;
+import funclang.parser.FuncLangParser;
+
+/**
+ * Checks that the Reader, which parses with SLL prediction and falls back
+ * to full LL on a syntax error, builds the same trees and reports the
+ * same errors as a new parser using full LL prediction from the start.
+ */
+public class ReaderTest {
+	private static final String[] INVALID = {
+		"(+ 1 2", "(let ((x 1) x)", "(lambda x x)", "(if 1 2)", ")", "(define 1 2) 3", "(+ 1 ~ 2)",
+	};
+
+	/**
+	 * What a new parser in LL mode makes of text: the printed tree, or the
+	 * exception its actions throw, followed by the errors it reports.
+	 */
+	private static String parseLL(String text) {
+		final StringBuilder errors = new StringBuilder();
+		BaseErrorListener listener = new BaseErrorListener() {
+			public void syntaxError(Recognizer<?, ?> recognizer, Object symbol, int line, int column,
+					String message, RecognitionException e) {
+				errors.append("line " + line + ":" + column + " " + message).append('\n');
+			}
+		};
+		FuncLangLexer lexer = new FuncLangLexer(new ANTLRInputStream(text));
+		lexer.removeErrorListeners();
+		lexer.addErrorListener(listener);
+		FuncLangParser parser = new FuncLangParser(new CommonTokenStream(lexer));
+		parser.removeErrorListeners();
+		parser.addErrorListener(listener);
+		parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+		String result;
+		try {
+			result = FastParserTest.format(parser.program().ast);
+		} catch (RuntimeException e) {
+			result = e.getClass().getName();
+		}
+		return result + "\n" + errors;
+	}
+
+	/**
+	 * The same for a Reader, with the errors it prints to standard error.
+	 */
+	private static String parse(Reader reader, String text) {
+		PrintStream err = System.err;
+		ByteArrayOutputStream errors = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(errors, true));
+		String result;
+		try {
+			result = FastParserTest.format(reader.parse(text));
+		} catch (RuntimeException e) {
+			result = e.getClass().getName();
+		} finally {
+			System.setErr(err);
+		}
+		return result + "\n" + errors.toString().replace(System.lineSeparator(), "\n");
+	}
+
+	@Test
+	public void validProgramsParseAsWithFullLL() throws Exception {
+		Reader reader = new Reader();
+		for (String text : FastParserTest.corpus())
+			assertEquals(text, parseLL(text), parse(reader, text));
+	}
+
+	@Test
+	public void invalidProgramsReportTheFullLLErrors() throws Exception {
+		for (String text : INVALID) {
+			String expected = parseLL(text);
+			assertTrue(text, expected.indexOf("line ") > 0);
+			assertEquals(text, expected, parse(new Reader(), text));
+		}
+	}
+
+	/**
+	 * Parses invalid and valid programs in turn. The parser of the thread
+	 * is shared by every Reader, but each gets a new one so that nothing
+	 * comes from its cache.
+	 */
+	@Test
+	public void errorsDoNotCarryOverToTheNextParse() throws Exception {
+		List<String> corpus = FastParserTest.corpus();
+		for (int i = 0; i < corpus.size(); i++) {
+			String text = INVALID[i % INVALID.length];
+			assertEquals(text, parseLL(text), parse(new Reader(), text));
+			assertEquals(corpus.get(i), parseLL(corpus.get(i)), parse(new Reader(), corpus.get(i)));
+		}
+	}
+
+	@Test
+	public void threadsParseWithTheirOwnParsers() throws Exception {
+		final List<String> corpus = FastParserTest.corpus();
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<List<String>>> results = new ArrayList<Future<List<String>>>();
+			for (int t = 0; t < 8; t++)
+				results.add(pool.submit(new Callable<List<String>>() {
+					public List<String> call() {
+						List<String> trees = new ArrayList<String>();
+						for (int round = 0; round < 5; round++)
+							for (String text : corpus)
+								trees.add(FastParserTest.format(new Reader().parse(text)));
+						return trees;
+					}
+				}));
+			for (Future<List<String>> result : results) {
+				List<String> trees = result.get();
+				for (int i = 0; i < trees.size(); i++)
+					assertEquals(FastParserTest.format(FastParserTest.antlr(corpus.get(i % corpus.size()))),
+							trees.get(i));
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+}
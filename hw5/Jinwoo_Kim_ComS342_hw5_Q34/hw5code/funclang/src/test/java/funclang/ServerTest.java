@@ -0,0 +1,262 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Runs a Server on a loopback port and checks that programs sent ahead of
+ * their answers get the answers --batch prints for them, in order, and
+ * that a client which stops reading is eventually stopped from writing.
+ */
+public class ServerTest {
+	private FuncLangEngine _engine;
+	private Server _server;
+	private Thread _serving;
+
+	@Before
+	public void setUp() throws Exception {
+		_engine = new FuncLangEngine();
+		_server = Server.tcp(_engine, 0);
+		_serving = new Thread(new Runnable() {
+			public void run() {
+				try {
+					_server.serve();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "server");
+		_serving.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		_serving.interrupt();
+		_serving.join();
+		_engine.close();
+	}
+
+	private static List<String> programs() {
+		List<String> programs = new ArrayList<String>();
+		programs.add("(define sq (lambda (x) (* x x)))");
+		programs.add("(define l (list 1 2 3))");
+		programs.add("(define count 0)");
+		for (int i = 0; i < 600; i++) {
+			programs.add("(sq " + i + ")");
+			programs.add("(define count (+ count 1))");
+			programs.add("count");
+			programs.add("(cons " + i + " l)");
+		}
+		programs.add("\"a\\b\"");
+		programs.add("\"a \\\" quote\"");
+		programs.add("undefined");
+		programs.add("(car 1)");
+		programs.add("(if 1 2 3)");
+		programs.add("(+ 1 2)\r");
+		programs.add("");
+		programs.add("(sq count)");
+		return programs;
+	}
+
+	/**
+	 * What --batch prints for the programs, one after another.
+	 */
+	private static String batch(List<String> programs) throws Exception {
+		StringBuilder input = new StringBuilder();
+		for (String program : programs)
+			input.append(program).append('\n');
+		Reader reader = new Reader();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new Batch(reader, new Evaluator(reader), null, new Optimizer(), 1)
+				.run(new BufferedReader(new StringReader(input.toString())), new PrintStream(out));
+		return out.toString();
+	}
+
+	private static String unescape(String line) {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c != '\\')
+				text.append(c);
+			else {
+				c = line.charAt(++i);
+				text.append(c == 'n' ? '\n' : c == 'r' ? '\r' : c);
+			}
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Sends the lines from another thread, counting them in sent, and
+	 * closes the output after the last one.
+	 */
+	private static Thread send(final Socket socket, final List<String> lines, final AtomicInteger sent) {
+		Thread sender = new Thread(new Runnable() {
+			public void run() {
+				try {
+					OutputStream out = socket.getOutputStream();
+					for (String line : lines) {
+						out.write((line + "\n").getBytes());
+						sent.incrementAndGet();
+					}
+					socket.shutdownOutput();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, "client");
+		sender.start();
+		return sender;
+	}
+
+	private Socket connect() throws Exception {
+		return new Socket(((InetSocketAddress) _server.address()).getAddress(),
+				((InetSocketAddress) _server.address()).getPort());
+	}
+
+	@Test
+	public void pipelinedAnswersMatchBatch() throws Exception {
+		List<String> programs = programs();
+		Socket socket = connect();
+		try {
+			Thread sender = send(socket, programs, new AtomicInteger());
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			StringBuilder answers = new StringBuilder();
+			int count = 0;
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				assertTrue(line.indexOf('\r') < 0);
+				if (!line.isEmpty()) // For unit, of which --batch prints nothing.
+					answers.append(unescape(line)).append(System.lineSeparator());
+				count++;
+			}
+			sender.join();
+			assertEquals(programs.size(), count);
+			assertEquals(batch(programs), answers.toString());
+		} finally {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void answersAreEscapedToOneLine() throws Exception {
+		assertEquals("a\\\\b\\nc\\r\n", new String(Server.format(new Value.StringVal("a\\b\nc\r")), "UTF-8"));
+		assertEquals("\n", new String(Server.format(Value.UnitVal.v), "UTF-8"));
+	}
+
+	/**
+	 * A string holding a backslash and line breaks, read from a file since
+	 * a literal cannot hold a line break, comes back on one line and as --batch
+	 * prints it once unescaped.
+	 */
+	@Test
+	public void stringsWithBackslashesAndLineBreaksStayOnOneLine() throws Exception {
+		File file = File.createTempFile("server", ".txt", new File(System.getProperty("user.dir")));
+		Socket socket = connect();
+		try {
+			try (FileOutputStream out = new FileOutputStream(file)) {
+				out.write("a\\b\nc\n".getBytes("UTF-8"));
+			}
+			List<String> programs = new ArrayList<String>();
+			programs.add("(read \"" + file.getName() + "\")");
+			programs.add("(+ 1 2)");
+			socket.getOutputStream().write((programs.get(0) + "\n" + programs.get(1) + "\n").getBytes());
+			socket.shutdownOutput();
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			String line = in.readLine();
+			// read ends the lines it reads with the line separator.
+			String separator = System.lineSeparator().replace("\r", "\\r").replace("\n", "\\n");
+			assertEquals("\"a\\\\b" + separator + "c" + separator + "\"", line);
+			assertEquals(batch(programs.subList(0, 1)), unescape(line) + System.lineSeparator());
+			assertEquals("3", in.readLine());
+			assertEquals(null, in.readLine());
+		} finally {
+			socket.close();
+			file.delete();
+		}
+	}
+
+	@Test
+	public void connectionsHaveSessionsOfTheirOwn() throws Exception {
+		Socket first = connect(), second = connect();
+		try {
+			first.getOutputStream().write("(define x 1)\nx\n".getBytes());
+			BufferedReader in = new BufferedReader(new InputStreamReader(first.getInputStream()));
+			assertEquals("", in.readLine());
+			assertEquals("1", in.readLine());
+			second.getOutputStream().write("x\n".getBytes());
+			second.shutdownOutput();
+			in = new BufferedReader(new InputStreamReader(second.getInputStream()));
+			assertTrue(in.readLine().contains("x"));
+			assertEquals(null, in.readLine());
+		} finally {
+			first.close();
+			second.close();
+		}
+	}
+
+	/**
+	 * Sends long programs with long answers without reading them. Once
+	 * the answers fill the socket buffers, the server holds at most
+	 * MAX_IN_FLIGHT programs and stops reading, so the client is blocked
+	 * long before it has sent everything. All answers arrive once it
+	 * reads.
+	 */
+	@Test
+	public void clientsThatDoNotReadAreHeldBack() throws Exception {
+		StringBuilder padding = new StringBuilder();
+		for (int i = 0; i < 10000; i++)
+			padding.append(' ');
+		StringBuilder elems = new StringBuilder();
+		for (int i = 0; i < 2000; i++)
+			elems.append(' ').append(i);
+		String list = "(list" + elems + ")";
+		List<String> lines = new ArrayList<String>();
+		lines.add("(define big " + list + ")");
+		int total = 4000;
+		for (int i = 1; i < total; i++)
+			lines.add("big" + padding);
+		Socket socket = connect();
+		try {
+			AtomicInteger sent = new AtomicInteger();
+			Thread sender = send(socket, lines, sent);
+			int before;
+			do {
+				before = sent.get();
+				Thread.sleep(500);
+			} while (sent.get() != before);
+			assertTrue(sent.get() >= Server.MAX_IN_FLIGHT);
+			assertTrue(sent.get() < total);
+
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+			assertEquals("", in.readLine());
+			String answer = "(" + elems.substring(1) + ")";
+			int count = 1;
+			for (String line = in.readLine(); line != null; line = in.readLine()) {
+				assertEquals(answer, line);
+				count++;
+			}
+			sender.join();
+			assertEquals(total, count);
+		} finally {
+			socket.close();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Checks that every engine runs tail calls in constant stack space: loops
+ * walking a list of 100000 elements, by tail calls through an if, a let or
+ * both, finish on a thread whose stack could not hold a call per element.
+ */
+public class TailCallTest {
+	private static final String[] ENGINES = { "ast", "closure", "tiered", "vm" };
+	private static final long STACK_SIZE = 1 << 19;
+
+	private static final String[] DEFINITIONS = {
+		"(define iota (lambda (n acc) (if (= n 0) acc (iota (- n 1) (cons n acc)))))",
+		"(define l (iota 100000 (list)))",
+		"(define len (lambda (l acc) (if (null? l) acc (len (cdr l) (+ acc 1)))))",
+		"(define total (lambda (l acc) (let ((rest (cdr l)) (next (+ acc (car l)))) (if (null? rest) next (total rest next)))))",
+		"(define last (lambda (l) (if (null? (cdr l)) (car l) (let ((rest (cdr l))) (last rest)))))",
+		"(define even (lambda (l) (if (null? l) #t (odd (cdr l)))))",
+		"(define odd (lambda (l) (if (null? l) #f (even (cdr l)))))",
+	};
+
+	private static final String[][] CASES = {
+		{ "(len l 0)", "100000" },
+		{ "(total l 0)", "5.00005E9" },
+		{ "(last l)", "100000" },
+		{ "(even l)", "#t" },
+		{ "(odd (cdr l))", "#t" },
+	};
+
+	/**
+	 * The values of the cases, computed on a thread with a small stack.
+	 */
+	private static List<String> run(final String engine) throws Exception {
+		final List<String> values = new ArrayList<String>();
+		final Throwable[] failure = new Throwable[1];
+		Thread thread = new Thread(null, new Runnable() {
+			public void run() {
+				FuncLangEngine funclang = new FuncLangEngine();
+				funclang.setEngine(engine);
+				try {
+					FuncLangEngine.Session session = funclang.openSession();
+					for (String definition : DEFINITIONS)
+						session.valueOf(definition);
+					// Enough rounds for the tiered engine to compile the loops.
+					for (int round = 0; round < 3; round++)
+						for (String[] c : CASES)
+							values.add(session.valueOf(c[0]).tostring());
+				} catch (Throwable e) {
+					failure[0] = e;
+				} finally {
+					funclang.close();
+				}
+			}
+		}, "tail-calls", STACK_SIZE);
+		thread.start();
+		thread.join();
+		if (failure[0] != null)
+			throw new AssertionError(engine + " failed with " + failure[0], failure[0]);
+		return values;
+	}
+
+	@Test
+	public void tailCallsTakeNoStackInEveryEngine() throws Exception {
+		for (String engine : ENGINES) {
+			List<String> values = run(engine);
+			for (int i = 0; i < values.size(); i++) {
+				String[] c = CASES[i % CASES.length];
+				assertEquals(engine + ": " + c[0], c[1], values.get(i));
+			}
+		}
+	}
+}
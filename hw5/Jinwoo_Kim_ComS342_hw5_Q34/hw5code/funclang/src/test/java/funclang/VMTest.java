@@ -0,0 +1,70 @@
+package funclang;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * Checks that the VM ends programs whose calls nest too deeply with an
+ * error, whether the calls are direct or made back by native functions,
+ * and goes on running later programs.
+ */
+public class VMTest {
+	private static final String DOWN =
+			"(define down (lambda (n) (if (= n 0) 0 (+ 1 (down (- n 1))))))";
+	// Recurses through map, so that each level is a run of its own.
+	private static final String VIA_MAP =
+			"(define g (lambda (n) (if (= n 0) 0 (car (map (lambda (x) (+ 1 (g (- x 1)))) (list n))))))";
+
+	private final Reader _reader = new Reader();
+
+	private Evaluator vm(int maxDepth) {
+		Evaluator eval = new Evaluator(_reader);
+		eval.setVM();
+		if (maxDepth > 0)
+			eval.setMaxDepth(maxDepth);
+		return eval;
+	}
+
+	private String run(Evaluator eval, String text) {
+		return eval.valueOf(_reader.parse(text)).tostring();
+	}
+
+	@Test
+	public void runawayRecursionEndsWithAnError() {
+		Evaluator eval = vm(0);
+		run(eval, "(define f (lambda (n) (+ 1 (f n))))");
+		assertEquals("recursion too deep", run(eval, "(f (/ 4 0))"));
+		assertEquals("3", run(eval, "(+ 1 2)"));
+		assertEquals("recursion too deep", run(eval, "(f 1)"));
+	}
+
+	@Test
+	public void depthIsConfigurable() {
+		Evaluator eval = vm(1000);
+		run(eval, DOWN);
+		assertEquals("900", run(eval, "(down 900)"));
+		assertEquals("recursion too deep", run(eval, "(down 1100)"));
+		assertEquals("900", run(eval, "(down 900)"));
+
+		eval = vm(0);
+		run(eval, DOWN);
+		assertEquals("300000", run(eval, "(down 300000)"));
+	}
+
+	@Test
+	public void tailCallsTakeNoFrames() {
+		Evaluator eval = vm(100);
+		run(eval, "(define loop (lambda (n) (if (= n 0) 0 (loop (- n 1)))))");
+		assertEquals("0", run(eval, "(loop 100000)"));
+	}
+
+	@Test
+	public void nestedRunsCountTowardsTheDepth() {
+		Evaluator eval = vm(200);
+		run(eval, VIA_MAP);
+		assertEquals("50", run(eval, "(g 50)"));
+		assertEquals("recursion too deep", run(eval, "(g 1000)"));
+		assertEquals("50", run(eval, "(g 50)"));
+	}
+}